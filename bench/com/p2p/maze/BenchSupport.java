@@ -0,0 +1,160 @@
+package com.p2p.maze;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helpers shared by the benchmarks: building game states and measuring what RMI would ship
+ */
+final class BenchSupport {
+
+  // keep the reference, loggers are only weakly held by the LogManager
+  private static final Logger GAME_STATE_LOGGER = Logger.getLogger(GameState.class.getSimpleName());
+  private static final Logger TRANSPORT_LOGGER = Logger.getLogger(NioTransport.class.getSimpleName());
+  private static final Logger COMMAND_LOG_LOGGER = Logger.getLogger(CommandLog.class.getSimpleName());
+
+  static {
+    // per-player INFO logs would dominate the measurements
+    GAME_STATE_LOGGER.setLevel(Level.WARNING);
+    TRANSPORT_LOGGER.setLevel(Level.WARNING);
+    COMMAND_LOG_LOGGER.setLevel(Level.WARNING);
+  }
+
+  private BenchSupport() {}
+
+  /**
+   * Create a primary-side game state with the given number of players spread over the maze
+   */
+  static GameState newGameState(int n, int k, int players) {
+    TrackerState trackerState = new TrackerState();
+    trackerState.setN(n);
+    trackerState.setK(k);
+    GameState gameState = new GameState(trackerState);
+    gameState.initGameState();
+    for (int i = 0; i < players; i++) {
+      Player player = new Player(playerId(i), "127.0.0.1", 1099);
+      gameState.addPlayer(player);
+      if (i == 0) {
+        gameState.setPrimary(player);
+      } else if (i == 1) {
+        gameState.setBackup(player);
+      }
+    }
+    gameState.drainDeltas();
+    return gameState;
+  }
+
+  static String playerId(int i) {
+    return "" + (char) ('a' + (i / 26) % 26) + (char) ('a' + i % 26) + (i >= 676 ? i / 676 : "");
+  }
+
+  /**
+   * Move a random player one step in a random direction
+   *
+   * @return true if the move changed the game state
+   */
+  static boolean randomMove(GameState gameState, Player[] players, Random random) {
+    Player player = players[random.nextInt(players.length)];
+    switch (random.nextInt(4)) {
+      case 0:
+        return gameState.move(player, -1, 0);
+      case 1:
+        return gameState.move(player, 0, 1);
+      case 2:
+        return gameState.move(player, 1, 0);
+      default:
+        return gameState.move(player, 0, -1);
+    }
+  }
+
+  static byte[] serialize(Serializable object) {
+    try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(object);
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  static <T> T deserialize(byte[] data) {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+      return (T) in.readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * A GameInterface answering ping and executeMove from the given game state, for benchmarks that need a peer
+   * to export without running a whole Game
+   */
+  static GameInterface fakePeer(final GameState gameState) {
+    InvocationHandler handler = new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+          case "ping":
+            return true;
+          case "executeMove":
+            Player player = (Player) args[0];
+            boolean updated = false;
+            switch ((Game.Command) args[1]) {
+              case MOVE_WEST:
+                updated = gameState.move(player, -1, 0);
+                break;
+              case MOVE_SOUTH:
+                updated = gameState.move(player, 0, 1);
+                break;
+              case MOVE_EAST:
+                updated = gameState.move(player, 1, 0);
+                break;
+              case MOVE_NORTH:
+                updated = gameState.move(player, 0, -1);
+                break;
+              default:
+                break;
+            }
+            gameState.drainDeltas();
+            return new MoveResult(updated, gameState.getPlayer(player.getPlayerId()), gameState.getVersion());
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          case "toString":
+            return "FakePeer";
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      }
+    };
+    return (GameInterface) Proxy.newProxyInstance(GameInterface.class.getClassLoader(),
+        new Class<?>[]{GameInterface.class}, handler);
+  }
+
+  /**
+   * @return the p-th percentile (0..100) of the samples, sorting them in place
+   */
+  static long percentile(long[] samples, double p) {
+    Arrays.sort(samples);
+    int index = (int) Math.ceil(p / 100.0 * samples.length) - 1;
+    return samples[Math.max(0, Math.min(samples.length - 1, index))];
+  }
+
+  static void report(String format, Object... args) {
+    System.out.println(String.format(format, args));
+  }
+}
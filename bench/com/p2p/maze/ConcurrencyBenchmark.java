@@ -0,0 +1,108 @@
+package com.p2p.maze;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ConcurrencyBenchmark
+ * <p>
+ * Move throughput of GameState with 1 to 32 threads moving their own players at the same time.
+ * "whole object" wraps every move in synchronized (gameState), the way GameState used to lock,
+ * "striped" uses the cell stripes of GameState directly.
+ * <p>
+ * Usage: java com.p2p.maze.ConcurrencyBenchmark [N] [players] [millis per run]
+ */
+public class ConcurrencyBenchmark {
+
+  private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+  public static void main(String[] args) throws InterruptedException {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int players = args.length > 1 ? Integer.parseInt(args[1]) : 640;
+    long millis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+
+    BenchSupport.report("Concurrency benchmark: N=%d, players=%d, %d ms per run, %d cpus", n, players, millis,
+        Runtime.getRuntime().availableProcessors());
+    BenchSupport.report("%8s | %20s | %20s", "threads", "whole object mv/s", "striped mv/s");
+
+    run(n, players, 4, millis / 2, true); // warm up
+    run(n, players, 4, millis / 2, false);
+    for (int threads : THREADS) {
+      double whole = run(n, players, threads, millis, true);
+      double striped = run(n, players, threads, millis, false);
+      BenchSupport.report("%8d | %20.0f | %20.0f", threads, whole, striped);
+    }
+  }
+
+  private static double run(int n, int players, int threads, long millis, final boolean wholeObjectLock)
+      throws InterruptedException {
+    final GameState gameState = BenchSupport.newGameState(n, n, players);
+    final Player[] all = gameState.getPlayers().values().toArray(new Player[0]);
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final LongAdder moves = new LongAdder();
+    final CountDownLatch ready = new CountDownLatch(threads);
+
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      // every thread moves its own share of the players, like RMI threads serving different players
+      final List<Player> own = new ArrayList<>();
+      for (int i = t; i < all.length; i += threads) {
+        own.add(all[i]);
+      }
+      final Player[] mine = own.toArray(new Player[0]);
+      final Random random = new Random(t);
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          ready.countDown();
+          long count = 0;
+          while (running.get()) {
+            if (wholeObjectLock) {
+              synchronized (gameState) {
+                BenchSupport.randomMove(gameState, mine, random);
+              }
+            } else {
+              BenchSupport.randomMove(gameState, mine, random);
+            }
+            count++;
+            if ((count & 0xFF) == 0) {
+              gameState.drainDeltas();
+            }
+          }
+          moves.add(count);
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+
+    ready.await();
+    long start = System.nanoTime();
+    Thread.sleep(millis);
+    running.set(false);
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    checkOneCellPerPlayer(gameState);
+    return moves.sum() * 1e9 / elapsed;
+  }
+
+  private static void checkOneCellPerPlayer(GameState gameState) {
+    Set<Integer> cells = new HashSet<>();
+    for (Player player : gameState.getPlayers().values()) {
+      Position position = player.getPosition();
+      if (!player.getPlayerId().equals(gameState.getCell(position.posX, position.posY))
+          || !cells.add(position.posY * gameState.getN() + position.posX)) {
+        throw new IllegalStateException("two players share a cell or a player lost its cell: " + player);
+      }
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package com.p2p.maze;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FailoverBenchmark
+ * <p>
+ * Time for a primary to promote a new backup and tell every player, with in-process fake peers: a live peer answers
+ * after the round trip time, a crashed one fails after the connect timeout, a hung one answers after the hang.
+ * The old backup is among the crashed peers. Compares calling the players one by one, as before (one thread,
+ * no deadline), against the parallel fan-out with its default pool and deadline.
+ * <p>
+ * Usage: java com.p2p.maze.FailoverBenchmark [players] [rtt ms] [connect timeout ms] [hang ms]
+ */
+public class FailoverBenchmark {
+
+  // keep the reference, loggers are only weakly held by the LogManager
+  private static final List<Logger> QUIET = new ArrayList<>();
+
+  private enum Behaviour { ALIVE, CRASHED, HUNG }
+
+  private static int runs;
+
+  public static void main(String[] args) throws Exception {
+    int players = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    long rtt = args.length > 1 ? Long.parseLong(args[1]) : 2;
+    long connectTimeout = args.length > 2 ? Long.parseLong(args[2]) : 200;
+    long hang = args.length > 3 ? Long.parseLong(args[3]) : 3000;
+
+    for (String name : new String[] {"Game", "GameState", "Tracker", "FanOut", "PeerStubCache", "BackupReplicator",
+        "FailureDetector", "Metrics"}) {
+      Logger logger = Logger.getLogger(name);
+      logger.setLevel(Level.OFF);
+      QUIET.add(logger);
+    }
+    // only the explicit promotion is measured, keep the keep alive task from failing over on its own
+    System.setProperty("maze.fd", "timeout");
+    System.setProperty("maze.fd.timeout", "3600000");
+
+    BenchSupport.report("Failover benchmark: %d players, rtt %d ms, connect timeout %d ms, hang %d ms",
+        players, rtt, connectTimeout, hang);
+
+    for (double[] scenario : new double[][] {{0, 0}, {0.05, 0}, {0.05, 0.01}}) {
+      for (boolean parallel : new boolean[] {false, true}) {
+        run(players, rtt, connectTimeout, hang, scenario[0], scenario[1], parallel);
+      }
+    }
+  }
+
+  private static void run(int players, long rtt, long connectTimeout, long hang, double crashed, double hung,
+      boolean parallel) throws Exception {
+    if (parallel) {
+      System.clearProperty("maze.fanout.threads");
+      System.clearProperty("maze.fanout.timeout");
+    } else {
+      System.setProperty("maze.fanout.threads", "1");
+      System.setProperty("maze.fanout.timeout", String.valueOf(Long.MAX_VALUE / 2_000_000));
+    }
+
+    Map<String, Behaviour> behaviours = new ConcurrentHashMap<>();
+    long[] delay = {0};
+    Transport transport = new FakeTransport(new Tracker(100, 50), behaviours, delay, connectTimeout, hang);
+
+    String run = "r" + (++runs);
+    Game primary = new Game(run + "-0", "127.0.0.1", 0, transport);
+    primary.setHeadless(true);
+    primary.start("127.0.0.1", 0);
+    for (int i = 1; i < players; i++) {
+      primary.initPlayer(new Player(run + "-" + i, "127.0.0.1", 0));
+    }
+    GameState gameState = primary.getGameState();
+
+    // the backup crashes, and with it some players; a few others hang
+    Random random = new Random(42);
+    behaviours.put(gameState.getBackup().getPlayerId(), Behaviour.CRASHED);
+    for (Player player : gameState.getPlayers().values()) {
+      if (player.getPlayerId().equals(gameState.getPrimary().getPlayerId())) {
+        continue;
+      }
+      double draw = random.nextDouble();
+      if (draw < crashed) {
+        behaviours.put(player.getPlayerId(), Behaviour.CRASHED);
+      } else if (draw < crashed + hung) {
+        behaviours.put(player.getPlayerId(), Behaviour.HUNG);
+      }
+    }
+    delay[0] = rtt;
+
+    int before = gameState.getPlayers().size();
+    long start = System.nanoTime();
+    primary.promoteBackup();
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    int removed = before - primary.getGameState().getPlayers().size();
+    primary.shutdown();
+
+    long dead = behaviours.values().stream().filter(b -> b == Behaviour.CRASHED).count();
+    long stuck = behaviours.values().stream().filter(b -> b == Behaviour.HUNG).count();
+    BenchSupport.report("%-10s %3d crashed, %2d hung: failover %6d ms, %3d players removed, new backup %s",
+        parallel ? "parallel" : "sequential", dead, stuck, millis, removed,
+        behaviours.get(primary.getGameState().getBackup().getPlayerId()) == null ? "alive" : "NOT alive");
+  }
+
+  /**
+   * Peers are proxies in this JVM; the tracker is called directly
+   */
+  private static class FakeTransport implements Transport {
+    private final TrackerInterface tracker;
+    private final Map<String, GameInterface> stubs = new ConcurrentHashMap<>();
+    private final Map<String, Behaviour> behaviours;
+    private final long[] delay;
+    private final long connectTimeout;
+    private final long hang;
+
+    FakeTransport(TrackerInterface tracker, Map<String, Behaviour> behaviours, long[] delay, long connectTimeout,
+        long hang) {
+      this.tracker = tracker;
+      this.behaviours = behaviours;
+      this.delay = delay;
+      this.connectTimeout = connectTimeout;
+      this.hang = hang;
+    }
+
+    @Override
+    public void exportGame(GameInterface game, Player player) {}
+
+    @Override
+    public void exportTracker(TrackerInterface tracker, int portNumber) {}
+
+    @Override
+    public GameInterface lookupGame(Player player) throws RemoteException, NotBoundException {
+      return stubs.computeIfAbsent(player.getPlayerId(), this::stub);
+    }
+
+    @Override
+    public TrackerInterface lookupTracker(String ip, int portNumber) {
+      return tracker;
+    }
+
+    @Override
+    public void shutdown() {}
+
+    private GameInterface stub(String playerId) {
+      InvocationHandler handler = (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          case "toString":
+            return "FakePeer " + playerId;
+          default:
+            break;
+        }
+        Behaviour behaviour = behaviours.getOrDefault(playerId, Behaviour.ALIVE);
+        if (behaviour == Behaviour.CRASHED) {
+          Thread.sleep(connectTimeout);
+          throw new ConnectException("connection timed out: " + playerId);
+        }
+        Thread.sleep(behaviour == Behaviour.HUNG ? hang : delay[0]);
+        return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+      };
+      return (GameInterface) Proxy.newProxyInstance(GameInterface.class.getClassLoader(),
+          new Class<?>[]{GameInterface.class}, handler);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.p2p.maze;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * FailureDetectorBenchmark
+ * <p>
+ * Detection latency and false suspicions of the failure detectors, on a simulated clock.
+ * The watched server answers a heartbeat every interval over a network adding exponential jitter, and stalls now
+ * and then (GC pauses, load spikes) with exponentially distributed lengths; a stalled server answers when the stall
+ * ends. The watcher checks once per interval, like the keep alive timer.
+ * <p>
+ * False suspicions are counted over hours of a healthy server, the watch starting over after each one.
+ * Detection latency is the time from a crash at a random moment to the suspicion.
+ * <p>
+ * Usage: java com.p2p.maze.FailureDetectorBenchmark [jitter ms] [stalls per minute] [mean stall ms] [hours]
+ */
+public class FailureDetectorBenchmark {
+
+  private static final int CRASHES = 2000;
+
+  public static void main(String[] args) {
+    double jitter = args.length > 0 ? Double.parseDouble(args[0]) : 10;
+    double stallsPerMinute = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+    double meanStall = args.length > 2 ? Double.parseDouble(args[2]) : 150;
+    int hours = args.length > 3 ? Integer.parseInt(args[3]) : 24;
+
+    BenchSupport.report("Failure detector benchmark: jitter %.0f ms, %.1f stalls/min of %.0f ms on average, %d h",
+        jitter, stallsPerMinute, meanStall, hours);
+
+    Load load = new Load(jitter, stallsPerMinute / 60000.0, meanStall);
+    run("timeout 1000 ms, 1000 ms pings", 1000, () -> new TimeoutFailureDetector(1000), load, hours);
+    run("timeout 300 ms, 100 ms pings", 100, () -> new TimeoutFailureDetector(300), load, hours);
+    for (double threshold : new double[] {3, 8, 12, 16}) {
+      run(String.format("phi %.0f, 100 ms pings", threshold), 100,
+          () -> new PhiAccrualFailureDetector(threshold, 100, 50, 100, 100), load, hours);
+    }
+  }
+
+  /**
+   * Network jitter and server stalls
+   */
+  private static class Load {
+    final double jitter;
+    final double stallRate;
+    final double meanStall;
+
+    Load(double jitter, double stallRate, double meanStall) {
+      this.jitter = jitter;
+      this.stallRate = stallRate;
+      this.meanStall = meanStall;
+    }
+  }
+
+  /**
+   * A healthy server on the simulated clock: when each heartbeat reaches the watcher
+   */
+  private static class Server {
+    final long interval;
+    final Load load;
+    final Random random;
+    long nextSend;
+    long stallStart;
+    long stallEnd;
+
+    Server(long interval, Load load, Random random, long now) {
+      this.interval = interval;
+      this.load = load;
+      this.random = random;
+      this.nextSend = now + interval;
+      scheduleStall(now);
+    }
+
+    private void scheduleStall(long after) {
+      stallStart = after + (long) exponential(1 / load.stallRate);
+      stallEnd = stallStart + (long) exponential(load.meanStall);
+    }
+
+    /**
+     * @return arrival time of the next heartbeat
+     */
+    long next() {
+      long send = nextSend;
+      nextSend += interval;
+      while (send >= stallEnd) {
+        scheduleStall(stallEnd);
+      }
+      if (send >= stallStart) {
+        send = stallEnd;
+        nextSend = Math.max(nextSend, stallEnd + interval);
+      }
+      return send + 1 + (long) exponential(load.jitter);
+    }
+
+    private double exponential(double mean) {
+      return -mean * Math.log(1 - random.nextDouble());
+    }
+  }
+
+  private static void run(String name, long interval, Supplier<FailureDetector> detectors, Load load, int hours) {
+    Random random = new Random(42);
+
+    // healthy server: every suspicion is a false one
+    long end = hours * 3600_000L;
+    int falseSuspicions = 0;
+    FailureDetector detector = detectors.get();
+    detector.heartbeat(0);
+    Server server = new Server(interval, load, random, 0);
+    long arrival = server.next();
+    for (long now = interval; now < end; now += interval) {
+      while (arrival <= now) {
+        detector.heartbeat(arrival);
+        arrival = server.next();
+      }
+      if (!detector.isAvailable(now)) {
+        falseSuspicions++;
+        detector = detectors.get();
+        detector.heartbeat(now);
+      }
+    }
+
+    // crash at a random moment after a minute of history
+    long[] latencies = new long[CRASHES];
+    for (int i = 0; i < CRASHES; i++) {
+      detector = detectors.get();
+      detector.heartbeat(0);
+      server = new Server(interval, load, random, 0);
+      long crash = 60_000 + random.nextInt((int) interval * 10);
+      arrival = server.next();
+      long now = interval;
+      while (true) {
+        while (arrival <= now && arrival <= crash) {
+          detector.heartbeat(arrival);
+          arrival = server.next();
+        }
+        if (!detector.isAvailable(now)) {
+          if (now < crash) {
+            // suspected before the crash, start over
+            detector = detectors.get();
+            detector.heartbeat(now);
+          } else {
+            break;
+          }
+        }
+        now += interval;
+      }
+      latencies[i] = now - crash;
+    }
+
+    BenchSupport.report("%-32s false suspicions %6.2f /h | detection ms mean %5d p50 %5d p99 %5d", name,
+        (double) falseSuspicions / hours, (long) Arrays.stream(latencies).average().orElse(0),
+        BenchSupport.percentile(latencies, 50), BenchSupport.percentile(latencies, 99));
+  }
+}
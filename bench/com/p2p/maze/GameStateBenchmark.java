@@ -0,0 +1,204 @@
+package com.p2p.maze;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * GameStateBenchmark
+ * <p>
+ * Baseline cost of the GameState operations on the primary: move, move onto a treasure (collect and respawn),
+ * addPlayer, exitPlayer, toString, and the serialization of the whole GameState as shipped to peers.
+ * Runs every operation over grid sizes N, player densities and treasure counts K.
+ * <p>
+ * Follows the JMH average-time recipe: warm-up iterations, then measurement iterations of a fixed duration,
+ * reported as mean ns/op with the standard deviation across iterations. Setup an operation needs (placing a player
+ * next to a treasure, re-adding an exited player) is excluded from the timing. Results are consumed into a sink so
+ * the JIT cannot drop the work.
+ * <p>
+ * Usage: java com.p2p.maze.GameStateBenchmark [iteration ms] [N ...]
+ */
+public class GameStateBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int MEASURED_ITERATIONS = 5;
+  private static final double[] DENSITIES = {0.1, 0.5, 0.9};
+  private static final int[][] STEPS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+
+  // consumed results, keeps the measured work alive
+  private static long sink;
+
+  /**
+   * One invocation of an operation
+   *
+   * @return nanoseconds spent in the measured part
+   */
+  private interface Invocation {
+    long invoke();
+  }
+
+  public static void main(String[] args) {
+    int iterationMillis = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    List<Integer> sizes = new ArrayList<>();
+    for (int i = 1; i < args.length; i++) {
+      sizes.add(Integer.parseInt(args[i]));
+    }
+    if (sizes.isEmpty()) {
+      sizes.add(15);
+      sizes.add(50);
+      sizes.add(150);
+    }
+
+    BenchSupport.report("GameState benchmark: %d warm-up + %d x %d ms iterations per operation",
+        WARMUP_ITERATIONS, MEASURED_ITERATIONS, iterationMillis);
+    BenchSupport.report("%5s | %7s | %5s | %-12s | %14s | %10s", "N", "players", "K", "operation", "ns/op", "bytes");
+
+    for (int n : sizes) {
+      for (int k : new int[] {10, n}) {
+        for (double density : DENSITIES) {
+          // the maze has room for Short.MAX_VALUE players at most
+          int players = Math.min(Math.max(2, (int) (n * n * density) - k), Short.MAX_VALUE - 1024);
+          run(n, k, players, iterationMillis);
+        }
+      }
+    }
+    BenchSupport.report("(sink %d)", sink);
+  }
+
+  private static void run(final int n, final int k, final int players, int iterationMillis) {
+    final GameState gameState = BenchSupport.newGameState(n, k, players);
+    final Player[] movers = gameState.getPlayers().values().toArray(new Player[0]);
+    final Random random = new Random(42);
+    final String label = String.format("%5d | %7d | %5d", n, players, k);
+
+    measure(label, "move", iterationMillis, () -> {
+      long start = System.nanoTime();
+      boolean updated = BenchSupport.randomMove(gameState, movers, random);
+      long elapsed = System.nanoTime() - start;
+      gameState.drainDeltas();
+      sink += updated ? 1 : 0;
+      return elapsed;
+    });
+
+    final int[] cursor = {0};
+    measure(label, "collect", iterationMillis, () -> {
+      // step a neighbour of a treasure onto it, placing a player there first if the neighbour cell is empty
+      for (int scanned = 0; scanned < n * n; scanned++) {
+        int index = cursor[0];
+        cursor[0] = (index + 1) % (n * n);
+        int x = index % n;
+        int y = index / n;
+        if (!"*".equals(gameState.getCell(x, y))) {
+          continue;
+        }
+        for (int[] step : STEPS) {
+          int fromX = x - step[0];
+          int fromY = y - step[1];
+          if (fromX < 0 || fromY < 0 || fromX >= n || fromY >= n) {
+            continue;
+          }
+          String neighbour = gameState.getCell(fromX, fromY);
+          Player player;
+          if (neighbour == null) {
+            player = movers[random.nextInt(movers.length)];
+            gameState.relocatePlayer(player.getPlayerId(), new Position(fromX, fromY), player.getScore());
+          } else if (!"*".equals(neighbour)) {
+            player = gameState.getPlayer(neighbour);
+          } else {
+            continue;
+          }
+          long start = System.nanoTime();
+          boolean updated = gameState.move(player, step[0], step[1]);
+          long elapsed = System.nanoTime() - start;
+          gameState.drainDeltas();
+          sink += updated ? player.getScore() : 0;
+          return elapsed;
+        }
+      }
+      return -1;
+    });
+
+    final int[] joined = {0};
+    measure(label, "addPlayer", iterationMillis, () -> {
+      Player player = new Player("j" + joined[0]++, "127.0.0.1", 1099);
+      long start = System.nanoTime();
+      gameState.addPlayer(player);
+      long elapsed = System.nanoTime() - start;
+      gameState.exitPlayer(player);
+      gameState.drainDeltas();
+      return elapsed;
+    });
+
+    measure(label, "exitPlayer", iterationMillis, () -> {
+      Player player = new Player("j" + joined[0]++, "127.0.0.1", 1099);
+      gameState.addPlayer(player);
+      long start = System.nanoTime();
+      boolean exited = gameState.exitPlayer(player);
+      long elapsed = System.nanoTime() - start;
+      gameState.drainDeltas();
+      sink += exited ? 1 : 0;
+      return elapsed;
+    });
+
+    measure(label, "toString", iterationMillis, () -> {
+      long start = System.nanoTime();
+      String text = gameState.toString();
+      long elapsed = System.nanoTime() - start;
+      sink += text.length();
+      return elapsed;
+    });
+
+    final byte[][] serialized = {BenchSupport.serialize(gameState)};
+    measure(label, "serialize", iterationMillis, serialized[0].length, () -> {
+      long start = System.nanoTime();
+      serialized[0] = BenchSupport.serialize(gameState);
+      long elapsed = System.nanoTime() - start;
+      sink += serialized[0].length;
+      return elapsed;
+    });
+
+    measure(label, "deserialize", iterationMillis, serialized[0].length, () -> {
+      long start = System.nanoTime();
+      GameState copy = BenchSupport.deserialize(serialized[0]);
+      long elapsed = System.nanoTime() - start;
+      sink += copy.getVersion();
+      return elapsed;
+    });
+  }
+
+  private static void measure(String label, String operation, int iterationMillis, Invocation invocation) {
+    measure(label, operation, iterationMillis, -1, invocation);
+  }
+
+  private static void measure(String label, String operation, int iterationMillis, int bytes,
+                              Invocation invocation) {
+    double[] results = new double[MEASURED_ITERATIONS];
+    for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+      long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+      long measured = 0;
+      long ops = 0;
+      while (System.nanoTime() < deadline) {
+        long elapsed = invocation.invoke();
+        if (elapsed >= 0) {
+          measured += elapsed;
+          ops++;
+        }
+      }
+      if (iteration >= WARMUP_ITERATIONS) {
+        results[iteration - WARMUP_ITERATIONS] = ops == 0 ? Double.NaN : measured / (double) ops;
+      }
+    }
+
+    double mean = 0;
+    for (double result : results) {
+      mean += result / results.length;
+    }
+    double variance = 0;
+    for (double result : results) {
+      variance += (result - mean) * (result - mean) / (results.length - 1);
+    }
+    BenchSupport.report("%s | %-12s | %14s | %10s", label, operation,
+        Double.isNaN(mean) ? "n/a" : String.format("%.0f +- %.0f", mean, Math.sqrt(variance)),
+        bytes < 0 ? "" : Integer.toString(bytes));
+  }
+}
@@ -0,0 +1,52 @@
+package com.p2p.maze;
+
+/**
+ * InterestBenchmark
+ * <p>
+ * What one player downloads per refresh as the maze grows: the whole GameState against the GameView of its area
+ * of interest (a window of the given radius plus the scoreboard), with 1000 players spread over the maze.
+ * <p>
+ * Usage: java com.p2p.maze.InterestBenchmark [radius] [players] [N ...]
+ */
+public class InterestBenchmark {
+
+  public static void main(String[] args) {
+    int radius = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    int players = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int[] sizes = {50, 100, 200, 400, 800};
+    if (args.length > 2) {
+      sizes = new int[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        sizes[i - 2] = Integer.parseInt(args[i]);
+      }
+    }
+
+    BenchSupport.report("Interest benchmark: %d players, area of interest radius %d", players, radius);
+    BenchSupport.report("%5s | %15s | %15s | %13s | %13s", "N", "GameState bytes", "GameView bytes", "state us", "view us");
+    for (int n : sizes) {
+      GameState gameState = BenchSupport.newGameState(n, n, Math.min(players, n * n / 2));
+      Player viewer = gameState.getPlayers().values().iterator().next();
+      int centerX = viewer.getPosition().posX;
+      int centerY = viewer.getPosition().posY;
+
+      int stateBytes = 0;
+      int viewBytes = 0;
+      long stateNanos = 0;
+      long viewNanos = 0;
+      int rounds = 200;
+      for (int round = 0; round < 2 * rounds; round++) { // first half warms up
+        long start = System.nanoTime();
+        stateBytes = BenchSupport.serialize(gameState).length;
+        long middle = System.nanoTime();
+        viewBytes = BenchSupport.serialize(gameState.view(centerX, centerY, radius)).length;
+        long end = System.nanoTime();
+        if (round >= rounds) {
+          stateNanos += middle - start;
+          viewNanos += end - middle;
+        }
+      }
+      BenchSupport.report("%5d | %15d | %15d | %13.1f | %13.1f", n, stateBytes, viewBytes, stateNanos / 1e3 / rounds,
+          viewNanos / 1e3 / rounds);
+    }
+  }
+}
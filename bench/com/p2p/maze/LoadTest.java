@@ -0,0 +1,346 @@
+package com.p2p.maze;
+
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LoadTest
+ * <p>
+ * Automated load generator: starts a Tracker and N Game peers in this JVM, drives random commands at a fixed rate
+ * per player and kills the primary and the backup in turn. Reports command throughput and latency, how long each
+ * failover took to settle, and every consistency violation found once the game is quiet again.
+ * <p>
+ * A kill shuts the peer's transport, keep-alive timers and replicator down, so the other peers see it as a crash.
+ * Peers talk over the transport chosen with -Dmaze.transport, exactly as separate processes would.
+ * <p>
+ * Usage: java com.p2p.maze.LoadTest [port] [players] [seconds] [commands/s per player] [kill every s] [N] [K]
+ */
+public class LoadTest {
+
+  // keep the references, loggers are only weakly held by the LogManager
+  private static final List<Logger> QUIET = new ArrayList<>();
+
+  private static final long RECOVERY_TIMEOUT_MILLIS = 30000;
+  private static final long SETTLE_TIMEOUT_MILLIS = 5000;
+
+  private static class Peer {
+    final String id;
+    final Game game;
+    final long[] latencies;
+    int count;
+    int failed;
+    volatile boolean killed;
+    Thread driver;
+
+    Peer(String id, Game game, int maxCommands) {
+      this.id = id;
+      this.game = game;
+      this.latencies = new long[maxCommands];
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 21399;
+    int players = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+    int rate = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+    int killEvery = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+    int n = args.length > 5 ? Integer.parseInt(args[5]) : 15;
+    int k = args.length > 6 ? Integer.parseInt(args[6]) : 10;
+
+    for (String name : new String[] {"Game", "GameState", "Tracker", "Transport", "NioTransport", "PeerStubCache",
+        "BackupReplicator"}) {
+      Logger logger = Logger.getLogger(name);
+      logger.setLevel(Level.OFF);
+      QUIET.add(logger);
+    }
+
+    Transport trackerTransport = Transport.fromSystemProperties();
+    if (trackerTransport instanceof RmiTransport) {
+      LocateRegistry.createRegistry(port);
+    }
+    Tracker tracker = new Tracker(n, k);
+    trackerTransport.exportTracker(tracker, port);
+
+    BenchSupport.report("Load test: %d players on %dx%d with %d treasures, %d commands/s each for %d s, kill every %d s"
+        + ", transport %s", players, n, n, k, rate, seconds, killEvery, System.getProperty("maze.transport", "rmi"));
+
+    long joinStart = System.nanoTime();
+    List<Peer> peers = new ArrayList<>();
+    for (int i = 0; i < players; i++) {
+      String id = BenchSupport.playerId(i);
+      Game game = new Game(id, "127.0.0.1", port, Transport.fromSystemProperties());
+      game.setHeadless(true);
+      game.start("127.0.0.1", port);
+      peers.add(new Peer(id, game, rate * seconds + 16));
+    }
+    BenchSupport.report("%d players joined in %d ms", players, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - joinStart));
+
+    // every player fits in the first room the tracker opens
+    String room = peers.get(0).game.getRoomId();
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+    for (int i = 0; i < peers.size(); i++) {
+      Peer peer = peers.get(i);
+      peer.driver = new Thread(() -> drive(peer, rate, deadline, new Random(peer.id.hashCode())), "driver-" + peer.id);
+      peer.driver.start();
+    }
+
+    List<Long> recoveries = new ArrayList<>();
+    boolean killPrimary = true;
+    long nextKill = start + TimeUnit.SECONDS.toNanos(killEvery);
+    while (killEvery > 0 && nextKill < deadline) {
+      TimeUnit.NANOSECONDS.sleep(Math.max(0, nextKill - System.nanoTime()));
+      // read the servers before the failover changes them
+      TrackerState servers = tracker.getTrackerState(room);
+      Player victim = killPrimary ? servers.getPrimary() : servers.getBackup();
+      String role = killPrimary ? "primary" : "backup";
+      killPrimary = !killPrimary;
+      Peer peer = victim == null ? null : find(peers, victim.getPlayerId());
+      if (peer == null || peer.killed) {
+        nextKill += TimeUnit.SECONDS.toNanos(killEvery);
+        continue;
+      }
+
+      long killedAt = System.nanoTime();
+      peer.killed = true;
+      peer.game.shutdown();
+      long recovered = awaitRecovery(tracker, room, peers);
+      if (recovered < 0) {
+        BenchSupport.report("killed %s %s: no new primary/backup pair within %d ms", role, peer.id,
+            RECOVERY_TIMEOUT_MILLIS);
+      } else {
+        long millis = TimeUnit.NANOSECONDS.toMillis(recovered - killedAt);
+        recoveries.add(millis);
+        BenchSupport.report("killed %s %s: recovered in %d ms", role, peer.id, millis);
+      }
+      nextKill += TimeUnit.SECONDS.toNanos(killEvery);
+    }
+
+    for (Peer peer : peers) {
+      peer.driver.join();
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    int total = 0;
+    int failed = 0;
+    for (Peer peer : peers) {
+      total += peer.count;
+      failed += peer.failed;
+    }
+    long[] all = new long[total];
+    int offset = 0;
+    for (Peer peer : peers) {
+      System.arraycopy(peer.latencies, 0, all, offset, peer.count);
+      offset += peer.count;
+    }
+
+    BenchSupport.report("");
+    BenchSupport.report("commands        %d (%d failed)", total, failed);
+    BenchSupport.report("commands/s      %.0f", total / elapsed);
+    BenchSupport.report("latency us      p50 %.0f | p99 %.0f | p99.9 %.0f | max %.0f",
+        BenchSupport.percentile(all, 50) / 1000.0, BenchSupport.percentile(all, 99) / 1000.0,
+        BenchSupport.percentile(all, 99.9) / 1000.0, BenchSupport.percentile(all, 100) / 1000.0);
+    if (!recoveries.isEmpty()) {
+      long max = 0;
+      long sum = 0;
+      for (long millis : recoveries) {
+        max = Math.max(max, millis);
+        sum += millis;
+      }
+      BenchSupport.report("failover ms     %d kills | mean %d | max %d", recoveries.size(), sum / recoveries.size(), max);
+    }
+
+    List<String> violations = checkConsistency(tracker, room, peers, n, k);
+    BenchSupport.report("violations      %d", violations.size());
+    for (String violation : violations.subList(0, Math.min(20, violations.size()))) {
+      BenchSupport.report("  %s", violation);
+    }
+
+    for (Peer peer : peers) {
+      if (!peer.killed) {
+        peer.game.shutdown();
+      }
+    }
+    trackerTransport.shutdown();
+    System.exit(violations.isEmpty() ? 0 : 1);
+  }
+
+  /**
+   * Issue random commands at the given rate until the deadline or the peer is killed
+   */
+  private static void drive(Peer peer, int rate, long deadline, Random random) {
+    long period = TimeUnit.SECONDS.toNanos(1) / rate;
+    long next = System.nanoTime() + random.nextInt((int) Math.min(Integer.MAX_VALUE, period));
+    while (!peer.killed && next < deadline && peer.count < peer.latencies.length) {
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      // mostly moves, now and then a refresh of the whole maze
+      char command = random.nextInt(10) == 0 ? '0' : (char) ('1' + random.nextInt(4));
+      long commandStart = System.nanoTime();
+      boolean ok = peer.game.handleCommand(command);
+      if (peer.killed) {
+        return;
+      }
+      peer.latencies[peer.count++] = System.nanoTime() - commandStart;
+      if (!ok) {
+        peer.failed++;
+      }
+      next += period;
+    }
+  }
+
+  /**
+   * @return time the tracker names a live primary and backup which agree with it, or -1 on timeout
+   */
+  private static long awaitRecovery(Tracker tracker, String room, List<Peer> peers) throws Exception {
+    long timeout = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECOVERY_TIMEOUT_MILLIS);
+    while (System.nanoTime() < timeout) {
+      if (serversHealthy(tracker.getTrackerState(room), peers)) {
+        return System.nanoTime();
+      }
+      Thread.sleep(5);
+    }
+    return -1;
+  }
+
+  private static boolean serversHealthy(TrackerState servers, List<Peer> peers) throws Exception {
+    if (servers.getPrimary() == null || servers.getBackup() == null) {
+      return false;
+    }
+    Peer primary = find(peers, servers.getPrimary().getPlayerId());
+    Peer backup = find(peers, servers.getBackup().getPlayerId());
+    if (primary == null || backup == null || primary == backup || primary.killed || backup.killed) {
+      return false;
+    }
+    GameState state = primary.game.getGameState();
+    return isPlayer(state.getPrimary(), primary.id) && isPlayer(state.getBackup(), backup.id);
+  }
+
+  private static List<String> checkConsistency(Tracker tracker, String room, List<Peer> peers, int n, int k) throws Exception {
+    List<String> violations = new ArrayList<>();
+    TrackerState servers = tracker.getTrackerState(room);
+    if (!serversHealthy(servers, peers)) {
+      violations.add("tracker does not name a live primary/backup pair: " + servers.getPrimary() + " / "
+          + servers.getBackup());
+      return violations;
+    }
+    Peer primaryPeer = find(peers, servers.getPrimary().getPlayerId());
+    Peer backupPeer = find(peers, servers.getBackup().getPlayerId());
+    GameState primary = primaryPeer.game.getGameState();
+
+    // the backup may still be replaying the last moves
+    long settle = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_TIMEOUT_MILLIS);
+    while (backupPeer.game.getGameState().getVersion() != primary.getVersion() && System.nanoTime() < settle) {
+      Thread.sleep(10);
+    }
+    GameState backup = backupPeer.game.getGameState();
+
+    if (backup.getVersion() != primary.getVersion()) {
+      violations.add(String.format("backup %s at version %d, primary %s at %d", backupPeer.id, backup.getVersion(),
+          primaryPeer.id, primary.getVersion()));
+    }
+    if (!Arrays.deepEquals(primary.getMaze(), backup.getMaze())) {
+      violations.add("backup maze differs from primary maze");
+    }
+
+    Map<String, Player> players = primary.getPlayers();
+    Set<String> positions = new HashSet<>();
+    for (Player player : players.values()) {
+      Position position = player.getPosition();
+      if (!positions.add(position.posX + "," + position.posY)) {
+        violations.add(String.format("%s shares cell [%d, %d]", player.getPlayerId(), position.posX, position.posY));
+      }
+      if (!player.getPlayerId().equals(primary.getCell(position.posX, position.posY))) {
+        violations.add(String.format("%s not in its cell [%d, %d]", player.getPlayerId(), position.posX,
+            position.posY));
+      }
+      Player onBackup = backup.getPlayer(player.getPlayerId());
+      if (onBackup == null) {
+        violations.add(player.getPlayerId() + " missing on backup");
+      } else if (!samePlace(player, onBackup)) {
+        violations.add(String.format("backup has %s, primary has %s", onBackup, player));
+      }
+    }
+    if (backup.getPlayers().size() != players.size()) {
+      violations.add(String.format("backup has %d players, primary %d", backup.getPlayers().size(), players.size()));
+    }
+
+    int treasures = 0;
+    for (String[] row : primary.getMaze()) {
+      for (String cell : row) {
+        if ("*".equals(cell)) {
+          treasures++;
+        }
+      }
+    }
+    int expected = Math.min(k, n * n - players.size());
+    if (treasures != expected) {
+      violations.add(String.format("%d treasures in the maze, expected %d", treasures, expected));
+    }
+
+    for (Peer peer : peers) {
+      Player player = players.get(peer.id);
+      if (peer.killed) {
+        if (player != null) {
+          violations.add("killed player " + peer.id + " still in the game");
+        }
+        continue;
+      }
+      if (player == null) {
+        violations.add("live player " + peer.id + " missing from the game");
+        continue;
+      }
+      // every player must see itself where the primary has it
+      Player own = peer.game.getGameState().getPlayer(peer.id);
+      if (own == null || !samePlace(player, own)) {
+        violations.add(String.format("%s sees itself as %s, primary has %s", peer.id, own, player));
+      }
+      // with pushes on, every player is brought to the primary's version without asking
+      if (!"false".equals(System.getProperty("maze.push")) && peer != primaryPeer && peer != backupPeer) {
+        while (peer.game.getGameState().getVersion() != primary.getVersion() && System.nanoTime() < settle) {
+          Thread.sleep(10);
+        }
+        if (peer.game.getGameState().getVersion() != primary.getVersion()) {
+          violations.add(String.format("%s at version %d after pushes, primary at %d", peer.id,
+              peer.game.getGameState().getVersion(), primary.getVersion()));
+        }
+      }
+    }
+    return violations;
+  }
+
+  private static boolean samePlace(Player expected, Player actual) {
+    return expected.getScore() == actual.getScore()
+        && expected.getPosition().posX == actual.getPosition().posX
+        && expected.getPosition().posY == actual.getPosition().posY;
+  }
+
+  private static boolean isPlayer(Player player, String playerId) {
+    return player != null && player.getPlayerId().equals(playerId);
+  }
+
+  private static Peer find(List<Peer> peers, String playerId) {
+    for (Peer peer : peers) {
+      if (peer.id.equals(playerId)) {
+        return peer;
+      }
+    }
+    return null;
+  }
+}
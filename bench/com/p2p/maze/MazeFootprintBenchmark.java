@@ -0,0 +1,72 @@
+package com.p2p.maze;
+
+/**
+ * MazeFootprintBenchmark
+ * <p>
+ * Compare the heap footprint and serialized size of the legacy String[][] maze against the short[] cells
+ * now held by GameState, for a few maze sizes.
+ * <p>
+ * Usage: java com.p2p.maze.MazeFootprintBenchmark [N ...]
+ */
+public class MazeFootprintBenchmark {
+
+  private static final int COPIES = 20;
+
+  public static void main(String[] args) {
+    int[] sizes = {50, 200, 1000};
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+
+    BenchSupport.report("%6s | %7s | %16s | %16s | %18s | %18s", "N", "players",
+        "String[][] heap", "short[] heap", "legacy state wire", "GameState wire");
+    for (int n : sizes) {
+      int players = Math.min(n * n / 20, 5000);
+      GameState gameState = BenchSupport.newGameState(n, n, players);
+      String[][] maze = gameState.getMaze();
+
+      long legacyHeap = retainedBytes(() -> gameState.getMaze());
+      long compactHeap = retainedBytes(() -> new short[n * n]);
+
+      // the legacy GameState shipped the player map next to the String[][] maze
+      int legacyWire = BenchSupport.serialize(new Object[]{gameState.getPlayers(), maze}).length;
+      int compactWire = BenchSupport.serialize(gameState).length;
+
+      BenchSupport.report("%6d | %7d | %16s | %16s | %18s | %18s", n, players,
+          kb(legacyHeap), kb(compactHeap), kb(legacyWire), kb(compactWire));
+    }
+  }
+
+  private interface Allocation {
+    Object allocate();
+  }
+
+  // average heap retained by one object, measured over a few live copies
+  private static long retainedBytes(Allocation allocation) {
+    Object[] copies = new Object[COPIES];
+    long before = usedHeap();
+    for (int i = 0; i < COPIES; i++) {
+      copies[i] = allocation.allocate();
+    }
+    long after = usedHeap();
+    if (copies[COPIES - 1] == null) {
+      throw new IllegalStateException();
+    }
+    return Math.max(0, (after - before) / COPIES);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static String kb(long bytes) {
+    return String.format("%.1f KB", bytes / 1024.0);
+  }
+}
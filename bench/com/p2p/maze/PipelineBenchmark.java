@@ -0,0 +1,234 @@
+package com.p2p.maze;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PipelineBenchmark
+ * <p>
+ * Moves per second one player gets through a primary and its backup, sending one move at a time against keeping
+ * maze.pipeline.depth moves in flight. Peers are in this JVM behind proxies that copy arguments and results like a
+ * remote call, and add half the round trip time plus jitter each way, so pipelined moves overtake each other.
+ * A share of the move requests is delivered twice, the copy arriving a little later, like a request resent after
+ * a timeout; the player's final position on the primary is checked against playing its moves exactly once, in order.
+ * <p>
+ * Usage: java com.p2p.maze.PipelineBenchmark [moves] [rtt ms] [jitter ms] [duplicated share]
+ */
+public class PipelineBenchmark {
+
+  // keep the reference, loggers are only weakly held by the LogManager
+  private static final List<Logger> QUIET = new ArrayList<>();
+
+  private static final char[] MOVES = {'1', '2', '3', '4'};
+
+  private static int runs;
+
+  public static void main(String[] args) throws Exception {
+    int moves = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    double rtt = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+    double jitter = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+    double duplicated = args.length > 3 ? Double.parseDouble(args[3]) : 0.05;
+
+    for (String name : new String[] {"Game", "GameState", "Tracker", "FanOut", "PeerStubCache", "BackupReplicator",
+        "FailureDetector", "Metrics"}) {
+      Logger logger = Logger.getLogger(name);
+      logger.setLevel(Level.OFF);
+      QUIET.add(logger);
+    }
+
+    BenchSupport.report("Pipeline benchmark: %d moves, rtt %.1f ms, jitter %.1f ms, %.0f%% of moves delivered twice",
+        moves, rtt, jitter, duplicated * 100);
+
+    // warm up the proxies and the move path before measuring
+    run(moves / 5, 4, rtt, jitter, duplicated, false);
+
+    for (double share : new double[] {0, duplicated}) {
+      for (int depth : new int[] {1, 4, 16}) {
+        run(moves, depth, rtt, jitter, share, true);
+      }
+    }
+  }
+
+  private static void run(int moves, int depth, double rtt, double jitter, double duplicated, boolean print)
+      throws Exception {
+    System.setProperty("maze.pipeline.depth", String.valueOf(depth));
+    FakeTransport transport = new FakeTransport(new Tracker(30, 0), rtt, jitter, duplicated);
+
+    String run = "p" + (++runs);
+    List<Game> games = new ArrayList<>();
+    for (String id : new String[] {run + "-primary", run + "-backup", run + "-player"}) {
+      Game game = new Game(id, "127.0.0.1", 0, transport);
+      game.setHeadless(true);
+      game.start("127.0.0.1", 0);
+      games.add(game);
+    }
+    Game primary = games.get(0);
+    Game client = games.get(2);
+    String clientId = run + "-player";
+
+    // the same moves played once each, in order, on a copy of the primary's state
+    GameState expected = BenchSupport.deserialize(BenchSupport.serialize(primary.getGameState()));
+    Random random = new Random(42);
+    char[] commands = new char[moves];
+    for (int i = 0; i < moves; i++) {
+      commands[i] = MOVES[random.nextInt(MOVES.length)];
+      int dx = commands[i] == '1' ? -1 : commands[i] == '3' ? 1 : 0;
+      int dy = commands[i] == '4' ? -1 : commands[i] == '2' ? 1 : 0;
+      expected.move(expected.getPlayer(clientId), dx, dy);
+    }
+
+    long start = System.nanoTime();
+    for (char command : commands) {
+      client.submitCommand(command);
+    }
+    client.awaitPipeline();
+    long nanos = System.nanoTime() - start;
+
+    Position want = expected.getPlayer(clientId).getPosition();
+    Position got = primary.getGameState().getPlayer(clientId).getPosition();
+    boolean exact = want.posX == got.posX && want.posY == got.posY;
+    long duplicates = transport.duplicates;
+    for (Game game : games) {
+      game.shutdown();
+    }
+    transport.shutdown();
+
+    if (print) {
+      BenchSupport.report("depth %2d, %3d duplicated: %7.1f moves/s, %5.2f ms/move, final position %s",
+          depth, duplicates, moves / (nanos / 1e9), nanos / 1e6 / moves,
+          exact ? "exact" : String.format("WRONG, %s instead of %s", got, want));
+    }
+  }
+
+  /**
+   * Peers are proxies over the Game objects in this JVM; the tracker is called directly
+   */
+  private static class FakeTransport implements Transport {
+    private final TrackerInterface tracker;
+    private final Map<String, GameInterface> games = new ConcurrentHashMap<>();
+    private final Map<String, GameInterface> stubs = new ConcurrentHashMap<>();
+    private final ExecutorService resender = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "resender");
+      thread.setDaemon(true);
+      return thread;
+    });
+    private final double rtt;
+    private final double jitter;
+    private final double duplicated;
+    volatile long duplicates;
+
+    FakeTransport(TrackerInterface tracker, double rtt, double jitter, double duplicated) {
+      this.tracker = tracker;
+      this.rtt = rtt;
+      this.jitter = jitter;
+      this.duplicated = duplicated;
+    }
+
+    @Override
+    public void exportGame(GameInterface game, Player player) {
+      games.put(player.getPlayerId(), game);
+    }
+
+    @Override
+    public void exportTracker(TrackerInterface tracker, int portNumber) {}
+
+    @Override
+    public GameInterface lookupGame(Player player) throws RemoteException, NotBoundException {
+      GameInterface game = games.get(player.getPlayerId());
+      if (game == null) {
+        throw new NotBoundException(player.getPlayerId());
+      }
+      return stubs.computeIfAbsent(player.getPlayerId(), id -> stub(id, game));
+    }
+
+    @Override
+    public TrackerInterface lookupTracker(String ip, int portNumber) {
+      return tracker;
+    }
+
+    @Override
+    public void shutdown() {
+      resender.shutdownNow();
+    }
+
+    private GameInterface stub(String playerId, GameInterface game) {
+      InvocationHandler handler = (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          case "toString":
+            return "FakePeer " + playerId;
+          default:
+            break;
+        }
+        if (method.getName().equals("executeMove") && args.length == 3
+            && ThreadLocalRandom.current().nextDouble() < duplicated) {
+          Object[] copy = copy(args);
+          duplicates++;
+          resender.execute(() -> {
+            try {
+              delay();
+              call(game, method, copy);
+            } catch (Exception e) {
+              // the sender gave up on this copy long ago
+            }
+          });
+        }
+        return call(game, method, args);
+      };
+      return (GameInterface) Proxy.newProxyInstance(GameInterface.class.getClassLoader(),
+          new Class<?>[]{GameInterface.class}, handler);
+    }
+
+    /**
+     * Half a round trip to the peer, the call, half a round trip back, with copies in place of serialization
+     */
+    private Object call(GameInterface game, Method method, Object[] args) throws Exception {
+      delay();
+      Object result;
+      try {
+        result = method.invoke(game, copy(args));
+      } catch (InvocationTargetException e) {
+        throw (Exception) e.getCause();
+      }
+      delay();
+      return result instanceof Serializable ? BenchSupport.deserialize(BenchSupport.serialize((Serializable) result))
+          : result;
+    }
+
+    private void delay() throws InterruptedException {
+      double millis = rtt / 2 + ThreadLocalRandom.current().nextDouble() * jitter;
+      TimeUnit.MICROSECONDS.sleep((long) (millis * 1000));
+    }
+
+    private static Object[] copy(Object[] args) {
+      if (args == null) {
+        return null;
+      }
+      Object[] copy = new Object[args.length];
+      for (int i = 0; i < args.length; i++) {
+        copy[i] = args[i] instanceof Serializable
+            ? BenchSupport.deserialize(BenchSupport.serialize((Serializable) args[i])) : args[i];
+      }
+      return copy;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.p2p.maze;
+
+import java.util.Random;
+
+/**
+ * PlacementBenchmark
+ * <p>
+ * Cost of placing a joining player on a crowded maze at 50%, 90% and 99% occupancy: addPlayer picking from the
+ * free cell index, against the retry loop it replaced (random cells probed until an empty one turns up),
+ * replayed here on the same maze through getCell.
+ * <p>
+ * Usage: java com.p2p.maze.PlacementBenchmark [N] [placements]
+ */
+public class PlacementBenchmark {
+
+  private static final double[] OCCUPANCIES = {0.5, 0.9, 0.99};
+
+  public static void main(String[] args) {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int placements = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    int k = 10;
+
+    BenchSupport.report("Placement benchmark: %dx%d maze, K = %d, %d placements per run", n, n, k, placements);
+    BenchSupport.report("%9s | %-12s | %10s | %10s | %10s | %12s", "occupied", "placement", "mean ns", "p99 ns",
+        "max ns", "cells probed");
+
+    for (double occupancy : OCCUPANCIES) {
+      int players = (int) (n * n * occupancy) - k;
+      GameState gameState = BenchSupport.newGameState(n, k, players);
+      String label = String.format("%8.0f%%", occupancy * 100);
+      for (int round = 0; round < 2; round++) { // first round warms up
+        retryLoop(gameState, n, placements, label, round == 1);
+        freeCellIndex(gameState, placements, label, round == 1);
+      }
+    }
+  }
+
+  private static void freeCellIndex(GameState gameState, int placements, String label, boolean print) {
+    long[] samples = new long[placements];
+    for (int i = 0; i < placements; i++) {
+      Player player = new Player("j" + i, "127.0.0.1", 1099);
+      long start = System.nanoTime();
+      gameState.addPlayer(player);
+      samples[i] = System.nanoTime() - start;
+      gameState.exitPlayer(player);
+      gameState.drainDeltas();
+    }
+    if (print) {
+      report(label, "index", samples, 1);
+    }
+  }
+
+  private static void retryLoop(GameState gameState, int n, int placements, String label, boolean print) {
+    Random random = new Random(42);
+    long[] samples = new long[placements];
+    long probes = 0;
+    for (int i = 0; i < placements; i++) {
+      long start = System.nanoTime();
+      while (true) {
+        probes++;
+        if (gameState.getCell(random.nextInt(n), random.nextInt(n)) == null) {
+          break;
+        }
+      }
+      samples[i] = System.nanoTime() - start;
+    }
+    if (print) {
+      report(label, "retry probes", samples, probes / (double) placements);
+    }
+  }
+
+  private static void report(String label, String placement, long[] samples, double probes) {
+    long total = 0;
+    for (long sample : samples) {
+      total += sample;
+    }
+    BenchSupport.report("%9s | %-12s | %10.0f | %10d | %10d | %12.1f", label, placement, total / (double) samples.length,
+        BenchSupport.percentile(samples, 99), BenchSupport.percentile(samples, 100), probes);
+  }
+}
@@ -0,0 +1,300 @@
+package com.p2p.maze;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PushBenchmark
+ * <p>
+ * Players following the primary's changes by polling every interval against having them pushed through
+ * Subscriptions. A driver moves random players at a fixed rate on a primary-side GameState; every player is an
+ * in-process fake peer a round trip away, and one of them is slow (a long round trip, e.g. a congested link).
+ * Reports the calls and bytes the primary sends per second, how stale the players' views are (time from a change
+ * being applied to a player having it), and how long publishing a change holds up the primary.
+ * <p>
+ * Usage: java com.p2p.maze.PushBenchmark [players] [changes/s] [seconds] [poll interval ms] [rtt ms] [slow rtt ms]
+ * [push window ms]
+ */
+public class PushBenchmark {
+
+  // keep the reference, loggers are only weakly held by the LogManager
+  private static final List<Logger> QUIET = new ArrayList<>();
+
+  private static final int N = 100;
+  private static final int HISTORY_SIZE = 1024;
+  private static final long SETTLE_MILLIS = 10000;
+
+  /**
+   * One player's view: the version it has and how late each change reached it
+   */
+  private static class Client {
+    final Player player;
+    final long rtt;
+    volatile long version;
+    long calls;
+    long bytes;
+    long changes;
+    final List<Long> lags = new ArrayList<>();
+
+    Client(Player player, long rtt, long version) {
+      this.player = player;
+      this.rtt = rtt;
+      this.version = version;
+    }
+
+    synchronized void receive(GameStateDiff diff, int size, Map<Long, Long> applied) {
+      calls++;
+      bytes += size;
+      long now = System.nanoTime();
+      long to = diff.getType() == GameStateDiff.Type.UNCHANGED ? version : diff.getVersion();
+      for (long v = version + 1; v <= to; v++) {
+        Long at = applied.get(v);
+        if (at != null) {
+          lags.add(now - at);
+          changes++;
+        }
+      }
+      version = Math.max(version, to);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int players = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int rate = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    long interval = args.length > 3 ? Long.parseLong(args[3]) : 100;
+    long rtt = args.length > 4 ? Long.parseLong(args[4]) : 2;
+    long slowRtt = args.length > 5 ? Long.parseLong(args[5]) : 300;
+    long window = args.length > 6 ? Long.parseLong(args[6]) : 10;
+
+    for (String name : new String[] {"Subscriptions", "PeerStubCache"}) {
+      Logger logger = Logger.getLogger(name);
+      logger.setLevel(Level.OFF);
+      QUIET.add(logger);
+    }
+
+    BenchSupport.report("Push benchmark: %d players on %dx%d, up to %d changes/s for %d s, poll every %d or %d ms,"
+        + " push window 0 or %d ms, rtt %d ms, one player at %d ms", players, N, N, rate, seconds,
+        Math.max(1, interval / 5), interval, window, rtt, slowRtt);
+
+    // a quiet game and a busy one; polling often enough to be as fresh as pushes costs calls even when quiet
+    for (int changes : new int[] {rate / 10, rate}) {
+      BenchSupport.report("%d changes/s", changes);
+      run(false, players, changes, seconds, Math.max(1, interval / 5), rtt, slowRtt);
+      run(false, players, changes, seconds, interval, rtt, slowRtt);
+      run(true, players, changes, seconds, 0, rtt, slowRtt);
+      run(true, players, changes, seconds, window, rtt, slowRtt);
+    }
+  }
+
+  /**
+   * @param interval ms between two polls, or the push window
+   */
+  private static void run(boolean push, int players, int rate, int seconds, long interval, long rtt, long slowRtt)
+      throws Exception {
+    GameState primary = BenchSupport.newGameState(N, 0, players);
+    Player[] movers = primary.getPlayers().values().toArray(new Player[0]);
+    DeltaHistory history = new DeltaHistory(HISTORY_SIZE);
+    Map<Long, Long> applied = new ConcurrentHashMap<>();
+
+    List<Client> clients = new ArrayList<>();
+    Map<String, Client> byId = new ConcurrentHashMap<>();
+    for (int i = 0; i < movers.length; i++) {
+      Client client = new Client(movers[i], i == 0 ? slowRtt : rtt, primary.getVersion());
+      clients.add(client);
+      byId.put(movers[i].getPlayerId(), client);
+    }
+
+    Metrics metrics = new Metrics();
+    Subscriptions subscriptions = null;
+    List<Thread> pollers = new ArrayList<>();
+    AtomicLong running = new AtomicLong(1);
+    if (push) {
+      subscriptions = new Subscriptions(new PeerStubCache(new FakeTransport(byId, applied)), metrics,
+          version -> catchUp(primary, history, version), 8, 256, interval);
+      for (Client client : clients) {
+        subscriptions.subscribe(client.player, client.version);
+      }
+    } else {
+      for (Client client : clients) {
+        Thread poller = new Thread(() -> {
+          try {
+            while (running.get() == 1 || client.version < primary.getVersion()) {
+              TimeUnit.MILLISECONDS.sleep(interval);
+              TimeUnit.MICROSECONDS.sleep(client.rtt * 500);
+              GameStateDiff diff = catchUp(primary, history, client.version);
+              int size = BenchSupport.serialize(diff).length;
+              TimeUnit.MICROSECONDS.sleep(client.rtt * 500);
+              client.receive(diff, size, applied);
+            }
+          } catch (InterruptedException e) {
+            // run over
+          }
+        }, "poller-" + client.player.getPlayerId());
+        poller.setDaemon(true);
+        pollers.add(poller);
+        poller.start();
+      }
+    }
+
+    Random random = new Random(42);
+    long[] publishNanos = new long[rate * seconds];
+    int changes = 0;
+    long start = System.nanoTime();
+    long pause = TimeUnit.SECONDS.toNanos(1) / rate;
+    while (changes < publishNanos.length) {
+      if (!BenchSupport.randomMove(primary, movers, random)) {
+        continue;
+      }
+      List<GameDelta> deltas = primary.drainDeltas();
+      long now = System.nanoTime();
+      for (GameDelta delta : deltas) {
+        applied.put(delta.getVersion(), now);
+      }
+      history.append(deltas);
+      if (subscriptions != null) {
+        subscriptions.publish(deltas);
+      }
+      publishNanos[changes++] = System.nanoTime() - now;
+      long next = start + changes * pause;
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    running.set(0);
+
+    // let every player catch up with the last change
+    long settle = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+    boolean caughtUp = false;
+    while (!caughtUp && System.nanoTime() < settle) {
+      caughtUp = clients.stream().allMatch(client -> client.version == primary.getVersion());
+      Thread.sleep(10);
+    }
+    if (subscriptions != null) {
+      subscriptions.shutdown();
+    }
+    for (Thread poller : pollers) {
+      poller.interrupt();
+    }
+
+    List<Client> fast = clients.subList(1, clients.size());
+    Client slow = clients.get(0);
+    double secondsRun = elapsed / 1e9;
+    long calls = clients.stream().mapToLong(client -> client.calls).sum();
+    long bytes = clients.stream().mapToLong(client -> client.bytes).sum();
+    String mode = String.format(push ? "push %d ms" : "poll %d ms", interval);
+    BenchSupport.report("%-12s primary sends %7.0f calls/s %8.1f KB/s | publish p99 %5d us | all caught up: %s",
+        mode, calls / secondsRun, bytes / 1024.0 / secondsRun,
+        TimeUnit.NANOSECONDS.toMicros(BenchSupport.percentile(publishNanos, 99)), caughtUp ? "yes" : "NO");
+    BenchSupport.report("%-12s   players: staleness p50 %6.1f ms p99 %6.1f ms, %5.1f changes per call",
+        "", millis(lags(fast), 50), millis(lags(fast), 99), changesPerCall(fast));
+    BenchSupport.report("%-12s   slow one: staleness p50 %6.1f ms p99 %6.1f ms, %5.1f changes per call, %d calls",
+        "", millis(lags(List.of(slow)), 50), millis(lags(List.of(slow)), 99), changesPerCall(List.of(slow)),
+        slow.calls);
+    if (push) {
+      BenchSupport.report("%-12s   queues dropped for a catch up: %d", "",
+          metrics.getCounters().getOrDefault("maze_push_conflated_total", 0L));
+    }
+  }
+
+  /**
+   * What Game answers a player that has version: nothing, the changes after it, or the whole state
+   */
+  private static GameStateDiff catchUp(GameState primary, DeltaHistory history, long version) {
+    return GameStateDiff.since(primary, history, version);
+  }
+
+  private static long[] lags(List<Client> clients) {
+    List<Long> all = new ArrayList<>();
+    for (Client client : clients) {
+      synchronized (client) {
+        all.addAll(client.lags);
+      }
+    }
+    long[] lags = new long[all.size()];
+    for (int i = 0; i < lags.length; i++) {
+      lags[i] = all.get(i);
+    }
+    return lags.length == 0 ? new long[] {0} : lags;
+  }
+
+  private static double millis(long[] lags, double p) {
+    return BenchSupport.percentile(lags, p) / 1e6;
+  }
+
+  private static double changesPerCall(List<Client> clients) {
+    long calls = clients.stream().mapToLong(client -> client.calls).sum();
+    long changes = clients.stream().mapToLong(client -> client.changes).sum();
+    return calls == 0 ? 0 : (double) changes / calls;
+  }
+
+  /**
+   * Players are proxies taking pushes after half their round trip time and answering after the other half
+   */
+  private static class FakeTransport implements Transport {
+    private final Map<String, Client> clients;
+    private final Map<Long, Long> applied;
+
+    FakeTransport(Map<String, Client> clients, Map<Long, Long> applied) {
+      this.clients = clients;
+      this.applied = applied;
+    }
+
+    @Override
+    public void exportGame(GameInterface game, Player player) {}
+
+    @Override
+    public void exportTracker(TrackerInterface tracker, int portNumber) {}
+
+    @Override
+    public GameInterface lookupGame(Player player) throws RemoteException, NotBoundException {
+      Client client = clients.get(player.getPlayerId());
+      InvocationHandler handler = (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          case "toString":
+            return "FakePlayer " + player.getPlayerId();
+          case "pushChanges":
+            GameStateDiff diff = (GameStateDiff) args[0];
+            int size = BenchSupport.serialize(diff).length;
+            try {
+              TimeUnit.MICROSECONDS.sleep(client.rtt * 500);
+              client.receive(diff, size, applied);
+              TimeUnit.MICROSECONDS.sleep(client.rtt * 500);
+            } catch (InterruptedException e) {
+              throw new RemoteException("run over");
+            }
+            return true;
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      };
+      return (GameInterface) Proxy.newProxyInstance(GameInterface.class.getClassLoader(),
+          new Class<?>[]{GameInterface.class}, handler);
+    }
+
+    @Override
+    public TrackerInterface lookupTracker(String ip, int portNumber) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void shutdown() {}
+  }
+}
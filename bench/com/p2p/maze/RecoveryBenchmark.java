@@ -0,0 +1,122 @@
+package com.p2p.maze;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * RecoveryBenchmark
+ * <p>
+ * Time to rebuild a GameState from the CommandLog as the game gets older, with and without periodic snapshots.
+ * Every successful move is appended the way the primary logs it; then a fresh log over the same directory recovers
+ * the state, which is checked against the primary's.
+ * <p>
+ * Usage: java com.p2p.maze.RecoveryBenchmark [N] [K] [players] [snapshotEvery] [fsync]
+ */
+public class RecoveryBenchmark {
+
+  private static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+  public static void main(String[] args) throws IOException {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int k = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int players = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+    long snapshotEvery = args.length > 3 ? Long.parseLong(args[3]) : 10000;
+    boolean fsync = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+    BenchSupport.report("Recovery benchmark: N=%d, K=%d, players=%d, snapshot every %d versions, fsync %s",
+        n, k, players, snapshotEvery, fsync);
+
+    // warm up replay and serialization before measuring
+    run(n, k, players, 20000, snapshotEvery, fsync, false);
+
+    for (int age : new int[] {10000, 50000, 200000}) {
+      run(n, k, players, age, Long.MAX_VALUE, fsync, true);
+      run(n, k, players, age, snapshotEvery, fsync, true);
+    }
+  }
+
+  private static void run(int n, int k, int players, int moves, long snapshotEvery, boolean fsync, boolean print)
+      throws IOException {
+    Path dir = Files.createTempDirectory("maze-wal");
+    try {
+      GameState primary = BenchSupport.newGameState(n, k, players);
+      Player[] movers = primary.getPlayers().values().toArray(new Player[0]);
+      Random random = new Random(42);
+
+      long appendNanos = 0;
+      long snapshotVersion;
+      try (CommandLog log = new CommandLog(dir, SEGMENT_BYTES, snapshotEvery, fsync)) {
+        log.claim();
+        log.snapshot(primary);
+        snapshotVersion = primary.getVersion();
+        for (int i = 0; i < moves; i++) {
+          if (!BenchSupport.randomMove(primary, movers, random)) {
+            continue;
+          }
+          List<GameDelta> deltas = primary.drainDeltas();
+          long start = System.nanoTime();
+          log.append(deltas);
+          appendNanos += System.nanoTime() - start;
+          if (log.snapshotDue()) {
+            log.snapshot(primary);
+            snapshotVersion = primary.getVersion();
+          }
+        }
+      }
+      long diskBytes = usedBytes(dir);
+
+      long start = System.nanoTime();
+      GameState recovered;
+      try (CommandLog log = new CommandLog(dir, SEGMENT_BYTES, snapshotEvery, fsync)) {
+        log.claim();
+        recovered = log.recover();
+      }
+      long recoveryNanos = System.nanoTime() - start;
+
+      if (recovered.getVersion() != primary.getVersion() || !Arrays.deepEquals(recovered.getMaze(), primary.getMaze())) {
+        throw new IllegalStateException(String.format("recovered version %d, primary at %d", recovered.getVersion(),
+            primary.getVersion()));
+      }
+      if (print) {
+        BenchSupport.report("age %7d versions, %-14s tail %7d, recovery %7.1f ms, append %5.2f us/move, log %6d KB",
+            primary.getVersion(), snapshotEvery == Long.MAX_VALUE ? "no snapshots," : "snapshots,",
+            primary.getVersion() - snapshotVersion, recoveryNanos / 1e6, appendNanos / 1e3 / primary.getVersion(),
+            diskBytes / 1024);
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+
+  /**
+   * @return bytes written, not counting the unused end of the mapped segments
+   */
+  private static long usedBytes(Path dir) throws IOException {
+    long bytes = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        byte[] data = Files.readAllBytes(file);
+        int end = data.length;
+        while (end > 0 && data[end - 1] == 0) {
+          end--;
+        }
+        bytes += end;
+      }
+    }
+    return bytes;
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(dir);
+  }
+}
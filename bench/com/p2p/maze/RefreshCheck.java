@@ -0,0 +1,103 @@
+package com.p2p.maze;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * RefreshCheck
+ * <p>
+ * What the primary answers a refresh (getGameStateSince) while moves are made faster than the replicator drains
+ * them into the history: the changes the history holds, never the whole state, unless the player fell out of the
+ * history. Each case is checked and reported; exits with 1 if any answer is wrong.
+ * <p>
+ * Usage: java com.p2p.maze.RefreshCheck [history size] [moves]
+ */
+public class RefreshCheck {
+
+  private static final List<String> failures = new ArrayList<>();
+
+  public static void main(String[] args) {
+    int historySize = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int moves = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    GameState primary = BenchSupport.newGameState(30, 10, 20);
+    Player[] movers = primary.getPlayers().values().toArray(new Player[0]);
+    DeltaHistory history = new DeltaHistory(historySize);
+    Random random = new Random(42);
+
+    // drained changes, then more made but not drained yet
+    long base = primary.getVersion();
+    move(primary, movers, random, 10);
+    history.append(primary.drainDeltas());
+    long drained = primary.getVersion();
+    move(primary, movers, random, 5);
+
+    GameStateDiff diff = GameStateDiff.since(primary, history, base);
+    check("behind, changes not drained yet", diff, GameStateDiff.Type.DELTAS, drained);
+    check("deltas start right after the player's version", diff.getDeltas().get(0).getVersion() == base + 1);
+    check("at the latest drained version", GameStateDiff.since(primary, history, drained),
+        GameStateDiff.Type.UNCHANGED, drained);
+    check("up to date", GameStateDiff.since(primary, history, primary.getVersion()), GameStateDiff.Type.UNCHANGED,
+        primary.getVersion());
+
+    // the player's next change dropped out of the history
+    history.append(primary.drainDeltas());
+    while (primary.getVersion() - base <= historySize) {
+      move(primary, movers, random, 1);
+      history.append(primary.drainDeltas());
+    }
+    check("fell out of the history", GameStateDiff.since(primary, history, base), GameStateDiff.Type.SNAPSHOT,
+        primary.getVersion());
+    check("ahead of this state", GameStateDiff.since(primary, history, primary.getVersion() + 1),
+        GameStateDiff.Type.SNAPSHOT, primary.getVersion());
+
+    // a busy room: the replicator drains every 8 moves, a player refreshes after every move
+    long version = primary.getVersion();
+    history.append(primary.drainDeltas());
+    int snapshots = 0;
+    for (int i = 1; i <= moves; i++) {
+      move(primary, movers, random, 1);
+      if (i % 8 == 0) {
+        history.append(primary.drainDeltas());
+      }
+      diff = GameStateDiff.since(primary, history, version);
+      if (diff.getType() == GameStateDiff.Type.SNAPSHOT) {
+        snapshots++;
+      }
+      version = diff.getVersion();
+    }
+    check("busy room refreshed without snapshots", snapshots == 0);
+    BenchSupport.report("busy room: %d refreshes, %d snapshots", moves, snapshots);
+
+    BenchSupport.report("failures        %d", failures.size());
+    for (String failure : failures) {
+      BenchSupport.report("  %s", failure);
+    }
+    System.exit(failures.isEmpty() ? 0 : 1);
+  }
+
+  private static void move(GameState gameState, Player[] movers, Random random, int count) {
+    for (int made = 0; made < count; ) {
+      if (BenchSupport.randomMove(gameState, movers, random)) {
+        made++;
+      }
+    }
+  }
+
+  private static void check(String name, GameStateDiff diff, GameStateDiff.Type type, long version) {
+    boolean passed = diff.getType() == type && diff.getVersion() == version;
+    report(name, passed, String.format("%s: expected %s at version %d, got %s", name, type, version, diff));
+  }
+
+  private static void check(String name, boolean passed) {
+    report(name, passed, name);
+  }
+
+  private static void report(String name, boolean passed, String failure) {
+    BenchSupport.report("%-50s %s", name, passed ? "ok" : "FAILED");
+    if (!passed) {
+      failures.add(failure);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.p2p.maze;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RegionScalingBenchmark
+ * <p>
+ * One maze cut into 1, 2 and 4 regions, each played by its own primary/backup pair. A tracker and the players run
+ * in this JVM over RMI; every player walks the maze as fast as its commands return, so players cross region borders
+ * and are handed off between primaries. Reports the commands per second, the handoffs, and the share of commands
+ * played by the busiest primary: the load one server carries, which is what caps a single-primary maze. Lost
+ * counts players found in no region's primary state, or in more than one, after the run.
+ * <p>
+ * All primaries share this machine's CPUs here, so total commands/s only grows with regions when there are cores
+ * to spare; on separate hosts each primary brings its own CPU and network.
+ * <p>
+ * Usage: java com.p2p.maze.RegionScalingBenchmark [port] [players] [seconds] [N] [K]
+ */
+public class RegionScalingBenchmark {
+
+  private static final int[] REGIONS = {1, 2, 4};
+  private static final char[] MOVES = {'1', '2', '3', '4'};
+
+  // keep the references, loggers are only weakly held by the LogManager
+  private static final List<Logger> QUIET = new ArrayList<>();
+
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 21599;
+    int players = args.length > 1 ? Integer.parseInt(args[1]) : 24;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    int n = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+    int k = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+    for (String name : new String[] {"Game", "GameState", "Tracker", "Transport", "NioTransport", "PeerStubCache",
+        "BackupReplicator", "Metrics"}) {
+      Logger logger = Logger.getLogger(name);
+      logger.setLevel(Level.OFF);
+      QUIET.add(logger);
+    }
+
+    BenchSupport.report("Region scaling benchmark: %d players on %dx%d with %d treasures, %d s per run", players, n, n,
+        k, seconds);
+    BenchSupport.report("%7s | %10s | %8s | %14s | %9s | %4s", "regions", "commands/s", "handoffs", "busiest primary",
+        "p99 us", "lost");
+    for (int i = 0; i < REGIONS.length; i++) {
+      run(port + i, REGIONS[i], players, seconds, n, k);
+    }
+  }
+
+  /**
+   * @return players not held by exactly one region primary
+   */
+  private static int lost(Tracker tracker, Map<String, Game> games, int regionCount) throws Exception {
+    Map<String, Integer> holders = new HashMap<>();
+    for (int region = 0; region < regionCount; region++) {
+      String room = regionCount > 1 ? RegionDirectory.roomId(region) : games.values().iterator().next().getRoomId();
+      Player primary = tracker.getTrackerState(room).getPrimary();
+      if (primary == null) {
+        continue;
+      }
+      GameState state = games.get(primary.getPlayerId()).getGameState();
+      for (String playerId : state.getPlayers().keySet()) {
+        holders.merge(playerId, 1, Integer::sum);
+      }
+    }
+    int lost = 0;
+    for (String playerId : games.keySet()) {
+      if (holders.getOrDefault(playerId, 0) != 1) {
+        lost++;
+      }
+    }
+    return lost;
+  }
+
+  private static void run(int port, int regionCount, int players, int seconds, int n, int k) throws Exception {
+    Registry registry = LocateRegistry.createRegistry(port);
+    RmiTransport trackerTransport = new RmiTransport();
+    Tracker tracker = new Tracker(n, k, regionCount);
+    trackerTransport.exportTracker(tracker, port);
+
+    List<Game> games = new ArrayList<>();
+    Map<String, Game> byId = new HashMap<>();
+    for (int i = 0; i < players; i++) {
+      Game game = new Game(BenchSupport.playerId(i), "127.0.0.1", port, new RmiTransport());
+      game.setHeadless(true);
+      game.start("127.0.0.1", port);
+      games.add(game);
+      byId.put(BenchSupport.playerId(i), game);
+    }
+
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    final List<Map<String, Integer>> playedBy = new ArrayList<>();
+    final long[][] latencies = new long[players][];
+    final int[] counts = new int[players];
+    final int[] handoffs = new int[players];
+    List<Thread> drivers = new ArrayList<>();
+    for (int i = 0; i < players; i++) {
+      final int index = i;
+      final Game game = games.get(i);
+      final Map<String, Integer> rooms = new HashMap<>();
+      playedBy.add(rooms);
+      latencies[i] = new long[1_000_000];
+      Thread driver = new Thread(() -> {
+        Random random = new Random(index);
+        while (System.nanoTime() < deadline && counts[index] < latencies[index].length) {
+          String room = game.getRoomId();
+          long start = System.nanoTime();
+          game.handleCommand(MOVES[random.nextInt(MOVES.length)]);
+          latencies[index][counts[index]++] = System.nanoTime() - start;
+          rooms.merge(room, 1, Integer::sum);
+          if (!room.equals(game.getRoomId())) {
+            handoffs[index]++;
+          }
+        }
+      });
+      drivers.add(driver);
+      driver.start();
+    }
+    for (Thread driver : drivers) {
+      driver.join();
+    }
+
+    Map<String, Integer> perRoom = new HashMap<>();
+    long total = 0;
+    int handedOff = 0;
+    List<Long> all = new ArrayList<>();
+    for (int i = 0; i < players; i++) {
+      playedBy.get(i).forEach((room, count) -> perRoom.merge(room, count, Integer::sum));
+      total += counts[i];
+      handedOff += handoffs[i];
+      for (int c = 0; c < counts[i]; c++) {
+        all.add(latencies[i][c]);
+      }
+    }
+    long[] samples = new long[all.size()];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = all.get(i);
+    }
+    int busiest = perRoom.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+    BenchSupport.report("%7d | %10.0f | %8d | %13.0f%% | %9d | %4d", regionCount, total / (double) seconds, handedOff,
+        total == 0 ? 0 : 100.0 * busiest / total, samples.length == 0 ? 0 : BenchSupport.percentile(samples, 99) / 1000,
+        lost(tracker, byId, regionCount));
+
+    for (Game game : games) {
+      game.shutdown();
+    }
+    trackerTransport.shutdown();
+    UnicastRemoteObject.unexportObject(registry, true);
+  }
+}
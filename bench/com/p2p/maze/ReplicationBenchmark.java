@@ -0,0 +1,86 @@
+package com.p2p.maze;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ReplicationBenchmark
+ * <p>
+ * Compare primary -> backup replication by full GameState (syncGameState) against GameDelta batches (syncGameDeltas).
+ * Every successful move is serialized the way RMI would ship it and applied on a replica game state.
+ * <p>
+ * Usage: java com.p2p.maze.ReplicationBenchmark [N] [K] [players] [moves]
+ */
+public class ReplicationBenchmark {
+
+  public static void main(String[] args) {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int k = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int players = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+    int moves = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+
+    BenchSupport.report("Replication benchmark: N=%d, K=%d, players=%d, moves=%d", n, k, players, moves);
+
+    // warm up both paths before measuring
+    fullStateSync(n, k, players, moves / 5);
+    deltaSync(n, k, players, moves / 5);
+
+    fullStateSync(n, k, players, moves);
+    deltaSync(n, k, players, moves);
+  }
+
+  private static void fullStateSync(int n, int k, int players, int moves) {
+    GameState primary = BenchSupport.newGameState(n, k, players);
+    Player[] movers = primary.getPlayers().values().toArray(new Player[0]);
+    Random random = new Random(42);
+
+    long bytes = 0;
+    int synced = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < moves; i++) {
+      if (BenchSupport.randomMove(primary, movers, random)) {
+        primary.drainDeltas();
+        byte[] data = BenchSupport.serialize(primary);
+        GameState backup = BenchSupport.deserialize(data);
+        bytes += data.length;
+        synced += backup.getVersion() == primary.getVersion() ? 1 : 0;
+      }
+    }
+    print("full state", bytes, synced, System.nanoTime() - start);
+  }
+
+  private static void deltaSync(int n, int k, int players, int moves) {
+    GameState primary = BenchSupport.newGameState(n, k, players);
+    GameState backup = BenchSupport.deserialize(BenchSupport.serialize(primary));
+    Player[] movers = primary.getPlayers().values().toArray(new Player[0]);
+    Random random = new Random(42);
+
+    long bytes = 0;
+    int synced = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < moves; i++) {
+      if (BenchSupport.randomMove(primary, movers, random)) {
+        byte[] data = BenchSupport.serialize(new ArrayList<>(primary.drainDeltas()));
+        List<GameDelta> deltas = BenchSupport.deserialize(data);
+        bytes += data.length;
+        for (GameDelta delta : deltas) {
+          if (!backup.applyDelta(delta)) {
+            throw new IllegalStateException("gap at " + delta);
+          }
+        }
+        synced += backup.getVersion() == primary.getVersion() ? 1 : 0;
+      }
+    }
+    print("deltas", bytes, synced, System.nanoTime() - start);
+
+    if (!primary.toString().equals(backup.toString())) {
+      throw new IllegalStateException("backup diverged from primary");
+    }
+  }
+
+  private static void print(String mode, long bytes, int synced, long elapsedNanos) {
+    BenchSupport.report("  %-10s | moves synced: %6d | bytes/move: %9.1f | moves/sec: %10.0f",
+        mode, synced, synced == 0 ? 0.0 : (double) bytes / synced, synced * 1e9 / elapsedNanos);
+  }
+}
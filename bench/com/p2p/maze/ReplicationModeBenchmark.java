@@ -0,0 +1,103 @@
+package com.p2p.maze;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReplicationModeBenchmark
+ * <p>
+ * Move latency and replication lag percentiles of BackupReplicator in SYNC and ASYNC mode.
+ * The backup is simulated in process: deltas are serialized, held for the given round-trip time and replayed
+ * on a copy of the game state.
+ * <p>
+ * Usage: java com.p2p.maze.ReplicationModeBenchmark [movers] [moves per mover] [backup rtt us]
+ */
+public class ReplicationModeBenchmark {
+
+  public static void main(String[] args) throws InterruptedException {
+    int movers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int moves = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    long rttMicros = args.length > 2 ? Long.parseLong(args[2]) : 500;
+
+    BenchSupport.report("Replication mode benchmark: movers=%d, moves per mover=%d, backup rtt=%d us",
+        movers, moves, rttMicros);
+    BenchSupport.report("%6s | %12s | %12s | %12s | %12s | %8s", "mode",
+        "move p50 us", "move p99 us", "lag p50 us", "lag p99 us", "syncs");
+    for (int round = 0; round < 2; round++) { // first round warms up
+      for (BackupReplicator.DurabilityMode mode : BackupReplicator.DurabilityMode.values()) {
+        run(mode, movers, round == 0 ? moves / 4 : moves, rttMicros, round == 1);
+      }
+    }
+  }
+
+  private static void run(BackupReplicator.DurabilityMode mode, int movers, final int moves, final long rttMicros,
+                          boolean print) throws InterruptedException {
+    final GameState primary = BenchSupport.newGameState(100, 50, 300);
+    final GameState backup = BenchSupport.deserialize(BenchSupport.serialize(primary));
+    final int[] syncs = new int[1];
+
+    final BackupReplicator replicator = new BackupReplicator(() -> {
+      List<GameDelta> deltas = primary.drainDeltas();
+      if (deltas.isEmpty()) {
+        return true;
+      }
+      List<GameDelta> shipped = BenchSupport.deserialize(BenchSupport.serialize(new ArrayList<>(deltas)));
+      TimeUnit.MICROSECONDS.sleep(rttMicros);
+      for (GameDelta delta : shipped) {
+        if (!backup.applyDelta(delta)) {
+          throw new IllegalStateException("gap at " + delta);
+        }
+      }
+      syncs[0]++;
+      return true;
+    }, primary::getVersion, mode, mode == BackupReplicator.DurabilityMode.SYNC ? 0 : 5, 256);
+
+    final Player[] players = primary.getPlayers().values().toArray(new Player[0]);
+    final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+    final ConcurrentLinkedQueue<Long> lags = new ConcurrentLinkedQueue<>();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < movers; t++) {
+      final Random random = new Random(t);
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < moves; i++) {
+          final long start = System.nanoTime();
+          if (BenchSupport.randomMove(primary, players, random)) {
+            replicator.replicate().thenRun(() -> lags.add(System.nanoTime() - start));
+          }
+          latencies.add(System.nanoTime() - start);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    replicator.requestSync().join();
+    replicator.shutdown();
+
+    if (!primary.toString().equals(backup.toString())) {
+      throw new IllegalStateException("backup diverged from primary");
+    }
+    if (print) {
+      long[] latency = toArray(latencies);
+      long[] lag = toArray(lags);
+      BenchSupport.report("%6s | %12.1f | %12.1f | %12.1f | %12.1f | %8d", mode,
+          BenchSupport.percentile(latency, 50) / 1000.0, BenchSupport.percentile(latency, 99) / 1000.0,
+          BenchSupport.percentile(lag, 50) / 1000.0, BenchSupport.percentile(lag, 99) / 1000.0, syncs[0]);
+    }
+  }
+
+  private static long[] toArray(ConcurrentLinkedQueue<Long> samples) {
+    long[] values = new long[samples.size()];
+    int i = 0;
+    for (Long sample : samples) {
+      values[i++] = sample;
+    }
+    return values;
+  }
+}
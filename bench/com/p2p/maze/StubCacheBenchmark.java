@@ -0,0 +1,89 @@
+package com.p2p.maze;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+
+/**
+ * StubCacheBenchmark
+ * <p>
+ * Latency of a ping and of a move over loopback RMI, looking the peer up in the registry before every call
+ * (as Game used to) against calling through PeerStubCache.
+ * <p>
+ * Usage: java com.p2p.maze.StubCacheBenchmark [registry port] [calls]
+ */
+public class StubCacheBenchmark {
+
+  private interface Call {
+    void call(GameInterface stub) throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 21099;
+    int calls = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    Registry registry = LocateRegistry.createRegistry(port);
+    GameState gameState = BenchSupport.newGameState(50, 25, 100);
+    GameInterface peer = BenchSupport.fakePeer(gameState);
+    registry.rebind("pp", UnicastRemoteObject.exportObject(peer, 0));
+
+    final Player server = new Player("pp", "127.0.0.1", port);
+    final Player[] movers = gameState.getPlayers().values().toArray(new Player[0]);
+    final Random random = new Random(42);
+    final Game.Command[] moves = {Game.Command.MOVE_WEST, Game.Command.MOVE_SOUTH, Game.Command.MOVE_EAST,
+        Game.Command.MOVE_NORTH};
+
+    Call ping = new Call() {
+      @Override
+      public void call(GameInterface stub) throws Exception {
+        stub.ping();
+      }
+    };
+    Call move = new Call() {
+      @Override
+      public void call(GameInterface stub) throws Exception {
+        stub.executeMove(movers[random.nextInt(movers.length)], moves[random.nextInt(moves.length)]);
+      }
+    };
+
+    BenchSupport.report("Stub cache benchmark: loopback registry on port %d, %d calls each", port, calls);
+    BenchSupport.report("%6s | %-16s | %10s | %10s | %10s", "call", "stub", "mean us", "p50 us", "p99 us");
+    for (int round = 0; round < 2; round++) { // first round warms up
+      measure("ping", "lookup per call", server, ping, calls, false, round == 1);
+      measure("ping", "cached", server, ping, calls, true, round == 1);
+      measure("move", "lookup per call", server, move, calls, false, round == 1);
+      measure("move", "cached", server, move, calls, true, round == 1);
+    }
+
+    UnicastRemoteObject.unexportObject(peer, true);
+    UnicastRemoteObject.unexportObject(registry, true);
+  }
+
+  private static void measure(String name, String mode, Player server, Call call, int calls, boolean cached,
+                              boolean print) throws Exception {
+    PeerStubCache cache = new PeerStubCache(new RmiTransport());
+    long[] samples = new long[calls];
+    for (int i = 0; i < calls; i++) {
+      long start = System.nanoTime();
+      GameInterface stub;
+      if (cached) {
+        stub = cache.get(server);
+      } else {
+        stub = (GameInterface) LocateRegistry.getRegistry(server.getIp(), server.getPortNumber())
+            .lookup(server.getPlayerId());
+      }
+      call.call(stub);
+      samples[i] = System.nanoTime() - start;
+    }
+
+    if (print) {
+      long total = 0;
+      for (long sample : samples) {
+        total += sample;
+      }
+      BenchSupport.report("%6s | %-16s | %10.1f | %10.1f | %10.1f", name, mode, total / 1000.0 / calls,
+          BenchSupport.percentile(samples, 50) / 1000.0, BenchSupport.percentile(samples, 99) / 1000.0);
+    }
+  }
+}
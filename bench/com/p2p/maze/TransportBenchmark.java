@@ -0,0 +1,119 @@
+package com.p2p.maze;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * TransportBenchmark
+ * <p>
+ * Loopback throughput and latency of executeMove over RMI and over the NIO transport, for 10, 100 and 1000
+ * simulated players. Every simulated player has its own stub; a pool of driver threads walks over them
+ * issuing blocking calls.
+ * <p>
+ * Usage: java com.p2p.maze.TransportBenchmark [port] [seconds per run] [driver threads]
+ */
+public class TransportBenchmark {
+
+  private static final int[] PLAYERS = {10, 100, 1000};
+  private static final Game.Command[] MOVES = {Game.Command.MOVE_WEST, Game.Command.MOVE_SOUTH,
+      Game.Command.MOVE_EAST, Game.Command.MOVE_NORTH};
+
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 21199;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int drivers = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+    BenchSupport.report("Transport benchmark: loopback executeMove, %d s per run, up to %d driver threads",
+        seconds, drivers);
+    BenchSupport.report("%9s | %7s | %12s | %9s | %9s | %9s", "transport", "players", "calls/s", "p50 us",
+        "p99 us", "p99.9 us");
+
+    Registry registry = LocateRegistry.createRegistry(port);
+    for (int players : PLAYERS) {
+      run("rmi", new RmiTransport(), new RmiTransport(), port, players, seconds, drivers);
+      run("nio", new NioTransport(), new NioTransport(), port + 1, players, seconds, drivers);
+    }
+    UnicastRemoteObject.unexportObject(registry, true);
+  }
+
+  private static void run(String name, Transport serverTransport, Transport clientTransport, int port,
+                          int players, int seconds, int drivers) throws Exception {
+    GameState gameState = BenchSupport.newGameState(50, 25, players);
+    GameInterface peer = BenchSupport.fakePeer(gameState);
+    Player server = new Player("pp", "127.0.0.1", port);
+    if (serverTransport instanceof NioTransport) {
+      System.setProperty("maze.nio.port", Integer.toString(port));
+    }
+    serverTransport.exportGame(peer, server);
+
+    final Player[] movers = gameState.getPlayers().values().toArray(new Player[0]);
+    final GameInterface[] stubs = new GameInterface[players];
+    for (int i = 0; i < players; i++) {
+      stubs[i] = clientTransport.lookupGame(server);
+    }
+
+    // warm up connections and code paths
+    for (int i = 0; i < players; i++) {
+      stubs[i].executeMove(movers[i], Game.Command.GAME_STATE);
+    }
+
+    final int threads = Math.min(drivers, players);
+    final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+    final AtomicBoolean failed = new AtomicBoolean();
+    final List<long[]> samples = new ArrayList<>();
+    final int[] counts = new int[threads];
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int index = t;
+      final long[] latencies = new long[500_000];
+      samples.add(latencies);
+      Thread worker = new Thread(() -> {
+        Random random = new Random(index);
+        int count = 0;
+        int next = index;
+        while (System.nanoTime() < deadline && count < latencies.length) {
+          long start = System.nanoTime();
+          try {
+            stubs[next].executeMove(movers[next], MOVES[random.nextInt(MOVES.length)]);
+          } catch (Exception e) {
+            failed.set(true);
+            return;
+          }
+          latencies[count++] = System.nanoTime() - start;
+          next += threads;
+          if (next >= players) {
+            next = index;
+          }
+        }
+        counts[index] = count;
+      });
+      workers.add(worker);
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    int total = 0;
+    for (int count : counts) {
+      total += count;
+    }
+    long[] all = new long[total];
+    int offset = 0;
+    for (int t = 0; t < threads; t++) {
+      System.arraycopy(samples.get(t), 0, all, offset, counts[t]);
+      offset += counts[t];
+    }
+    BenchSupport.report("%9s | %7d | %12.0f | %9.1f | %9.1f | %9.1f%s", name, players, total / (double) seconds,
+        BenchSupport.percentile(all, 50) / 1000.0, BenchSupport.percentile(all, 99) / 1000.0,
+        BenchSupport.percentile(all, 99.9) / 1000.0, failed.get() ? "  (calls failed)" : "");
+
+    clientTransport.shutdown();
+    serverTransport.shutdown();
+  }
+}
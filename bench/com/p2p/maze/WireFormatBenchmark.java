@@ -0,0 +1,112 @@
+package com.p2p.maze;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * WireFormatBenchmark
+ * <p>
+ * Serialize/deserialize cost and size of GameState with the Externalizable wire format, compared with default
+ * java.io.Serializable on classes shaped like the previous GameState, Player and Position.
+ * <p>
+ * Usage: java com.p2p.maze.WireFormatBenchmark [iterations]
+ */
+public class WireFormatBenchmark {
+
+  private static final int[][] STATES = {
+      // N, K, players
+      {15, 10, 20},
+      {50, 25, 100},
+      {100, 50, 300},
+      {200, 100, 2000},
+  };
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+    BenchSupport.report("%18s | %-14s | %10s | %14s | %14s", "state", "format", "bytes", "serialize ns", "deserialize ns");
+    for (int[] state : STATES) {
+      GameState gameState = BenchSupport.newGameState(state[0], state[1], state[2]);
+      checkRoundTrip(gameState);
+
+      String name = String.format("N=%d K=%d P=%d", state[0], state[1], state[2]);
+      int scaled = Math.max(20, iterations * 20 / state[2]);
+      measure(name, "Serializable", new LegacyGameState(gameState), scaled);
+      measure(name, "Externalizable", gameState, scaled);
+    }
+  }
+
+  private static void checkRoundTrip(GameState gameState) {
+    byte[] data = BenchSupport.serialize(gameState);
+    GameState copy = BenchSupport.deserialize(data);
+    if (!gameState.toString().equals(copy.toString()) || !Arrays.equals(data, BenchSupport.serialize(copy))) {
+      throw new IllegalStateException("GameState does not round-trip");
+    }
+  }
+
+  private static void measure(String name, String format, Serializable state, int iterations) {
+    byte[] data = null;
+    for (int i = 0; i < iterations; i++) {
+      BenchSupport.deserialize(BenchSupport.serialize(state));
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      data = BenchSupport.serialize(state);
+    }
+    long serializeNanos = (System.nanoTime() - start) / iterations;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      BenchSupport.deserialize(data);
+    }
+    long deserializeNanos = (System.nanoTime() - start) / iterations;
+
+    BenchSupport.report("%18s | %-14s | %10d | %14d | %14d", name, format, data.length, serializeNanos, deserializeNanos);
+  }
+
+  // same fields the game objects had before the Externalizable wire format
+  private static class LegacyPosition implements Serializable {
+    int posX;
+    int posY;
+  }
+
+  private static class LegacyPlayer implements Serializable {
+    String playerId;
+    String ip;
+    int portNumber;
+    LegacyPosition position = new LegacyPosition();
+    int score;
+
+    LegacyPlayer(Player player) {
+      playerId = player.getPlayerId();
+      ip = player.getIp();
+      portNumber = player.getPortNumber();
+      position.posX = player.getPosition().posX;
+      position.posY = player.getPosition().posY;
+      score = player.getScore();
+    }
+  }
+
+  private static class LegacyGameState implements Serializable {
+    int n;
+    int k;
+    LegacyPlayer primary;
+    LegacyPlayer backup;
+    String[][] maze;
+    Map<String, LegacyPlayer> playerMap = new HashMap<>();
+
+    LegacyGameState(GameState gameState) {
+      n = gameState.getN();
+      k = gameState.getK();
+      maze = gameState.getMaze();
+      for (Player player : gameState.getPlayers().values()) {
+        playerMap.put(player.getPlayerId(), new LegacyPlayer(player));
+      }
+      primary = playerMap.get(gameState.getPrimary().getPlayerId());
+      backup = playerMap.get(gameState.getBackup().getPlayerId());
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package com.p2p.maze;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler that hands records to another handler on a background thread, so formatting and console writes stay off
+ * the game threads
+ * <p>
+ * Records wait in a bounded queue of maze.log.queue entries (default 8192); when it is full new records are dropped
+ * and counted rather than blocking a move. Pending records are written out on close and at JVM exit.
+ * Set maze.log.async=false to log on the calling thread instead
+ */
+public class AsyncHandler extends Handler {
+
+  private static final boolean ASYNC = Boolean.parseBoolean(System.getProperty("maze.log.async", "true"));
+  private static final int QUEUE_SIZE = Integer.getInteger("maze.log.queue", 8192);
+
+  private final Handler target;
+  private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+  private volatile boolean closed;
+
+  /**
+   * @return the handler wrapped in an AsyncHandler, or itself when maze.log.async is false
+   */
+  public static Handler wrap(Handler target) {
+    return ASYNC ? new AsyncHandler(target) : target;
+  }
+
+  public AsyncHandler(Handler target) {
+    this.target = target;
+    setLevel(target.getLevel());
+    writer = new Thread(this::drain, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-flush"));
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) {
+      return;
+    }
+    // the caller is inferred from the stack, which only the publishing thread still has
+    record.getSourceClassName();
+    if (!queue.offer(record)) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void drain() {
+    try {
+      while (!closed || !queue.isEmpty()) {
+        LogRecord record = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (record != null) {
+          write(record);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void write(LogRecord record) {
+    long lost = dropped.getAndSet(0);
+    if (lost > 0) {
+      LogRecord notice = new LogRecord(Level.WARNING, lost + " log records dropped, queue full");
+      notice.setSourceClassName(AsyncHandler.class.getSimpleName());
+      notice.setSourceMethodName("publish");
+      target.publish(notice);
+    }
+    target.publish(record);
+  }
+
+  @Override
+  public void flush() {
+    target.flush();
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(2));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      target.flush();
+    } catch (RuntimeException e) {
+      reportError("flush failed", e, ErrorManager.FLUSH_FAILURE);
+    }
+  }
+}
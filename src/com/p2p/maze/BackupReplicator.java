@@ -0,0 +1,143 @@
+package com.p2p.maze;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Primary -> backup replication off the move hot path
+ * <p>
+ * Changes are shipped by a single dedicated thread. Requests arriving within the coalescing window,
+ * or while a sync is in flight, share one sync. In SYNC mode a move waits for the sync covering it before
+ * replying; in ASYNC mode it replies at once unless the backup lags more than maxLag versions behind
+ */
+public class BackupReplicator {
+
+  private static final Logger LOGGER = Logger.getLogger(BackupReplicator.class.getSimpleName());
+  private static final LogRateLimiter LIMITED = new LogRateLimiter(LOGGER);
+
+  public enum DurabilityMode {
+    SYNC,  // backup has the change before the player gets a reply
+    ASYNC  // reply first, backup catches up within the bounded lag
+  }
+
+  private final Callable<Boolean> flush;
+  private final LongSupplier version;
+  private final DurabilityMode mode;
+  private final long windowMillis;
+  private final long maxLag;
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "backup-replicator");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // sync scheduled but not started yet, every change recorded before it starts is shipped by it
+  private CompletableFuture<Void> pending;
+  private volatile long replicatedVersion;
+
+  /**
+   * @param flush ship all changes to the backup, true if the backup is in sync afterwards (or there is none)
+   * @param version current game state version
+   */
+  public BackupReplicator(Callable<Boolean> flush, LongSupplier version, DurabilityMode mode, long windowMillis,
+                          long maxLag) {
+    this.flush = flush;
+    this.version = version;
+    this.mode = mode;
+    this.windowMillis = windowMillis;
+    this.maxLag = maxLag;
+  }
+
+  /**
+   * Replicator configured by system properties:
+   * maze.replication.mode (sync | async, default sync), maze.replication.window (ms, default 0 for sync and
+   * 5 for async), maze.replication.maxLag (versions, default 256)
+   */
+  public static BackupReplicator fromSystemProperties(Callable<Boolean> flush, LongSupplier version) {
+    DurabilityMode mode = DurabilityMode.valueOf(System.getProperty("maze.replication.mode", "sync").toUpperCase());
+    long window = Long.getLong("maze.replication.window", mode == DurabilityMode.SYNC ? 0 : 5);
+    long maxLag = Long.getLong("maze.replication.maxLag", 256);
+    LOGGER.info(String.format("replication mode: %s, window: %d ms, max lag: %d", mode, window, maxLag));
+    return new BackupReplicator(flush, version, mode, window, maxLag);
+  }
+
+  /**
+   * Ship the changes made so far, waiting for the backup as the durability mode requires
+   *
+   * @return completes when the backup has been sent these changes
+   */
+  public CompletableFuture<Void> replicate() {
+    CompletableFuture<Void> sync = requestSync();
+    if (mode == DurabilityMode.SYNC || lag() > maxLag) {
+      try {
+        sync.join();
+      } catch (RuntimeException e) {
+        LIMITED.severe("replication", () -> "replication error: " + e.toString());
+      }
+    }
+    return sync;
+  }
+
+  /**
+   * @return completes once a sync that started after this call has finished
+   */
+  public synchronized CompletableFuture<Void> requestSync() {
+    if (executor.isShutdown()) {
+      CompletableFuture<Void> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new IllegalStateException("replicator is shut down"));
+      return failed;
+    }
+    if (pending == null) {
+      pending = new CompletableFuture<>();
+      executor.schedule(this::runSync, windowMillis, TimeUnit.MILLISECONDS);
+    }
+    return pending;
+  }
+
+  /**
+   * @return how many versions the backup is behind, as far as the replicator knows
+   */
+  public long lag() {
+    return Math.max(0, version.getAsLong() - replicatedVersion);
+  }
+
+  public DurabilityMode getMode() {
+    return mode;
+  }
+
+  /**
+   * Stop syncing, moves waiting for a sync are released with an error
+   */
+  public synchronized void shutdown() {
+    executor.shutdownNow();
+    if (pending != null) {
+      pending.completeExceptionally(new IllegalStateException("replicator is shut down"));
+      pending = null;
+    }
+  }
+
+  private void runSync() {
+    CompletableFuture<Void> sync;
+    synchronized (this) {
+      sync = pending;
+      pending = null;
+    }
+
+    long target = version.getAsLong();
+    try {
+      if (flush.call()) {
+        replicatedVersion = Math.max(replicatedVersion, target);
+      }
+    } catch (Exception e) {
+      LIMITED.severe("replication", () -> "replication error: " + e.toString());
+    } finally {
+      sync.complete(null);
+    }
+  }
+}
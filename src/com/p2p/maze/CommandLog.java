@@ -0,0 +1,406 @@
+package com.p2p.maze;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the changes applied on the primary server, plus periodic snapshots of the GameState
+ * <p>
+ * Every delta drained on the primary (move, join, exit, treasure) is appended to a memory-mapped segment
+ * before the backup is notified. Every snapshotEvery versions the whole GameState is written to a snapshot,
+ * a new epoch of segments begins and the older epoch is deleted. A restarted primary loads the latest snapshot
+ * and replays only the segments of its epoch, so recovery time follows the tail, not the age of the game
+ * <p>
+ * Layout of the room directory:
+ * snapshot-&lt;epoch&gt;.bin, the serialized GameState an epoch starts from
+ * wal-&lt;epoch&gt;-&lt;segment&gt;.log, records [int length][int crc32][delta], a zero length ends the segment
+ * fence, the term of the one primary allowed to write
+ * <p>
+ * A primary claims the log before writing or recovering, bumping the term. Every write first checks the term is
+ * still its own, so a primary that was taken over, even one only cut off from the others, is refused instead of
+ * writing over its successor; a batch racing the takeover lands at most in the epoch its successor starts past
+ * <p>
+ * Enabled with -Dmaze.wal.dir, one directory per room below it. maze.wal.segment sets the segment size
+ * (default 16 MB), maze.wal.snapshotEvery the versions between snapshots (default 10000), and
+ * maze.wal.fsync=false skips forcing each batch to disk
+ */
+public class CommandLog implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(CommandLog.class.getSimpleName());
+
+  private static final String DIR = System.getProperty("maze.wal.dir");
+  private static final int SEGMENT_BYTES = Integer.getInteger("maze.wal.segment", 16 * 1024 * 1024);
+  private static final long SNAPSHOT_EVERY = Long.getLong("maze.wal.snapshotEvery", 10000);
+  private static final boolean FSYNC = !"false".equals(System.getProperty("maze.wal.fsync"));
+
+  private static final int RECORD_HEADER = 8;
+  private static final String FENCE = "fence";
+
+  private final Path dir;
+  private final int segmentBytes;
+  private final long snapshotEvery;
+  private final boolean fsync;
+
+  private long epoch;
+  // the term claimed, checked against the fence file before every write; null fence until claimed
+  private long term;
+  private FileChannel fence;
+  private int segment;
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  // versions appended since the latest snapshot
+  private long sinceSnapshot;
+
+  private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+  private final DataOutputStream recordOut = new DataOutputStream(record);
+  private final CRC32 crc = new CRC32();
+
+  public CommandLog(Path dir, int segmentBytes, long snapshotEvery, boolean fsync) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.snapshotEvery = snapshotEvery;
+    this.fsync = fsync;
+    Files.createDirectories(dir);
+    this.epoch = latestEpoch();
+  }
+
+  public static boolean enabled() {
+    return DIR != null;
+  }
+
+  /**
+   * @return the log of the room configured through system properties, null if maze.wal.dir is not set
+   */
+  public static CommandLog open(String roomId) throws IOException {
+    if (!enabled()) {
+      return null;
+    }
+    return new CommandLog(Paths.get(DIR, roomId == null ? "default" : roomId), SEGMENT_BYTES, SNAPSHOT_EVERY, FSYNC);
+  }
+
+  /**
+   * @return true if there is no snapshot to recover from
+   */
+  public synchronized boolean isEmpty() {
+    return epoch == 0;
+  }
+
+  /**
+   * Make this log the only writer of the room: bump the term in the fence file, so the log of any earlier primary
+   * is refused from its next write on. Call before recover and the first snapshot
+   */
+  public synchronized void claim() throws IOException {
+    FileChannel channel = FileChannel.open(dir.resolve(FENCE), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      // a file lock keeps claims of two processes apart, the class lock two logs of this process
+      synchronized (CommandLog.class) {
+        FileLock lock = channel.lock();
+        try {
+          long claimed = readTerm(channel) + 1;
+          ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES);
+          bytes.putLong(0, claimed);
+          channel.write(bytes, 0);
+          channel.force(true);
+          term = claimed;
+        } finally {
+          lock.release();
+        }
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    if (fence != null) {
+      fence.close();
+    }
+    fence = channel;
+    // an earlier primary may have snapshotted since this log was opened
+    epoch = latestEpoch();
+    LOGGER.info(String.format("claimed %s at term %d", dir, term));
+  }
+
+  /**
+   * Append applied changes, in version order; durable on return unless fsync is off
+   * A snapshot must have been written first, it is the base the changes are replayed on
+   *
+   * @throws FencedException if another primary claimed the log since
+   */
+  public synchronized void append(List<GameDelta> deltas) throws IOException {
+    if (deltas.isEmpty()) {
+      return;
+    }
+    checkFence();
+    if (buffer == null) {
+      throw new IOException("command log has no snapshot to start from: " + dir);
+    }
+    int from = buffer.position();
+    for (GameDelta delta : deltas) {
+      record.reset();
+      delta.writeFields(recordOut);
+      int length = record.size();
+      // keep 4 bytes for the zero length that ends a segment
+      if (buffer.remaining() < RECORD_HEADER + length + 4) {
+        force(from);
+        nextSegment();
+        from = 0;
+        if (buffer.remaining() < RECORD_HEADER + length + 4) {
+          throw new IOException(String.format("delta of %d bytes does not fit a segment", length));
+        }
+      }
+      byte[] bytes = record.toByteArray();
+      crc.reset();
+      crc.update(bytes);
+      buffer.putInt(length);
+      buffer.putInt((int) crc.getValue());
+      buffer.put(bytes);
+    }
+    force(from);
+    sinceSnapshot += deltas.size();
+  }
+
+  /**
+   * @return true once snapshotEvery changes were appended since the latest snapshot
+   */
+  public synchronized boolean snapshotDue() {
+    return sinceSnapshot >= snapshotEvery;
+  }
+
+  /**
+   * Write the whole state as the base of a new epoch, then drop the older snapshot and segments
+   * Changes still pending in the state are appended afterwards and skipped on replay, the snapshot covers them.
+   * The state is locked only while copied to memory, moves go on while the copy is written to disk
+   *
+   * @throws FencedException if another primary claimed the log since
+   */
+  public synchronized void snapshot(GameState gameState) throws IOException {
+    checkFence();
+    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    try (ObjectOutputStream objectOut = new ObjectOutputStream(copy)) {
+      objectOut.writeObject(gameState);
+    }
+    long next = epoch + 1;
+    Path tmp = dir.resolve(snapshotName(next) + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer bytes = ByteBuffer.wrap(copy.toByteArray());
+      while (bytes.hasRemaining()) {
+        out.write(bytes);
+      }
+      if (fsync) {
+        out.force(true);
+      }
+    }
+    checkFence(); // writing the snapshot took a while, a successor may have started from this epoch meanwhile
+    Files.move(tmp, dir.resolve(snapshotName(next)), StandardCopyOption.ATOMIC_MOVE);
+
+    closeSegment();
+    long previous = epoch;
+    epoch = next;
+    segment = -1;
+    nextSegment();
+    sinceSnapshot = 0;
+    deleteEpochsUpTo(previous);
+
+    LOGGER.fine(() -> String.format("snapshot %d at version %d: %s", next, gameState.getVersion(), dir));
+  }
+
+  /**
+   * Rebuild the state from the latest snapshot and the changes logged after it
+   * Replay stops at the first torn or corrupt record, everything before it is kept
+   *
+   * @return recovered state, null if there is no snapshot to start from
+   */
+  public synchronized GameState recover() throws IOException {
+    if (epoch == 0) {
+      return null;
+    }
+    GameState gameState;
+    try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+        Files.newInputStream(dir.resolve(snapshotName(epoch)))))) {
+      gameState = (GameState) in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+    long snapshotVersion = gameState.getVersion();
+
+    int replayed = 0;
+    for (int i = 0; Files.exists(segmentPath(epoch, i)); i++) {
+      int count;
+      try (FileChannel in = FileChannel.open(segmentPath(epoch, i), StandardOpenOption.READ)) {
+        count = replay(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()), gameState);
+      }
+      if (count < 0) {
+        break;
+      }
+      replayed += count;
+    }
+
+    LOGGER.info(String.format("recovered %s: snapshot version %d, replayed %d changes, version %d",
+        dir, snapshotVersion, replayed, gameState.getVersion()));
+    return gameState;
+  }
+
+  /**
+   * @return number of changes read, negative if the segment ended in a corrupt record or a gap
+   */
+  private static int replay(ByteBuffer data, GameState gameState) throws IOException {
+    CRC32 check = new CRC32();
+    int count = 0;
+    while (data.remaining() >= RECORD_HEADER) {
+      int length = data.getInt();
+      if (length == 0) {
+        return count;
+      }
+      int expected = data.getInt();
+      if (length < 0 || length > data.remaining()) {
+        LOGGER.warning("torn record at the end of the log, replay stops");
+        return -1;
+      }
+      byte[] bytes = new byte[length];
+      data.get(bytes);
+      check.reset();
+      check.update(bytes);
+      if ((int) check.getValue() != expected) {
+        LOGGER.warning("corrupt record in the log, replay stops");
+        return -1;
+      }
+      GameDelta delta = new GameDelta();
+      delta.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+      if (!gameState.applyDelta(delta)) {
+        LOGGER.warning(String.format("gap in the log at version %d, replay stops", gameState.getVersion()));
+        return -1;
+      }
+      count++;
+    }
+    return count;
+  }
+
+  @Override
+  public synchronized void close() {
+    closeSegment();
+    if (fence != null) {
+      try {
+        fence.close();
+      } catch (IOException e) {
+        LOGGER.warning("close fence failed: " + e.toString());
+      }
+      fence = null;
+    }
+  }
+
+  private void checkFence() throws IOException {
+    if (fence == null) {
+      throw new FencedException("command log was not claimed: " + dir);
+    }
+    long current = readTerm(fence);
+    if (current != term) {
+      throw new FencedException(String.format("%s was claimed at term %d, this primary holds term %d", dir, current,
+          term));
+    }
+  }
+
+  private static long readTerm(FileChannel channel) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES);
+    return channel.read(bytes, 0) == Long.BYTES ? bytes.getLong(0) : 0;
+  }
+
+  private void nextSegment() throws IOException {
+    closeSegment();
+    segment++;
+    channel = FileChannel.open(segmentPath(epoch, segment), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    // a fresh file is zero filled, so the end marker is already in place
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+  }
+
+  private void closeSegment() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      buffer.force();
+      channel.close();
+    } catch (IOException e) {
+      LOGGER.warning("close log segment failed: " + e.toString());
+    }
+    channel = null;
+    buffer = null;
+  }
+
+  private void force(int from) {
+    if (fsync && buffer.position() > from) {
+      buffer.force(from, buffer.position() - from);
+    }
+  }
+
+  private long latestEpoch() throws IOException {
+    long latest = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*.bin")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        latest = Math.max(latest, Long.parseLong(name.substring("snapshot-".length(), name.length() - ".bin".length())));
+      }
+    }
+    return latest;
+  }
+
+  private void deleteEpochsUpTo(long last) throws IOException {
+    List<Path> stale = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.startsWith("snapshot-") && name.endsWith(".bin")) {
+          if (Long.parseLong(name.substring("snapshot-".length(), name.length() - ".bin".length())) <= last) {
+            stale.add(file);
+          }
+        } else if (name.startsWith("wal-") && name.endsWith(".log")) {
+          if (Long.parseLong(name.substring("wal-".length(), name.indexOf('-', "wal-".length()))) <= last) {
+            stale.add(file);
+          }
+        }
+      }
+    }
+    for (Path file : stale) {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private static String snapshotName(long epoch) {
+    return String.format("snapshot-%d.bin", epoch);
+  }
+
+  private Path segmentPath(long epoch, int segment) {
+    return dir.resolve(String.format("wal-%d-%d.log", epoch, segment));
+  }
+
+  /**
+   * The room was taken over by another primary, this one must not write to the log anymore
+   */
+  public static class FencedException extends IOException {
+    FencedException(String message) {
+      super(message);
+    }
+  }
+}
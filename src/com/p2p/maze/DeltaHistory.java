@@ -0,0 +1,78 @@
+package com.p2p.maze;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded ring buffer of the most recent GameDelta, in version order
+ * <p>
+ * Lets the primary answer "what changed since version X" without shipping the whole GameState,
+ * as long as the player is not further behind than the buffer capacity
+ */
+public class DeltaHistory {
+
+  private final GameDelta[] buffer;
+  private int start; // index of the oldest delta
+  private int size;
+
+  public DeltaHistory(int capacity) {
+    this.buffer = new GameDelta[capacity];
+  }
+
+  /**
+   * Append deltas, dropping the oldest ones once the buffer is full
+   * A delta that does not follow the latest one (e.g. after a full state sync) restarts the history
+   */
+  public synchronized void append(List<GameDelta> deltas) {
+    for (GameDelta delta : deltas) {
+      if (size > 0) {
+        long latest = latest().getVersion();
+        if (delta.getVersion() <= latest) {
+          continue;
+        } else if (delta.getVersion() != latest + 1) {
+          clear();
+        }
+      }
+
+      if (size == buffer.length) {
+        buffer[start] = delta;
+        start = (start + 1) % buffer.length;
+      } else {
+        buffer[(start + size) % buffer.length] = delta;
+        size++;
+      }
+    }
+  }
+
+  /**
+   * @param version version the caller already has
+   * @param currentVersion version the returned deltas must reach at least
+   * @return deltas after version, or null if the history does not cover (version, currentVersion]
+   */
+  public synchronized List<GameDelta> since(long version, long currentVersion) {
+    if (size == 0 || buffer[start].getVersion() > version + 1 || latest().getVersion() < currentVersion) {
+      return null;
+    }
+
+    List<GameDelta> deltas = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      GameDelta delta = buffer[(start + i) % buffer.length];
+      if (delta.getVersion() > version) {
+        deltas.add(delta);
+      }
+    }
+    return deltas;
+  }
+
+  public synchronized void clear() {
+    for (int i = 0; i < buffer.length; i++) {
+      buffer[i] = null;
+    }
+    start = 0;
+    size = 0;
+  }
+
+  private GameDelta latest() {
+    return buffer[(start + size - 1) % buffer.length];
+  }
+}
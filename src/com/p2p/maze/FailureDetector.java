@@ -0,0 +1,51 @@
+package com.p2p.maze;
+
+import java.util.logging.Logger;
+
+/**
+ * Decides whether a watched server is still alive from the heartbeats received from it
+ * <p>
+ * A heartbeat is any sign of life: a ping reply, or replication traffic between primary and backup.
+ * Select with -Dmaze.fd=phi|timeout:
+ * phi (default), suspicion grows with the silence measured against the observed heartbeat intervals,
+ * the server is declared dead above -Dmaze.fd.threshold (default 8);
+ * timeout, declared dead after -Dmaze.fd.timeout ms without a heartbeat (default 1000)
+ */
+public interface FailureDetector {
+
+  /**
+   * Record a sign of life received at the given time
+   */
+  void heartbeat(long nowMillis);
+
+  /**
+   * @return how strongly the server is suspected at the given time, compared against the threshold
+   */
+  double suspicion(long nowMillis);
+
+  /**
+   * @return false once the server should be considered dead
+   */
+  boolean isAvailable(long nowMillis);
+
+  /**
+   * @return time of the latest heartbeat, or of the start of the watch if none arrived yet
+   */
+  long lastHeartbeat();
+
+  /**
+   * @param intervalMillis how often the server is expected to be heard of
+   */
+  static FailureDetector fromSystemProperties(long intervalMillis) {
+    String name = System.getProperty("maze.fd", "phi");
+    Logger.getLogger(FailureDetector.class.getSimpleName()).fine(() -> "failure detector: " + name);
+    if ("timeout".equalsIgnoreCase(name)) {
+      return new TimeoutFailureDetector(Long.getLong("maze.fd.timeout", 1000));
+    }
+    double threshold = Double.parseDouble(System.getProperty("maze.fd.threshold", "8"));
+    long minStdDev = Long.getLong("maze.fd.minStdDev", intervalMillis / 2);
+    long pause = Long.getLong("maze.fd.pause", intervalMillis);
+    return new PhiAccrualFailureDetector(threshold, intervalMillis, minStdDev, pause,
+        Integer.getInteger("maze.fd.window", 100));
+  }
+}
@@ -0,0 +1,166 @@
+package com.p2p.maze;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Calls many peers at once, for the server changes a failover broadcasts to every player
+ * <p>
+ * Calls run on a bounded pool of maze.fanout.threads threads (default 16). A call not answered within
+ * maze.fanout.timeout ms of starting (default 1000) counts as failed, like a call that threw, so one unreachable
+ * player costs the broadcast at most the deadline instead of its connect timeout times its place in the queue
+ */
+public class FanOut {
+
+  private static final Logger LOGGER = Logger.getLogger(FanOut.class.getSimpleName());
+  private static final AtomicInteger POOLS = new AtomicInteger();
+
+  private final PeerStubCache peerStubs;
+  private final long timeoutNanos;
+  private final ThreadPoolExecutor executor;
+
+  public FanOut(PeerStubCache peerStubs, int threads, long timeoutMillis) {
+    this.peerStubs = peerStubs;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    String name = "fanout-" + POOLS.incrementAndGet() + "-";
+    AtomicInteger count = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        runnable -> {
+          Thread thread = new Thread(runnable, name + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  public static FanOut fromSystemProperties(PeerStubCache peerStubs) {
+    int threads = Math.max(1, Integer.getInteger("maze.fanout.threads", 16));
+    long timeout = Long.getLong("maze.fanout.timeout", 1000);
+    return new FanOut(peerStubs, threads, timeout);
+  }
+
+  /**
+   * Call one peer, giving up at the deadline
+   */
+  public <T> T call(Player peer, PeerStubCache.RemoteCall<T> call) throws RemoteException, NotBoundException {
+    return call(peer, call, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+  }
+
+  /**
+   * Call one peer, giving up after timeoutMillis instead of the usual deadline, for calls known to take longer
+   */
+  public <T> T call(Player peer, PeerStubCache.RemoteCall<T> call, long timeoutMillis)
+      throws RemoteException, NotBoundException {
+    long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    Call<T> task = new Call<>(peer, call);
+    Future<T> future = executor.submit(task);
+    try {
+      return await(task, future, timeoutNanos);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RemoteException) {
+        throw (RemoteException) cause;
+      } else if (cause instanceof NotBoundException) {
+        throw (NotBoundException) cause;
+      }
+      throw new RemoteException("call to " + peer.getPlayerId() + " failed", cause);
+    } catch (TimeoutException e) {
+      peerStubs.invalidate(peer.getPlayerId());
+      throw new RemoteException(String.format("no answer from %s within %d ms", peer.getPlayerId(),
+          TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+    }
+  }
+
+  /**
+   * Make the same call to every peer in parallel
+   *
+   * @return peers the call failed on or timed out for
+   */
+  public List<Player> broadcast(Collection<Player> peers, PeerStubCache.RemoteCall<?> call) {
+    List<Call<?>> tasks = new ArrayList<>(peers.size());
+    List<Future<?>> futures = new ArrayList<>(peers.size());
+    for (Player peer : peers) {
+      Call<?> task = new Call<>(peer, call);
+      tasks.add(task);
+      futures.add(executor.submit(task));
+    }
+
+    List<Player> failed = new ArrayList<>();
+    for (int i = 0; i < tasks.size(); i++) {
+      Player peer = tasks.get(i).peer;
+      try {
+        await(tasks.get(i), futures.get(i), timeoutNanos);
+      } catch (ExecutionException e) {
+        LOGGER.fine(() -> String.format("call to %s failed: %s", peer.getPlayerId(), e.getCause()));
+        failed.add(peer);
+      } catch (TimeoutException e) {
+        LOGGER.fine(() -> String.format("no answer from %s within the deadline", peer.getPlayerId()));
+        peerStubs.invalidate(peer.getPlayerId());
+        failed.add(peer);
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Wait for the call until its deadline, counted from when a pool thread picked it up
+   */
+  private <T> T await(Call<?> task, Future<T> future, long timeoutNanos) throws ExecutionException, TimeoutException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        long started = task.started;
+        long wait = started == 0 ? timeoutNanos : started + timeoutNanos - System.nanoTime();
+        try {
+          return future.get(Math.max(0, wait), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          // still queued behind other calls, its deadline has not started yet
+          if (task.started != 0 && System.nanoTime() - task.started >= timeoutNanos) {
+            future.cancel(true);
+            throw e;
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private class Call<T> implements Callable<T> {
+    final Player peer;
+    final PeerStubCache.RemoteCall<T> call;
+    // System.nanoTime() when the call started, 0 while queued
+    volatile long started;
+
+    Call(Player peer, PeerStubCache.RemoteCall<T> call) {
+      this.peer = peer;
+      this.call = call;
+    }
+
+    @Override
+    public T call() throws Exception {
+      started = System.nanoTime();
+      return peerStubs.invoke(peer, call);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.p2p.maze;
+
+import java.util.Random;
+
+/**
+ * The empty cells of a maze, for placing players and treasures in O(1) however full the maze is
+ * <p>
+ * Free cell indexes are packed at the front of an array; a cell is taken out by swapping the last free cell into
+ * its place, found through the reverse map of cell -> position in the array
+ * <p>
+ * Guarded by its own monitor, the innermost lock of GameState: the maze cell is changed first, under its stripe,
+ * then the index
+ */
+class FreeCellIndex {
+
+  private static final int NOT_FREE = -1;
+
+  private final int[] freeCells;
+  private final int[] positions;
+  private int size;
+
+  /**
+   * @param cellCount number of cells, all free at first
+   */
+  FreeCellIndex(int cellCount) {
+    freeCells = new int[cellCount];
+    positions = new int[cellCount];
+    for (int cell = 0; cell < cellCount; cell++) {
+      freeCells[cell] = cell;
+      positions[cell] = cell;
+    }
+    size = cellCount;
+  }
+
+  /**
+   * @return true if the cell was free
+   */
+  synchronized boolean take(int cell) {
+    int position = positions[cell];
+    if (position == NOT_FREE) {
+      return false;
+    }
+    int last = freeCells[--size];
+    freeCells[position] = last;
+    positions[last] = position;
+    positions[cell] = NOT_FREE;
+    return true;
+  }
+
+  /**
+   * @return true if the cell was taken
+   */
+  synchronized boolean release(int cell) {
+    if (positions[cell] != NOT_FREE) {
+      return false;
+    }
+    freeCells[size] = cell;
+    positions[cell] = size++;
+    return true;
+  }
+
+  /**
+   * @return a uniformly chosen free cell, -1 if the maze is full
+   */
+  synchronized int random(Random random) {
+    return size == 0 ? -1 : freeCells[random.nextInt(size)];
+  }
+
+  synchronized boolean isFree(int cell) {
+    return positions[cell] != NOT_FREE;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+}
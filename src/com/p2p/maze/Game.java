@@ -1,12 +1,13 @@
 package com.p2p.maze;
 
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
@@ -14,6 +15,15 @@ import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Logger;
 
@@ -28,10 +38,37 @@ import java.util.logging.Logger;
 public class Game implements GameInterface {
 
   private static final Logger LOGGER = Logger.getLogger(Game.class.getSimpleName());
+  // failures repeat on every move and ping while a peer is down
+  private static final LogRateLimiter LIMITED = new LogRateLimiter(LOGGER);
+
+  // how many recent changes are kept to answer getGameStateSince
+  private static final int HISTORY_SIZE = Integer.getInteger("maze.history.size", 1024);
+
+  // area of interest: radius of the window a player downloads around itself, 0 to download the whole maze
+  private static final int AOI_RADIUS = Integer.getInteger("maze.aoi.radius", 0);
+
+  // ms between two failure detector checks of the other server; a ping is sent when nothing else was heard meanwhile
+  private static final long HEARTBEAT_INTERVAL = Long.getLong("maze.fd.interval", 100);
+
+  // ms a player gets to take over as backup: a promotion copies the whole game state, longer than the fanout deadline
+  private static final long PROMOTE_TIMEOUT = Long.getLong("maze.promote.timeout", 10000);
+
+  // ms a numbered command waits for the player's earlier commands before those count as lost
+  private static final long SEQUENCE_WAIT = Long.getLong("maze.seq.wait", 500);
+
+  // players have the primary push them every change, -Dmaze.push=false to fetch changes when refreshing ('0')
+  private static final boolean PUSH = !"false".equals(System.getProperty("maze.push"));
+
+  // seconds between two summary lines in the log, 0 for none
+  private static final int SUMMARY_INTERVAL = Integer.getInteger("maze.summary.interval", 0);
 
   private final Object lock = new Object();
 
   private MazeGUI gui;
+  // latest window around this player, in area of interest mode
+  private GameView view;
+  // no window at all: -Dmaze.headless=true, the "headless" argument, or a display-less JVM
+  private boolean headless = Boolean.getBoolean("maze.headless") || GraphicsEnvironment.isHeadless();
 
   public enum Command {
     GAME_STATE(0),
@@ -47,14 +84,73 @@ public class Game implements GameInterface {
   }
 
   private Player player;
-  private Registry serverRegistry;
-  private Registry trackerRegistry;
+  private final Transport transport;
+  private final PeerStubCache peerStubs;
+  // parallel calls to every player when the servers change
+  private final FanOut fanOut;
+  private String trackerIp;
+  private int trackerPortNumber;
+  // room to join, -Dmaze.room; null lets the tracker choose, then the room the tracker placed this player in
+  private String roomId = System.getProperty("maze.room");
+  // owners of the other regions when the maze is cut into regions, null when this room plays the whole maze
+  private RegionDirectory regions;
+  private TrackerInterface trackerStub;
   private GameInterface serverGameInterface;
-  private GameState gameState;
+  // replaced whole by snapshots, pushes and promotions, read by every thread
+  private volatile GameState gameState;
+  private final DeltaHistory history = new DeltaHistory(HISTORY_SIZE);
+  // write-ahead log of the primary, null unless maze.wal.dir is set and this player is the primary
+  private CommandLog commandLog;
+  private final BackupReplicator replicator =
+      BackupReplicator.fromSystemProperties(this::notifyBackup, () -> gameState.getVersion());
   private boolean timerStarted = false;
+  private final List<Timer> keepAliveTimers = new CopyOnWriteArrayList<>();
+  // the other server and what is known of its heartbeats, replaced when the other server changes
+  private volatile Watch watch;
+  // pings run off the keep alive timer, so a peer slow to answer does not delay the checks
+  private final ExecutorService pinger = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "pinger");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicBoolean pingInFlight = new AtomicBoolean();
+  // numbers the commands this player sends to the primary, so retries are recognized
+  private final AtomicLong commandSeq = new AtomicLong();
+  // latest numbered reply applied to the local state, older replies arriving late are ignored; clientStateLock
+  private long appliedSeq;
+  // moves a player sends without waiting for the replies, 1 to send one at a time
+  private final int pipelineDepth = Math.max(1, Integer.getInteger("maze.pipeline.depth", 4));
+  // pipelined moves in flight, by sequence number
+  private final TreeSet<Long> outstanding = new TreeSet<>();
+  private final Semaphore pipeline = new Semaphore(pipelineDepth);
+  private final ExecutorService commandSender = Executors.newFixedThreadPool(pipelineDepth, runnable -> {
+    Thread thread = new Thread(runnable, "command-sender");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private Timer summaryTimer;
+  private final Metrics metrics = new Metrics();
+  // [Primary] players the changes are pushed to
+  private final Subscriptions subscriptions;
+  // primary this player gets changes pushed from, null while it has to fetch them
+  private volatile String pushesFrom;
+  // every change to this player's copy of the game state: pushes, refreshes and replies to its own moves
+  private final Object clientStateLock = new Object();
 
   public Game(String playerId, String localServerIp, int portNumber) {
+    this(playerId, localServerIp, portNumber, Transport.fromSystemProperties());
+  }
+
+  public Game(String playerId, String localServerIp, int portNumber, Transport transport) {
     this.player = new Player(playerId, localServerIp, portNumber);
+    this.transport = transport;
+    this.peerStubs = new PeerStubCache(transport);
+    this.fanOut = FanOut.fromSystemProperties(peerStubs);
+    this.subscriptions = Subscriptions.fromSystemProperties(peerStubs, metrics, this::changesSince);
+    metrics.gauge("maze_subscribers", () -> subscriptions.size());
+    metrics.gauge("maze_players", () -> gameState == null ? 0 : gameState.getPlayers().size());
+    metrics.gauge("maze_state_version", () -> gameState == null ? 0 : gameState.getVersion());
+    metrics.gauge("maze_state_bytes", this::serializedStateSize);
   }
 
   /**
@@ -73,20 +169,144 @@ public class Game implements GameInterface {
   }
 
   /**
-   * Contact tracker when player join the game, receive tracker state: n, k, primary, backup
+   * Join the game: export this peer, register with the tracker and get the initial game state
+   */
+  void start(String trackerIp, int trackerPortNumber) throws RemoteException, NotBoundException, InterruptedException {
+    // the transport may assign the player's port (NIO), so export before registering with the tracker
+    transport.exportGame(this, player);
+    metrics.export("Game", player.getPlayerId());
+
+    contactTracker(trackerIp, trackerPortNumber);
+
+    init();
+    subscribeToPrimary();
+
+    if (isBackup()) {
+      LOGGER.info(String.format("start backup -> primary timer after %s has registered as backup", player.getPlayerId()));
+      startKeepAliveTimer();
+    }
+
+    if (SUMMARY_INTERVAL > 0) {
+      summaryTimer = new Timer("game-summary", true);
+      summaryTimer.schedule(new TimerTask() {
+        public void run() {
+          LOGGER.info(summary());
+        }
+      }, SUMMARY_INTERVAL * 1000L, SUMMARY_INTERVAL * 1000L);
+    }
+  }
+
+  /**
+   * @return size of the game state as sent whole to a joining player or a new backup, measured on each call
+   */
+  private long serializedStateSize() {
+    GameState state = gameState;
+    if (state == null) {
+      return 0;
+    }
+    CountingOutputStream counter = new CountingOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+      out.writeObject(state);
+    } catch (IOException e) {
+      return -1;
+    }
+    return counter.count;
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  /**
+   * @return room this player is in, known once started
+   */
+  String getRoomId() {
+    return roomId;
+  }
+
+  /**
+   * Run without the maze window; call before start
+   */
+  void setHeadless(boolean headless) {
+    this.headless = headless;
+  }
+
+  /**
+   * One line of where this peer stands, logged every maze.summary.interval seconds in place of the window
+   */
+  String summary() {
+    GameState state = gameState;
+    String role = isPrimary() ? "primary" : isBackup() ? "backup" : "player";
+    Player leader = null;
+    for (Player other : state.getPlayers().values()) {
+      if (leader == null || other.getScore() > leader.getScore()) {
+        leader = other;
+      }
+    }
+    Player self = state.getPlayer(player.getPlayerId());
+    return String.format("summary %s %s v%d players=%d position=%s score=%d leader=%s",
+        player.getPlayerId(), role, state.getVersion(), state.getPlayers().size(),
+        self == null ? "-" : self.getPosition(), self == null ? 0 : self.getScore(),
+        leader == null ? "-" : leader.getPlayerId() + ":" + leader.getScore());
+  }
+
+  /**
+   * Stop serving peers and every background task, as if the process had crashed
+   */
+  void shutdown() {
+    transport.shutdown();
+    for (Timer timer : keepAliveTimers) {
+      timer.cancel();
+    }
+    if (summaryTimer != null) {
+      summaryTimer.cancel();
+    }
+    replicator.shutdown();
+    pinger.shutdownNow();
+    commandSender.shutdownNow();
+    fanOut.shutdown();
+    subscriptions.shutdown();
+    if (commandLog != null) {
+      commandLog.close();
+    }
+    metrics.close();
+    if (gui != null) {
+      gui.dispose();
+    }
+  }
+
+  /**
+   * Contact tracker when player join the game, receive tracker state of its room: room id, n, k, primary, backup
    *
-   * @param registry rmiRegistry
+   * @param ip tracker's ip address
+   * @param portNumber tracker's port number
    * @throws RemoteException
    * @throws NotBoundException
    */
-  private void contactTracker(Registry registry) throws RemoteException, NotBoundException {
-    trackerRegistry = registry;
-
-    TrackerInterface stub = (TrackerInterface) registry.lookup("Tracker");
-    TrackerState trackerState = stub.register(player);
+  private void contactTracker(String ip, int portNumber) throws RemoteException, NotBoundException {
+    trackerIp = ip;
+    trackerPortNumber = portNumber;
+
+    trackerStub = transport.lookupTracker(ip, portNumber);
+    TrackerState trackerState = trackerStub.register(player, roomId);
+    roomId = trackerState.getRoomId();
+    if (trackerState.getRegions() > 1) {
+      regions = new RegionDirectory(trackerState.getN(), trackerState.getRegions(),
+          room -> trackerStub.getTrackerState(room));
+    }
     gameState = new GameState(trackerState);
 
-    LOGGER.info(String.format("initial GameState: %s", gameState));
+    LOGGER.fine(() -> String.format("initial GameState: %s", gameState));
   }
 
   /**
@@ -101,52 +321,47 @@ public class Game implements GameInterface {
     Player server = gameState.getPrimary();
 
     if (isPrimary()) {
-      gameState.initGameState();
-      gameState.addPlayer(player);
-      updatePlayer();
+      // the tracker gave this player a room without a primary: a new room, or one the tracker forgot
+      if (!recoverFromCommandLog()) {
+        startNewGame();
+      }
     } else if (server != null) {
 
       LOGGER.info(String.format("start connecting to server: %s", server.getPlayerId()));
 
-      while (serverGameInterface == null) {
+      while (serverGameInterface == null && server != null) {
         try {
-          serverRegistry = LocateRegistry.getRegistry(server.getIp(), server.getPortNumber());
-          serverGameInterface = (GameInterface) serverRegistry.lookup(server.getPlayerId());
+          serverGameInterface = peerStubs.get(server);
         } catch (Exception e) {
           LOGGER.severe("initial serverGameInterface error: " + server.getPlayerId());
           e.printStackTrace();
+          server = failOver(server);
         }
       }
 
-      LOGGER.info(String.format("connected to server: %s successfully", server.getPlayerId()));
+      if (server != null) {
+        LOGGER.info(String.format("connected to server: %s successfully", server.getPlayerId()));
+      }
 
-      while (true) {
+      while (server != null) {
         try {
           if (connectToAddPlayer(server)) {
             break;
           }
         } catch (Exception e) {
           LOGGER.severe("initial connection error");
-          LOGGER.warning("currentG GameState: " + gameState);
-          Player backup = gameState.getBackup();
-
-          Player newPrimary = null;
-
-          if (backup != null){
-            Registry backupServerRegistry  = LocateRegistry.getRegistry(backup.getIp(), backup.getPortNumber());
-            GameInterface backupServerGameInterface = (GameInterface) backupServerRegistry.lookup(backup.getPlayerId());
-            GameState backupGameSate= backupServerGameInterface.getGameState();
-            newPrimary = backupGameSate.getPrimary();
-            gameState.setPrimary(newPrimary);
-            gameState.setBackup(backupGameSate.getBackup());
+          LOGGER.fine(() -> "currentG GameState: " + gameState);
+
+          Player newPrimary = failOver(server);
+          if (newPrimary == null) {
+            break; // recovered the room from the command log
           }
 
-          LOGGER.warning("contactTracker reconnected GameState: " + gameState);
+          LOGGER.fine(() -> "contactTracker reconnected GameState: " + gameState);
 
-          if (newPrimary != null){
+          if (newPrimary != server){
             server = newPrimary;
-            serverRegistry = LocateRegistry.getRegistry(server.getIp(), server.getPortNumber());
-            serverGameInterface = (GameInterface) serverRegistry.lookup(server.getPlayerId());
+            serverGameInterface = peerStubs.get(server);
           }
 
         }
@@ -159,11 +374,171 @@ public class Game implements GameInterface {
     } else {
       LOGGER.warning("Primary server not found!");
     }
-    this.gui = new MazeGUI(this.player, this.gameState);
-    LOGGER.info("game state after init: " + gameState);
+    if (!headless) {
+      this.gui = new MazeGUI(this.player, this.gameState);
+    }
+    LOGGER.fine(() -> "game state after init: " + gameState);
     LOGGER.info("player after init: " + player);
   }
 
+  /**
+   * The primary server cannot be reached: follow the tracker or the backup to the current servers, or, when the
+   * backup cannot be reached either, ask the tracker for the room and take it over from the command log
+   *
+   * @return primary server to connect to, the same one to retry, or null once this player took the room over
+   */
+  private Player failOver(Player server) throws RemoteException, NotBoundException {
+    peerStubs.invalidate(server.getPlayerId());
+    // the servers may have been replaced since this player registered
+    TrackerState servers = trackerStub.getTrackerState(roomId);
+    Player primary = servers == null ? null : servers.getPrimary();
+    if (primary != null && !primary.getPlayerId().equals(server.getPlayerId())) {
+      gameState.setPrimary(primary);
+      gameState.setBackup(servers.getBackup());
+      return primary;
+    }
+
+    Player backup = servers == null ? gameState.getBackup() : servers.getBackup();
+    if (backup != null) {
+      try {
+        GameState backupGameSate = peerStubs.invoke(backup, stub -> stub.getGameState());
+        Player newPrimary = backupGameSate.getPrimary();
+        gameState.setPrimary(newPrimary);
+        gameState.setBackup(backupGameSate.getBackup());
+        return newPrimary != null ? newPrimary : server;
+      } catch (RemoteException | NotBoundException e) {
+        LIMITED.warning("failover", () -> String.format("backup %s unreachable too: %s", backup.getPlayerId(),
+            e.toString()));
+      }
+    }
+    return takeOverRoom(server) ? null : server;
+  }
+
+  /**
+   * Take the room over from the command log once the tracker made this player its primary in place of lost, the
+   * primary nobody reaches; of the players trying, the tracker lets one win. No-op without a log to recover from
+   *
+   * @return true if this player is now the primary server of the room
+   */
+  private boolean takeOverRoom(Player lost) throws RemoteException {
+    try (CommandLog log = CommandLog.open(roomId)) {
+      if (log == null || log.isEmpty()) {
+        return false;
+      }
+    } catch (IOException e) {
+      LOGGER.severe("open command log failed: " + e.toString());
+      return false;
+    }
+    try {
+      peerStubs.invoke(lost, stub -> stub.ping());
+      return false; // only the connection failed, the primary is alive
+    } catch (RemoteException | NotBoundException e) {
+      peerStubs.invalidate(lost.getPlayerId());
+    }
+    TrackerState servers = trackerStub.takeOver(roomId, player, lost);
+    Player primary = servers == null ? null : servers.getPrimary();
+    if (primary == null || !primary.getPlayerId().equals(player.getPlayerId())) {
+      return false; // another player took over first, the retry follows it
+    }
+    if (!recoverFromCommandLog()) {
+      LOGGER.severe(String.format("%s took room %s over but could not recover it, starting a new game",
+          player.getPlayerId(), roomId));
+      startNewGame();
+    }
+    return true;
+  }
+
+  /**
+   * [Primary] A new game with this player alone in it
+   */
+  private void startNewGame() {
+    gameState.setPrimary(player);
+    gameState.setBackup(null);
+    gameState.initGameState();
+    gameState.addPlayer(player);
+    updatePlayer();
+    startCommandLog();
+  }
+
+  /**
+   * [Primary] Log every change from now on, starting from a snapshot of the current state; no-op without maze.wal.dir
+   * A new primary claims the log first, so the one it replaced can no longer write to it
+   */
+  private void startCommandLog() {
+    CommandLog log = commandLog;
+    try {
+      if (log == null) {
+        log = CommandLog.open(roomId);
+        if (log == null) {
+          return;
+        }
+        log.claim();
+      }
+      log.snapshot(gameState);
+      commandLog = log;
+    } catch (IOException e) {
+      LOGGER.severe("start command log failed: " + e.toString());
+      if (log != null && log != commandLog) {
+        log.close();
+      }
+    }
+  }
+
+  /**
+   * Rebuild the room from the command log and serve it as primary server, only once the tracker made this player
+   * the primary: the latest snapshot plus the logged tail, without the servers that died
+   *
+   * @return true if this player is now the primary server of the recovered state
+   */
+  private boolean recoverFromCommandLog() {
+    GameState recovered = null;
+    CommandLog log = null;
+    try {
+      log = CommandLog.open(roomId);
+      if (log != null && !log.isEmpty()) {
+        log.claim();
+        recovered = log.recover();
+      }
+    } catch (IOException e) {
+      LOGGER.severe("recover from command log failed: " + e.toString());
+    }
+    if (recovered == null) {
+      if (log != null) {
+        log.close();
+      }
+      return false;
+    }
+
+    for (Player server : new Player[] {recovered.getPrimary(), recovered.getBackup()}) {
+      if (server != null && !server.getPlayerId().equals(player.getPlayerId())) {
+        recovered.exitPlayer(server);
+        notifyTrackerLeft(server);
+      }
+    }
+    recovered.setPrimary(player);
+    recovered.setBackup(null);
+    // back in its old place if this player was in the game, a fresh one otherwise
+    if (recovered.getPlayer(player.getPlayerId()) == null) {
+      recovered.addPlayer(player);
+    }
+    gameState = recovered;
+    serverGameInterface = null;
+    commandLog = log;
+    startCommandLog();
+    updatePlayer();
+
+    // promote a backup among the players still around, the one promoted starts the keep alive pings
+    promoteBackup();
+    if (gameState.getBackup() != null && !timerStarted) {
+      startKeepAliveTimer();
+    }
+    replicator.replicate();
+
+    LOGGER.warning(String.format("%s recovered room %s from the command log at version %d", player.getPlayerId(),
+        roomId, gameState.getVersion()));
+    return true;
+  }
+
   private boolean connectToAddPlayer(Player server) throws RemoteException, NotBoundException, InterruptedException {
     while (true) {
       gameState = serverGameInterface.initPlayer(player);
@@ -179,15 +554,113 @@ public class Game implements GameInterface {
   }
 
   private void updateGameState(GameState gameState){
-    this.gameState = gameState;
-    updatePlayer();
-    refreshGameStateUI();
+    synchronized (clientStateLock) {
+      this.gameState = gameState;
+      updatePlayer();
+      refreshGameStateUI();
+    }
+  }
+
+  /**
+   * Bring the local game state up to date with the primary, downloading only what changed since its version.
+   * In area of interest mode only the window around this player is downloaded
+   */
+  private void refreshGameState() throws RemoteException {
+    if (AOI_RADIUS > 0) {
+      refreshView();
+      return;
+    }
+    synchronized (clientStateLock) {
+      GameStateDiff diff = serverGameInterface.getGameStateSince(gameState.getVersion());
+      switch (diff.getType()) {
+        case UNCHANGED:
+          refreshGameStateUI();
+          break;
+
+        case SNAPSHOT:
+          updateGameState(diff.getSnapshot());
+          break;
+
+        case DELTAS:
+          for (GameDelta delta : diff.getDeltas()) {
+            if (!gameState.applyDelta(delta)) {
+              LOGGER.warning(String.format("refresh gap at version %d, fetch full game state",
+                  gameState.getVersion()));
+              updateGameState(serverGameInterface.getGameState());
+              return;
+            }
+          }
+          updatePlayer();
+          refreshGameStateUI();
+          break;
+      }
+    }
+  }
+
+  /**
+   * Apply own move to the local game state, other players' changes arrive with the next game state refresh
+   */
+  private void updateMoveResult(MoveResult result) throws RemoteException, NotBoundException {
+    synchronized (clientStateLock) {
+      if (result.getSeq() != 0) {
+        if (result.getSeq() < appliedSeq) {
+          return; // a pipelined reply overtaken by a later one
+        }
+        appliedSeq = result.getSeq();
+      }
+      if (result.getRoomId() == null) {
+        if (result.isUpdated() || result.isDuplicate()) {
+          gameState.relocatePlayer(player.getPlayerId(), result.getPosition(), result.getScore());
+          updatePlayer();
+          if (AOI_RADIUS > 0 && gui != null) {
+            refreshView(); // the window moved with the player
+            return;
+          }
+          refreshGameStateUI();
+        }
+        return;
+      }
+    }
+    switchRegion(result.getRoomId());
+  }
+
+  private void refreshView() throws RemoteException {
+    GameView latest = serverGameInterface.getGameView(player, AOI_RADIUS);
+    if (latest == null) {
+      return;
+    }
+    synchronized (clientStateLock) {
+      view = latest;
+      Player self = gameState.getPlayer(player.getPlayerId());
+      Integer score = latest.getScores().get(player.getPlayerId());
+      if (self != null && score != null) {
+        gameState.relocatePlayer(player.getPlayerId(), self.getPosition(), score);
+        updatePlayer();
+      }
+      refreshGameStateUI();
+    }
+  }
+
+  /**
+   * Follow this player into the region it moved to: from now on its primary plays this player's commands
+   */
+  private void switchRegion(String newRoomId) throws RemoteException, NotBoundException {
+    LOGGER.fine(() -> String.format("%s moves from %s to %s", player.getPlayerId(), roomId, newRoomId));
+    roomId = newRoomId;
+    TrackerState servers = trackerStub.getTrackerState(newRoomId);
+    serverGameInterface = peerStubs.get(servers.getPrimary());
+    updateGameState(serverGameInterface.getGameState());
+    subscribeToPrimary();
   }
 
   private void refreshGameStateUI(){
-    LOGGER.info("player after refreshing: " + player);
+    LOGGER.fine(() -> "player after refreshing: " + player);
     if(this.gui != null){
-      this.gui.updateGameState(this.gameState);
+      if (AOI_RADIUS > 0 && view != null && !isPrimary() && !isBackup()) {
+        this.gui.updateGameView(view);
+      } else {
+        this.gui.updateGameState(this.gameState);
+      }
     }
   }
 
@@ -199,15 +672,10 @@ public class Game implements GameInterface {
     this.player = gameState.getPlayer(playerId);
   }
 
-  private synchronized void run() {
+  private void run() {
 
     LOGGER.info(String.format("Player %s is running --------------------------------------------", player.getPlayerId()));
 
-    if (isBackup()) {
-      LOGGER.info(String.format("start backup -> primary timer after %s has registered as backup", player.getPlayerId()));
-      startKeepAliveTimer();
-    }
-
     Scanner scanner = new Scanner(System.in);
     String input;
     Character commandChar;
@@ -226,56 +694,199 @@ public class Game implements GameInterface {
         return;
       }
 
-      if (isPrimary()) {
-        synchronized (lock){
-          try{
-            play(commandChar);
-          } catch (RemoteException | NotBoundException e) {
-            LOGGER.severe("server play error: " + e.toString());
+      try {
+        submitCommand(commandChar);
+      } catch (InterruptedException e) {
+        LOGGER.severe("Interrupted while sending commands");
+        return;
+      }
+    }
+  }
+
+  /**
+   * Send a command typed by the player. Moves go to the primary without waiting for the replies to the
+   * previous ones, up to maze.pipeline.depth at a time; any other command first waits for the moves in flight
+   */
+  void submitCommand(char commandChar) throws InterruptedException {
+    if (pipelineDepth == 1 || isPrimary() || moveOf(commandChar) == null) {
+      awaitPipeline();
+      handleCommand(commandChar);
+      return;
+    }
+    pipeline.acquire();
+    long seq = commandSeq.incrementAndGet();
+    synchronized (outstanding) {
+      outstanding.add(seq);
+    }
+    try {
+      commandSender.execute(() -> {
+        try {
+          sendCommand(commandChar, seq);
+        } finally {
+          synchronized (outstanding) {
+            outstanding.remove(seq);
+            outstanding.notifyAll();
           }
+          pipeline.release();
         }
+      });
+    } catch (RejectedExecutionException e) {
+      synchronized (outstanding) {
+        outstanding.remove(seq);
+      }
+      pipeline.release();
+    }
+  }
 
-      } else {
-        boolean primaryNotFound = false;
-        try {
-          LOGGER.info(String.format("Command Char %s connect to primary: %s | start", commandChar,
-                  gameState.getPrimary().getPlayerId()));
+  /**
+   * Wait until every pipelined move got its reply
+   */
+  void awaitPipeline() throws InterruptedException {
+    synchronized (outstanding) {
+      while (!outstanding.isEmpty()) {
+        outstanding.wait();
+      }
+    }
+  }
 
-          connectToServerAndPlay(commandChar);
+  /**
+   * Send one pipelined move straight to the primary. If that fails, play it like a typed command, with the same
+   * sequence number so a server that already applied it does not play it twice, once the moves before it are done
+   */
+  private void sendCommand(char commandChar, long seq) {
+    GameInterface server = serverGameInterface;
+    if (server != null) {
+      try {
+        MoveResult result = server.executeMove(numbered(seq), moveOf(commandChar), seq);
+        synchronized (this) {
+          updateMoveResult(result);
+        }
+        return;
+      } catch (RemoteException | NotBoundException e) {
+        LIMITED.warning("pipeline", () -> String.format("pipelined command %d failed, retry: %s", seq, e.toString()));
+      }
+    }
+    try {
+      synchronized (outstanding) {
+        while (outstanding.first() < seq) {
+          outstanding.wait();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    handleCommand(commandChar, seq);
+  }
 
-          LOGGER.info(String.format("Command Char %s connect to primary: %s | end", commandChar,
-                  gameState.getPrimary().getPlayerId()));
+  /**
+   * @return the player to send along with command seq, telling the server which commands are done: all those
+   * before the oldest one still waiting for its reply
+   */
+  private Player numbered(long seq) {
+    if (seq == 0) {
+      return player;
+    }
+    long done = seq - 1;
+    synchronized (outstanding) {
+      if (!outstanding.isEmpty()) {
+        done = Math.min(done, outstanding.first() - 1);
+      }
+    }
+    Player sender = new Player(player.getPlayerId(), player.getIp(), player.getPortNumber());
+    sender.setLastSeq(done);
+    return sender;
+  }
 
-        } catch (RemoteException | NotBoundException e) {
-          LOGGER.severe("primary connectToServerAndPlay error : " + gameState.getPlayerInfo());
-          primaryNotFound = true;
-        }
+  /**
+   * @return the move a command key stands for, null for any other key
+   */
+  private static Command moveOf(char commandChar) {
+    switch (commandChar) {
+      case '1':
+        return Command.MOVE_WEST;
+      case '2':
+        return Command.MOVE_SOUTH;
+      case '3':
+        return Command.MOVE_EAST;
+      case '4':
+        return Command.MOVE_NORTH;
+      default:
+        return null;
+    }
+  }
 
-        if (primaryNotFound) {
-          try {
-            if (isPrimary() || isBackup()){
-              LOGGER.info(player.getPlayerId() + " is backup , playing local ");
-              play(commandChar);
+  /**
+   * Play one command typed by the player, on the primary server or locally if this is the primary
+   *
+   * @return false if no server could play the command
+   */
+  synchronized boolean handleCommand(char commandChar) {
+    return handleCommand(commandChar, 0);
+  }
+
+  /**
+   * @param seq number a pipelined move was sent with, 0 to number the command here if it goes to a server
+   */
+  private synchronized boolean handleCommand(char commandChar, long seq) {
+    if (isPrimary()) {
+      // GameState locks only the cells a move touches, no need to hold the game lock here
+      try{
+        play(commandChar, seq);
+      } catch (RemoteException | NotBoundException e) {
+        LIMITED.severe("play", () -> "server play error: " + e.toString());
+        return false;
+      }
 
-            } else {
-              Player backupServer = gameState.getBackup();
-              serverRegistry = LocateRegistry.getRegistry(backupServer.getIp(), backupServer.getPortNumber());
-              serverGameInterface = (GameInterface) serverRegistry.lookup(backupServer.getPlayerId());
+    } else {
+      if (seq == 0 && (moveOf(commandChar) != null || commandChar == '9')) {
+        seq = commandSeq.incrementAndGet();
+      }
+      final long commandSeqNumber = seq;
+      boolean primaryNotFound = false;
+      try {
+        LOGGER.fine(() -> String.format("Command Char %s connect to primary: %s | start", commandChar,
+                gameState.getPrimary().getPlayerId()));
 
-              LOGGER.info(String.format("Command char %s connect to: %s | start", commandChar, backupServer.getPlayerId()));
+        connectToServerAndPlay(commandChar, commandSeqNumber);
 
-              connectToServerAndPlay(commandChar);
+        LOGGER.fine(() -> String.format("Command Char %s connect to primary: %s | end", commandChar,
+                gameState.getPrimary().getPlayerId()));
 
-              LOGGER.info(String.format("Command char %s connect to: %s | end", commandChar, backupServer.getPlayerId()));
-            }
+      } catch (RemoteException | NotBoundException e) {
+        LIMITED.severe("primary play", () -> "primary connectToServerAndPlay error : " + gameState.getPlayerInfo());
+        primaryNotFound = true;
+      }
 
-          } catch (RemoteException | NotBoundException e) {
-            LOGGER.severe(String.format("backup connectToServerAndPlay error: %s\n player: %s", e.toString(),
-                    gameState.getPlayerInfo()));
+      if (primaryNotFound) {
+        try {
+          if (isPrimary() || isBackup()){
+            LOGGER.fine(() -> player.getPlayerId() + " is backup , playing local ");
+            play(commandChar, commandSeqNumber);
+
+          } else {
+            Player backupServer = gameState.getBackup();
+            peerStubs.invalidate(gameState.getPrimary().getPlayerId());
+            serverGameInterface = peerStubs.get(backupServer);
+
+            LOGGER.fine(() -> String.format("Command char %s connect to: %s | start", commandChar, backupServer.getPlayerId()));
+
+            connectToServerAndPlay(commandChar, commandSeqNumber);
+
+            LOGGER.fine(() -> String.format("Command char %s connect to: %s | end", commandChar, backupServer.getPlayerId()));
           }
+
+        } catch (RemoteException | NotBoundException e) {
+          if (playThroughTracker(commandChar, commandSeqNumber)) {
+            return true;
+          }
+          LIMITED.severe("backup play", () -> String.format("backup connectToServerAndPlay error: %s\n player: %s",
+                  e.toString(), gameState.getPlayerInfo()));
+          return false;
         }
       }
     }
+    return true;
   }
 
   private static void quit() {
@@ -283,22 +894,22 @@ public class Game implements GameInterface {
     System.exit(0);
   }
 
-  private void play(Character commandChar) throws RemoteException, NotBoundException{
+  private void play(Character commandChar, long seq) throws RemoteException, NotBoundException{
     switch (commandChar){
       case '0':
         refreshGameStateUI();
         break;
       case '1':
-        updateGameState(executeCommand(player, Command.MOVE_WEST));
+        updateGameState(playLocally(Command.MOVE_WEST, seq));
         break;
       case '2':
-        updateGameState(executeCommand(player, Command.MOVE_SOUTH));
+        updateGameState(playLocally(Command.MOVE_SOUTH, seq));
         break;
       case '3':
-        updateGameState(executeCommand(player, Command.MOVE_EAST));
+        updateGameState(playLocally(Command.MOVE_EAST, seq));
         break;
       case '4':
-        updateGameState(executeCommand(player, Command.MOVE_NORTH));
+        updateGameState(playLocally(Command.MOVE_NORTH, seq));
         break;
       case '9':
         quit();
@@ -307,25 +918,62 @@ public class Game implements GameInterface {
     }
   }
 
-  private void connectToServerAndPlay(Character commandChar) throws RemoteException, NotBoundException {
+  /**
+   * Play this server's own command on its game state; a numbered one only if the old primary had not applied it
+   */
+  private GameState playLocally(Command move, long seq) throws RemoteException, NotBoundException {
+    if (seq == 0 || gameState.awaitTurn(player.getPlayerId(), seq, 0)) {
+      applyCommand(player, move, seq);
+    }
+    return gameState;
+  }
+
+  /**
+   * Both servers this player knows are gone: the room may have been recovered by a new primary, ask the tracker
+   *
+   * @return true if the command was played on the primary server the tracker knows
+   */
+  private boolean playThroughTracker(char commandChar, long seq) {
+    try {
+      TrackerState trackerState = trackerStub.getTrackerState(roomId);
+      Player primary = trackerState == null ? null : trackerState.getPrimary();
+      if (primary == null || primary.getPlayerId().equals(player.getPlayerId())) {
+        return false;
+      }
+      gameState.setPrimary(primary);
+      gameState.setBackup(trackerState.getBackup());
+      serverGameInterface = peerStubs.get(primary);
+      connectToServerAndPlay(commandChar, seq);
+      subscribeToPrimary();
+      return true;
+    } catch (RemoteException | NotBoundException e) {
+      return false;
+    }
+  }
+
+  private void connectToServerAndPlay(Character commandChar, long seq) throws RemoteException, NotBoundException {
     switch (commandChar){
       case '0':
-        updateGameState(serverGameInterface.executeCommand(player, Command.GAME_STATE));
+        if (pushesFrom != null) {
+          refreshGameStateUI(); // pushed changes keep the game state current
+        } else {
+          refreshGameState();
+        }
         break;
       case '1':
-        updateGameState(serverGameInterface.executeCommand(player, Command.MOVE_WEST));
+        updateMoveResult(serverGameInterface.executeMove(numbered(seq), Command.MOVE_WEST, seq));
         break;
       case '2':
-        updateGameState(serverGameInterface.executeCommand(player, Command.MOVE_SOUTH));
+        updateMoveResult(serverGameInterface.executeMove(numbered(seq), Command.MOVE_SOUTH, seq));
         break;
       case '3':
-        updateGameState(serverGameInterface.executeCommand(player, Command.MOVE_EAST));
+        updateMoveResult(serverGameInterface.executeMove(numbered(seq), Command.MOVE_EAST, seq));
         break;
       case '4':
-        updateGameState(serverGameInterface.executeCommand(player, Command.MOVE_NORTH));
+        updateMoveResult(serverGameInterface.executeMove(numbered(seq), Command.MOVE_NORTH, seq));
         break;
       case '9':
-        serverGameInterface.executeCommand(player, Command.EXIT);
+        serverGameInterface.executeMove(numbered(seq), Command.EXIT, seq);
         quit();
         break;
       default:
@@ -334,30 +982,84 @@ public class Game implements GameInterface {
     }
   }
 
-  private void notifyBackup() throws RemoteException, NotBoundException {
+  /**
+   * Ship pending changes to the backup server, run by the replicator thread
+   *
+   * @return true if backup is in sync afterwards, or there is no backup to sync
+   */
+  private boolean notifyBackup() {
+    // drain even when there is no one to notify, a backup promoted later receives the full game state
+    List<GameDelta> deltas = gameState.drainDeltas();
+    history.append(deltas);
+    if (commandLog != null) {
+      logChanges(deltas);
+    }
+
     if (!isPrimary()) {
       LOGGER.warning("Only primary server needs notify backup server on game change");
-      return;
+      return true;
     }
 
+    boolean synced = true;
     Player backupServer = gameState.getBackup();
-    if (backupServer != null && !backupServer.getPlayerId().equals(player.getPlayerId())) {
-      LOGGER.info("Notify backup: "+ backupServer.getPlayerId());
+    if (backupServer != null && !backupServer.getPlayerId().equals(player.getPlayerId()) && !deltas.isEmpty()) {
+      LOGGER.fine(() -> "Notify backup: "+ backupServer.getPlayerId());
 
+      long start = System.nanoTime();
       try{
-        Registry backupRegistry = LocateRegistry.getRegistry(backupServer.getIp(), backupServer.getPortNumber());
-        GameInterface stub = (GameInterface) backupRegistry.lookup(backupServer.getPlayerId());
-        stub.syncGameState(gameState);
+        if (!peerStubs.invoke(backupServer, stub -> stub.syncGameDeltas(deltas))) {
+          LOGGER.warning(String.format("backup %s is behind, sync full game state", backupServer.getPlayerId()));
+          peerStubs.invoke(backupServer, stub -> stub.syncGameState(gameState));
+        }
+        heartbeatFrom(backupServer, "replication");
       } catch (Exception e){
-        LOGGER.severe(String.format("notifyBackup error: %s", e.toString()));
+        metrics.counter("maze_notify_backup_failures_total").increment();
+        LIMITED.severe("notify backup", () -> String.format("notifyBackup error: %s", e.toString()));
+        synced = false;
+      } finally {
+        metrics.histogram("maze_notify_backup").recordSince(start);
       }
     }
+    // after the backup, so a failover of the primary does not take back what players were shown
+    subscriptions.publish(deltas);
+    return synced;
+  }
+
+  /**
+   * [Primary] Make the changes durable before the backup hears of them, snapshot now and then
+   * The player's reply waits for this only with maze.replication.mode=sync; in async mode it may come first
+   */
+  private void logChanges(List<GameDelta> deltas) {
+    long start = System.nanoTime();
+    try {
+      commandLog.append(deltas);
+      if (commandLog.snapshotDue()) {
+        commandLog.snapshot(gameState);
+      }
+    } catch (CommandLog.FencedException e) {
+      // a newer primary claimed the log, it holds the room's history from now on
+      metrics.counter("maze_wal_failures_total").increment();
+      LOGGER.severe(String.format("%s stops logging, room %s was taken over: %s", player.getPlayerId(), roomId,
+          e.getMessage()));
+      commandLog.close();
+      commandLog = null;
+    } catch (IOException e) {
+      metrics.counter("maze_wal_failures_total").increment();
+      LIMITED.severe("command log", () -> "command log write failed: " + e.toString());
+    } finally {
+      metrics.histogram("maze_wal_append").recordSince(start);
+    }
   }
 
   private void notifyTracker() {
     try {
-      TrackerInterface stub = (TrackerInterface) trackerRegistry.lookup("Tracker");
-      stub.updateServers(gameState.getPrimary(), gameState.getBackup());
+      try {
+        trackerStub.updateServers(roomId, gameState.getPrimary(), gameState.getBackup());
+      } catch (RemoteException e) {
+        // tracker may have been restarted, look it up again once
+        trackerStub = transport.lookupTracker(trackerIp, trackerPortNumber);
+        trackerStub.updateServers(roomId, gameState.getPrimary(), gameState.getBackup());
+      }
       LOGGER.info(String.format("Notify Tracker | primary: %s, backup: %s", gameState.getPrimary(), gameState.getBackup()));
 
     } catch (RemoteException | NotBoundException e) {
@@ -365,6 +1067,17 @@ public class Game implements GameInterface {
     }
   }
 
+  /**
+   * Tell the tracker a player is gone from the room, so the place counts as free; best effort
+   */
+  private void notifyTrackerLeft(Player left) {
+    try {
+      trackerStub.leave(roomId, left);
+    } catch (RemoteException e) {
+      LIMITED.warning("tracker leave", () -> "Tell tracker player left failed: " + e.toString());
+    }
+  }
+
   public static void main(String[] args) {
     initLogger();
 
@@ -390,16 +1103,11 @@ public class Game implements GameInterface {
       String playerIpAddress = InetAddress.getLocalHost().getHostAddress();
       LOGGER.info("Player IP: "+ playerIpAddress);
 
-      Registry playerRegistry = LocateRegistry.getRegistry(playerIpAddress, portNumber);
-
       Game game = new Game(playerId, playerIpAddress, portNumber);
-      GameInterface iGame = (GameInterface) UnicastRemoteObject.exportObject(game, 0);
-      playerRegistry.rebind(playerId, iGame);
-
-      Registry trackerRegistry = LocateRegistry.getRegistry(trackerIpAddress, portNumber);
-      game.contactTracker(trackerRegistry);
-
-      game.init();
+      if (args.length > 3 && "headless".equalsIgnoreCase(args[3])) {
+        game.setHeadless(true);
+      }
+      game.start(trackerIpAddress, portNumber);
 
       LOGGER.info("Player ready: " + playerId);
 
@@ -429,13 +1137,16 @@ public class Game implements GameInterface {
     LogFormatter formatter = new LogFormatter();
     ConsoleHandler handler = new ConsoleHandler();
     handler.setFormatter(formatter);
-    LOGGER.addHandler(handler);
+    LOGGER.addHandler(AsyncHandler.wrap(handler));
   }
 
   @Override
   public GameState initPlayer(Player player) throws RemoteException, NotBoundException {
+    long start = System.nanoTime();
+    gameState.addPlayer(player);
+
+    // the lock only guards picking a backup server, which must not race with failover
     synchronized (lock) {
-      gameState.addPlayer(player);
       Player backupServer = gameState.getBackup();
       if (backupServer == null) {
         boolean found = false;
@@ -449,10 +1160,12 @@ public class Game implements GameInterface {
 
           Player next = gameState.getPlayers().get(id);
           try {
-            Registry registry = LocateRegistry.getRegistry(next.getIp(), next.getPortNumber());
-            GameInterface stub = (GameInterface) registry.lookup(next.getPlayerId());
-            stub.promoteToBackupServer(gameState);
+            peerStubs.invoke(next, stub -> {
+              stub.promoteToBackupServer(gameState);
+              return null;
+            });
             gameState.setBackup(next); // set only after promoteToBackupServer is successful
+            subscriptions.unsubscribe(next.getPlayerId()); // a backup gets the changes through replication
             LOGGER.info("promoted: " + id + " as new backup");
             found=true;
             break;
@@ -475,40 +1188,175 @@ public class Game implements GameInterface {
         }
 
       } else if (!player.getPlayerId().equals(backupServer.getPlayerId())) {
-        notifyBackup();
+        replicator.replicate();
       }
 
       refreshGameStateUI();
     }
 
+    metrics.histogram("maze_init_player").recordSince(start);
     return gameState;
   }
 
   @Override
   public GameState executeCommand(Player player, Command move) throws RemoteException, NotBoundException {
+    applyCommand(player, move, 0);
+    return gameState;
+  }
+
+  @Override
+  public MoveResult executeMove(Player player, Command move) throws RemoteException, NotBoundException {
+    return executeMove(player, move, 0);
+  }
+
+  @Override
+  public MoveResult executeMove(Player player, Command move, long seq) throws RemoteException, NotBoundException {
+    if (seq != 0) {
+      gameState.skipCommand(player.getPlayerId(), Math.min(player.getLastSeq(), seq - 1));
+    }
+    if (seq != 0 && !gameState.awaitTurn(player.getPlayerId(), seq, SEQUENCE_WAIT)) {
+      metrics.counter("maze_duplicate_commands_total").increment();
+      GameState current = gameState;
+      return new MoveResult(false, current.getPlayer(player.getPlayerId()), current.getVersion()).forCommand(seq, true);
+    }
+    Player mover = gameState.getPlayer(player.getPlayerId());
+    Position crossed = crossedCell(mover, move);
+    if (crossed != null) {
+      return handoff(mover, move, crossed, seq).forCommand(seq, false);
+    }
+    boolean updated = applyCommand(player, move, seq);
+    GameState current = gameState;
+    return new MoveResult(updated, current.getPlayer(player.getPlayerId()), current.getVersion()).forCommand(seq, false);
+  }
+
+  /**
+   * @return cell the move steps the player to when that cell belongs to another region, null if it stays in this
+   * one, leaves the maze, or the maze is not cut into regions
+   */
+  private Position crossedCell(Player mover, Command move) {
+    if (regions == null || mover == null) {
+      return null;
+    }
+    int positionX = mover.getPosition().posX;
+    int positionY = mover.getPosition().posY;
+    switch (move) {
+      case MOVE_WEST:
+        positionX--;
+        break;
+      case MOVE_SOUTH:
+        positionY++;
+        break;
+      case MOVE_EAST:
+        positionX++;
+        break;
+      case MOVE_NORTH:
+        positionY--;
+        break;
+      default:
+        return null;
+    }
+    int n = gameState.getN();
+    if (positionX < 0 || positionX >= n || positionY < 0 || positionY >= n || gameState.isInRegion(positionX, positionY)) {
+      return null;
+    }
+    return new Position(positionX, positionY);
+  }
+
+  /**
+   * Hand the player over to the primary of the region it steps into, and drop it here once taken.
+   * The servers of a region stay in it: their moves across the border are refused
+   */
+  private MoveResult handoff(Player mover, Command move, Position cell, long seq) {
+    long start = System.nanoTime();
+    Region next = regions.regionAt(cell.posX, cell.posY);
+    Player primaryServer = gameState.getPrimary();
+    Player backupServer = gameState.getBackup();
+    boolean server = (primaryServer != null && primaryServer.getPlayerId().equals(mover.getPlayerId()))
+        || (backupServer != null && backupServer.getPlayerId().equals(mover.getPlayerId()));
+    MoveResult result = null;
+    if (!server) {
+      Player moved = new Player(mover.getPlayerId(), mover.getIp(), mover.getPortNumber());
+      moved.setPosition(cell);
+      moved.setScore(mover.getScore());
+      moved.setLastSeq(seq);
+      try {
+        Player owner = regions.owner(next);
+        if (owner != null) {
+          result = peerStubs.invoke(owner, stub -> stub.handoffPlayer(moved));
+        }
+      } catch (RemoteException | NotBoundException e) {
+        LIMITED.warning("handoff", () -> String.format("handoff of %s to %s failed: %s", mover.getPlayerId(),
+            next.roomId(), e.toString()));
+      }
+    }
+    metrics.histogram(Metrics.name("maze_command", "command", move.name())).recordSince(start);
+    if (result == null || !result.isUpdated()) {
+      if (!server) {
+        // failed, or refused by a server that may no longer be the region's primary: ask the tracker next time
+        regions.invalidate(next);
+      }
+      if (gameState.skipCommand(mover.getPlayerId(), seq)) {
+        replicator.replicate();
+      }
+      return new MoveResult(false, mover, gameState.getVersion());
+    }
+    if (gameState.exitPlayer(mover)) {
+      replicator.replicate();
+      notifyTrackerLeft(mover);
+      refreshGameStateUI();
+    }
+    metrics.counter("maze_handoffs_out_total").increment();
+    return result.handedOffTo(next.roomId());
+  }
+
+  @Override
+  public MoveResult handoffPlayer(Player player) throws RemoteException {
+    if (!isPrimary() || gameState.getPlayer(player.getPlayerId()) != null || !gameState.admitPlayer(player)) {
+      return new MoveResult(false, null, gameState.getVersion());
+    }
+    replicator.replicate();
+    try {
+      trackerStub.register(player, roomId); // the room counts the player from now on
+    } catch (RemoteException e) {
+      LIMITED.warning("tracker register", () -> "Tell tracker of handed off player failed: " + e.toString());
+    }
+    refreshGameStateUI();
+    metrics.counter("maze_handoffs_in_total").increment();
+    return new MoveResult(true, gameState.getPlayer(player.getPlayerId()), gameState.getVersion());
+  }
+
+  /**
+   * @param seq the player's number for the command, 0 if not numbered
+   */
+  private boolean applyCommand(Player player, Command move, long seq) throws RemoteException, NotBoundException {
+    long start = System.nanoTime();
     boolean updated = false;
     switch (move) {
       case GAME_STATE:
+        gameState.skipCommand(player.getPlayerId(), seq);
         break;
 
       case MOVE_WEST:
-        updated = gameState.move(player, -1, 0);
+        updated = gameState.move(player, -1, 0, seq);
         break;
 
       case MOVE_SOUTH:
-        updated = gameState.move(player, 0, 1);
+        updated = gameState.move(player, 0, 1, seq);
         break;
 
       case MOVE_EAST:
-        updated = gameState.move(player, 1, 0);
+        updated = gameState.move(player, 1, 0, seq);
         break;
 
       case MOVE_NORTH:
-        updated = gameState.move(player, 0, -1);
+        updated = gameState.move(player, 0, -1, seq);
         break;
 
       case EXIT:
         updated = gameState.exitPlayer(player);
+        if (updated) {
+          notifyTrackerLeft(player);
+        }
         break;
 
       default:
@@ -516,9 +1364,21 @@ public class Game implements GameInterface {
     }
     if (updated){
       refreshGameStateUI();
-      notifyBackup();
+      replicator.replicate();
+    } else if (seq != 0) {
+      replicator.replicate(); // a refused numbered command still advanced the player's seq, see GameState.move
     }
-    return gameState;
+    metrics.histogram(Metrics.name("maze_command", "command", move.name())).recordSince(start);
+    return updated;
+  }
+
+  @Override
+  public GameView getGameView(Player player, int radius) throws RemoteException {
+    Player viewer = gameState.getPlayer(player.getPlayerId());
+    if (viewer == null) {
+      return null;
+    }
+    return gameState.view(viewer.getPosition().posX, viewer.getPosition().posY, radius);
   }
 
   @Override
@@ -529,18 +1389,123 @@ public class Game implements GameInterface {
   @Override
   public boolean syncGameState(GameState gameState) throws RemoteException {
     updateGameState(gameState);
+    heartbeatFrom(gameState.getPrimary(), "replication");
     return false;
   }
 
+  @Override
+  public boolean syncGameDeltas(List<GameDelta> deltas) throws RemoteException {
+    for (GameDelta delta : deltas) {
+      if (!gameState.applyDelta(delta)) {
+        LIMITED.warning("sync gap", () -> String.format("sync gap at version %d, delta: %s", gameState.getVersion(), delta));
+        return false;
+      }
+    }
+    // keep the history on backup too, so players can keep asking for diffs after a promotion
+    history.append(deltas);
+    heartbeatFrom(gameState.getPrimary(), "replication");
+    updatePlayer();
+    refreshGameStateUI();
+    return true;
+  }
+
   @Override
   public GameState getGameState() throws RemoteException {
     return gameState;
   }
 
+  @Override
+  public GameStateDiff getGameStateSince(long version) throws RemoteException {
+    return GameStateDiff.since(gameState, history, version);
+  }
+
+  /**
+   * [Primary] Catch up for a subscriber: the changes since version the history has, or the whole game state
+   * Changes not drained yet are left out, they are pushed once published
+   */
+  private GameStateDiff changesSince(long version) {
+    return GameStateDiff.since(gameState, history, version);
+  }
+
+  @Override
+  public boolean subscribe(Player player, long version) throws RemoteException {
+    if (!isPrimary() || gameState.getPlayer(player.getPlayerId()) == null) {
+      return false;
+    }
+    subscriptions.subscribe(player, version);
+    return true;
+  }
+
+  @Override
+  public void unsubscribe(Player player) throws RemoteException {
+    subscriptions.unsubscribe(player.getPlayerId());
+  }
+
+  @Override
+  public boolean pushChanges(GameStateDiff diff) throws RemoteException {
+    if (pushesFrom == null || isPrimary() || isBackup()) {
+      return false; // servers have the changes through replication
+    }
+    synchronized (clientStateLock) {
+      switch (diff.getType()) {
+        case SNAPSHOT:
+          updateGameState(diff.getSnapshot());
+          break;
+
+        case DELTAS:
+          for (GameDelta delta : diff.getDeltas()) {
+            if (!gameState.applyDelta(delta)) {
+              LIMITED.warning("push gap", () -> String.format("push gap at version %d, fetch the changes",
+                  gameState.getVersion()));
+              try {
+                refreshGameState();
+              } catch (RemoteException e) {
+                LIMITED.warning("push refresh", () -> "fetch after push gap failed: " + e.toString());
+              }
+              return true;
+            }
+          }
+          updatePlayer();
+          refreshGameStateUI();
+          break;
+
+        default:
+          break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Have the primary push this player every change from now on. Servers have the changes already, and in area of
+   * interest mode the player keeps fetching its window
+   */
+  private void subscribeToPrimary() {
+    Player primaryServer = gameState.getPrimary();
+    if (!PUSH || AOI_RADIUS > 0 || primaryServer == null || isPrimary() || isBackup()) {
+      pushesFrom = null;
+      return;
+    }
+    // the first push may arrive before subscribe returns
+    pushesFrom = primaryServer.getPlayerId();
+    try {
+      if (!peerStubs.invoke(primaryServer, stub -> stub.subscribe(player, gameState.getVersion()))) {
+        pushesFrom = null;
+      }
+    } catch (RemoteException | NotBoundException e) {
+      pushesFrom = null;
+      LIMITED.warning("subscribe", () -> String.format("subscribe to %s failed, fetch changes instead: %s",
+          primaryServer.getPlayerId(), e.toString()));
+    }
+  }
+
   @Override
   public void promoteToBackupServer(GameState gameState) throws RemoteException {
-    this.gameState = gameState;
-    this.gameState.setBackup(player);
+    pushesFrom = null;
+    synchronized (clientStateLock) {
+      this.gameState = gameState;
+      this.gameState.setBackup(player);
+    }
     LOGGER.info("promoted to new back up");
     LOGGER.info("start backup -> primary timer");
     startKeepAliveTimer();
@@ -550,49 +1515,122 @@ public class Game implements GameInterface {
   public void updateServers(Player primary, Player backup) throws RemoteException {
     gameState.setPrimary(primary);
     gameState.setBackup(backup);
+    if (pushesFrom != null && primary != null && !primary.getPlayerId().equals(pushesFrom)) {
+      subscribeToPrimary(); // the new primary does not know the subscriptions of the old one
+    }
+  }
+
+  /**
+   * [Primary] Promote a new backup and tell every player, as after losing the backup
+   */
+  void promoteBackup() {
+    synchronized (lock) {
+      new KeepAliveTask().internalPromote();
+    }
   }
 
   private void startKeepAliveTimer() {
     LOGGER.info("startKeepAliveTimer");
     Timer timer = new Timer();
-    timer.schedule(new KeepAliveTask(), 0, 1000);
+    keepAliveTimers.add(timer);
+    timer.schedule(new KeepAliveTask(), 0, HEARTBEAT_INTERVAL);
     timerStarted = true;
   }
 
+  /**
+   * The other server being watched, with the failure detector fed by its heartbeats
+   */
+  private static class Watch {
+    final String peerId;
+    final FailureDetector detector;
+
+    Watch(String peerId, long now) {
+      this.peerId = peerId;
+      this.detector = FailureDetector.fromSystemProperties(HEARTBEAT_INTERVAL);
+      // the watch starts with a heartbeat, a server just promoted gets the usual grace
+      detector.heartbeat(now);
+    }
+  }
+
+  private Watch watch(Player peer) {
+    Watch current = watch;
+    if (current == null || !current.peerId.equals(peer.getPlayerId())) {
+      current = new Watch(peer.getPlayerId(), System.currentTimeMillis());
+      watch = current;
+    }
+    return current;
+  }
+
+  /**
+   * Count a sign of life of the other server: a ping reply, or replication traffic that made a ping unnecessary
+   */
+  private void heartbeatFrom(Player peer, String source) {
+    Watch current = watch;
+    if (peer != null && current != null && current.peerId.equals(peer.getPlayerId())) {
+      current.detector.heartbeat(System.currentTimeMillis());
+      metrics.counter(Metrics.name("maze_heartbeats_total", "source", source)).increment();
+    }
+  }
+
   private class KeepAliveTask extends TimerTask {
     public synchronized void run() {
+      Player peer;
       if (isPrimary()) {
-        Player backup = gameState.getBackup();
-        if (backup == null) {
+        peer = gameState.getBackup();
+        if (peer == null) {
           return;
         }
-        try {
-          Registry backupRegistry = LocateRegistry.getRegistry(backup.getIp(), backup.getPortNumber());
-          GameInterface iBackup = (GameInterface) backupRegistry.lookup(backup.getPlayerId());
-          iBackup.ping();
-          LOGGER.info("Ping primary->backup : " + backup.getPlayerId());
-
-        } catch (RemoteException | NotBoundException e) {
-          LOGGER.warning("Ping primary->backup failed! Trying to internalPromote new backup server now.");
-          handleBackupServerDown(backup);
-        }
       } else if (isBackup()) {
-        Player primary = gameState.getPrimary();
-        if (primary == null) {
+        peer = gameState.getPrimary();
+        if (peer == null) {
           LOGGER.severe("Error: Primary server missing!");
           return;
         }
+      } else {
+        return;
+      }
 
-        try {
-          Registry primaryRegistry = LocateRegistry.getRegistry(primary.getIp(), primary.getPortNumber());
-          GameInterface iPrimary = (GameInterface) primaryRegistry.lookup(primary.getPlayerId());
-          iPrimary.ping();
-          LOGGER.info("Ping backup->primary : " + primary.getPlayerId());
-
-        } catch (RemoteException | NotBoundException e) {
-          LOGGER.warning(String.format("Ping backup->primary failed! Trying to internalPromote %s first.", player.getPlayerId()));
+      Watch current = watch(peer);
+      long now = System.currentTimeMillis();
+      if (!current.detector.isAvailable(now)) {
+        long silence = now - current.detector.lastHeartbeat();
+        metrics.histogram("maze_failure_detection").record(TimeUnit.MILLISECONDS.toNanos(silence));
+        if (isPrimary()) {
+          LOGGER.warning(String.format("backup %s silent for %d ms (suspicion %.1f)! Trying to internalPromote new "
+              + "backup server now.", peer.getPlayerId(), silence, current.detector.suspicion(now)));
+          handleBackupServerDown(peer);
+        } else {
+          LOGGER.warning(String.format("primary %s silent for %d ms (suspicion %.1f)! Trying to internalPromote %s "
+              + "first.", peer.getPlayerId(), silence, current.detector.suspicion(now), player.getPlayerId()));
           handlePrimaryServerDown();
         }
+        return;
+      }
+
+      // replication traffic already told the peer is alive
+      if (now - current.detector.lastHeartbeat() >= HEARTBEAT_INTERVAL && pingInFlight.compareAndSet(false, true)) {
+        try {
+          pinger.execute(() -> ping(peer));
+        } catch (RejectedExecutionException e) {
+          pingInFlight.set(false); // shut down
+        }
+      }
+    }
+
+    private void ping(Player peer) {
+      try {
+        long start = System.nanoTime();
+        peerStubs.invoke(peer, stub -> stub.ping());
+        metrics.histogram("maze_ping").recordSince(start);
+        heartbeatFrom(peer, "ping");
+        LOGGER.fine(() -> "Ping " + peer.getPlayerId());
+
+      } catch (RemoteException | NotBoundException e) {
+        // no heartbeat, the failure detector decides when the silence means a crash
+        metrics.counter("maze_ping_failures_total").increment();
+        LIMITED.warning("ping", () -> String.format("Ping %s failed: %s", peer.getPlayerId(), e.toString()));
+      } finally {
+        pingInFlight.set(false);
       }
     }
 
@@ -606,6 +1644,8 @@ public class Game implements GameInterface {
       
           gameState.exitPlayer(oldBackup);
           gameState.setBackup(null);
+          notifyTrackerLeft(oldBackup);
+          metrics.counter(Metrics.name("maze_failovers_total", "lost", "backup")).increment();
 
           // promote next player to backup
           internalPromote();
@@ -620,12 +1660,16 @@ public class Game implements GameInterface {
       synchronized (lock){
         // remove backup from player list
         if (!isPrimary()){
-          gameState.exitPlayer(gameState.getPrimary());
+          Player oldPrimary = gameState.getPrimary();
+          gameState.exitPlayer(oldPrimary);
+          notifyTrackerLeft(oldPrimary);
 
           LOGGER.info("promote self to primary and set backup to null");     
           gameState.setPrimary(player);
           gameState.setBackup(null);
+          metrics.counter(Metrics.name("maze_failovers_total", "lost", "primary")).increment();
           internalPromote();
+          startCommandLog();
         } else {
           LOGGER.info("promoted as " + player.getPlayerId() + "  as primary");
         }
@@ -639,49 +1683,80 @@ public class Game implements GameInterface {
 
       LOGGER.info("player size before promotion: " + gameState.getPlayers().keySet().size());
 
-      boolean found = false;
-      for (String id : gameState.getPlayers().keySet()) {
-        if (id.equals(gameState.getPrimary().getPlayerId())) {
-          continue;
+      List<Player> others = new ArrayList<>();
+      for (Player next : gameState.getPlayers().values()) {
+        if (!next.getPlayerId().equals(gameState.getPrimary().getPlayerId())) {
+          others.add(next);
         }
+      }
 
-        Player next = gameState.getPlayers().get(id);
+      // one backup at a time, in player order, until a player accepts
+      int promoted = 0;
+      for (; promoted < others.size(); promoted++) {
+        Player next = others.get(promoted);
         try {
-          if (!found) {
-            LOGGER.info(String.format("internalPromote %s as new backup | start", id));
+          LOGGER.info(String.format("internalPromote %s as new backup | start", next.getPlayerId()));
 
-            Registry registry = LocateRegistry.getRegistry(next.getIp(), next.getPortNumber());
-            GameInterface stub = (GameInterface) registry.lookup(next.getPlayerId());
+          fanOut.call(next, stub -> {
             stub.promoteToBackupServer(gameState);
-            gameState.setBackup(next); // set only after promoteToBackupServer is successful
-
-            LOGGER.info(String.format("internalPromote %s as new backup | start", id));
-
-            found = true; // once set to true, start broadcasting changes to other players
-
-          } else {
-            LOGGER.info(String.format("Notify player %s about new backup | start", id));
-
-            Registry registry = LocateRegistry.getRegistry(next.getIp(), next.getPortNumber());
-            GameInterface stub = (GameInterface) registry.lookup(next.getPlayerId());
-            stub.updateServers(gameState.getPrimary(), gameState.getBackup());
+            return null;
+          }, PROMOTE_TIMEOUT);
+          gameState.setBackup(next); // set only after promoteToBackupServer is successful
+          subscriptions.unsubscribe(next.getPlayerId()); // a backup gets the changes through replication
 
-            LOGGER.info(String.format("Notify player %s about new backup | end", id));
-          }
+          LOGGER.info(String.format("internalPromote %s as new backup | end", next.getPlayerId()));
+          break;
 
         } catch (RemoteException | NotBoundException e) {
-          LOGGER.severe("Unable to connect to player: " + next.getPlayerId());
+          LOGGER.severe(String.format("Unable to promote player %s: %s", next.getPlayerId(), e));
+          demote(next);
           removeList.add(next);
         }
       }
 
+      // then every other player at once
+      if (promoted + 1 < others.size()) {
+        Player primary = gameState.getPrimary();
+        Player backup = gameState.getBackup();
+        List<Player> rest = others.subList(promoted + 1, others.size());
+        LOGGER.info(String.format("Notify %d players about new backup | start", rest.size()));
+
+        List<Player> unreachable = fanOut.broadcast(rest, stub -> {
+          stub.updateServers(primary, backup);
+          return null;
+        });
+        for (Player next : unreachable) {
+          LOGGER.severe("Unable to connect to player: " + next.getPlayerId());
+        }
+        removeList.addAll(unreachable);
+
+        LOGGER.info(String.format("Notify %d players about new backup | end", rest.size()));
+      }
+
       for (Player player : removeList) {
         gameState.exitPlayer(player);
+        notifyTrackerLeft(player);
       }
 
       LOGGER.info("player size after promotion: " + gameState.getPlayers().keySet().size());
 
       notifyTracker();
     }
+
+    /**
+     * Take back a promotion that failed or timed out but may still have reached the player, before the next one
+     * is promoted, so it does not go on as a second backup
+     */
+    private void demote(Player peer) {
+      Player primary = gameState.getPrimary();
+      try {
+        fanOut.call(peer, stub -> {
+          stub.updateServers(primary, null);
+          return null;
+        });
+      } catch (RemoteException | NotBoundException e) {
+        LIMITED.warning("demote", () -> String.format("demote of %s failed: %s", peer.getPlayerId(), e.toString()));
+      }
+    }
   }
 }
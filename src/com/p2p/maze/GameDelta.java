@@ -0,0 +1,157 @@
+package com.p2p.maze;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * A single change applied to the GameState on the primary server
+ * <p>
+ * Deltas are numbered by the GameState version they produce and carry absolute values (cell, score),
+ * so the backup can replay them in order instead of receiving the whole GameState on every move
+ */
+public class GameDelta implements Externalizable {
+
+  public enum Type {
+    JOIN,     // player added at (posX, posY)
+    MOVE,     // player moved to (posX, posY) with new score
+    EXIT,     // player removed from the maze
+    TREASURE, // treasure placed at (posX, posY)
+    SEQ       // player's command refused, only its sequence number advanced to seq
+  }
+
+  private long version;
+  private Type type;
+  private String playerId;
+  private Player player;
+  private int posX;
+  private int posY;
+  private int score;
+  // MOVE, SEQ: sequence number of the command that made it, so a promoted backup still recognizes a retried command
+  private long seq;
+
+  public GameDelta() {}
+
+  private GameDelta(long version, Type type, String playerId, Player player, int posX, int posY, int score) {
+    this.version = version;
+    this.type = type;
+    this.playerId = playerId;
+    this.player = player;
+    this.posX = posX;
+    this.posY = posY;
+    this.score = score;
+  }
+
+  static GameDelta join(long version, Player player) {
+    Player copy = new Player(player.getPlayerId(), player.getIp(), player.getPortNumber());
+    copy.setScore(player.getScore());
+    copy.setLastSeq(player.getLastSeq());
+    return new GameDelta(version, Type.JOIN, player.getPlayerId(), copy,
+        player.getPosition().posX, player.getPosition().posY, player.getScore());
+  }
+
+  static GameDelta move(long version, Player player) {
+    GameDelta delta = new GameDelta(version, Type.MOVE, player.getPlayerId(), null,
+        player.getPosition().posX, player.getPosition().posY, player.getScore());
+    delta.seq = player.getLastSeq();
+    return delta;
+  }
+
+  static GameDelta seq(long version, Player player) {
+    GameDelta delta = new GameDelta(version, Type.SEQ, player.getPlayerId(), null, 0, 0, 0);
+    delta.seq = player.getLastSeq();
+    return delta;
+  }
+
+  static GameDelta exit(long version, String playerId) {
+    return new GameDelta(version, Type.EXIT, playerId, null, 0, 0, 0);
+  }
+
+  static GameDelta treasure(long version, int posX, int posY) {
+    return new GameDelta(version, Type.TREASURE, null, null, posX, posY, 0);
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getPlayerId() {
+    return playerId;
+  }
+
+  /**
+   * @return detached copy of the joining player (ip and port are needed by the backup), null for other types
+   */
+  public Player getPlayer() {
+    return player;
+  }
+
+  public int getPosX() {
+    return posX;
+  }
+
+  public int getPosY() {
+    return posY;
+  }
+
+  public int getScore() {
+    return score;
+  }
+
+  public long getSeq() {
+    return seq;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    WireFormat.writeHeader(out);
+    writeFields(out);
+  }
+
+  // also the record format of the CommandLog
+  void writeFields(DataOutput out) throws IOException {
+    WireFormat.writeVarLong(out, version);
+    out.writeByte(type.ordinal());
+    WireFormat.writeString(out, playerId);
+    Player.write(out, player);
+    WireFormat.writeVarInt(out, posX);
+    WireFormat.writeVarInt(out, posY);
+    WireFormat.writeVarInt(out, score);
+    WireFormat.writeVarLong(out, seq);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    WireFormat.readHeader(in, "GameDelta");
+    readFields(in);
+  }
+
+  void readFields(DataInput in) throws IOException {
+    version = WireFormat.readVarLong(in);
+    type = Type.values()[in.readUnsignedByte()];
+    playerId = WireFormat.readString(in);
+    player = Player.read(in);
+    posX = WireFormat.readVarInt(in);
+    posY = WireFormat.readVarInt(in);
+    score = WireFormat.readVarInt(in);
+    seq = WireFormat.readVarLong(in);
+  }
+
+  @Override
+  public String toString() {
+    return "GameDelta { " +
+        "version=" + version +
+        ", type=" + type +
+        ", playerId=" + playerId +
+        ", position=[" + posX + ", " + posY + "]" +
+        ", score=" + score +
+        '}';
+  }
+}
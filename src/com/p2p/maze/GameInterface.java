@@ -3,6 +3,7 @@ package com.p2p.maze;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  *
@@ -26,6 +27,35 @@ public interface GameInterface extends Remote {
    */
   public GameState executeCommand(Player player, Game.Command move) throws RemoteException, NotBoundException;
 
+  /**
+   * [Region primary -> region primary] Take over a player who stepped across the border into this region
+   *
+   * @param player the player, positioned on the cell it stepped to, with its score
+   * @return updated if the player was placed, with its position and score after collecting a treasure there
+   */
+  public MoveResult handoffPlayer(Player player) throws RemoteException;
+
+  /**
+   * [Primary] Player move in the maze, without shipping the game state back
+   * Players fetch the game state separately when they need to redraw
+   *
+   * @param move movement direction (1: west, 2: south, 3: east, 4: north) or exit
+   * @return mover's new position and score, and the game state version
+   */
+  public MoveResult executeMove(Player player, Game.Command move) throws RemoteException, NotBoundException;
+
+  /**
+   * [Primary] Player command numbered by the player, 1, 2, 3... A player may send several without waiting:
+   * they are played in sequence order, and one already applied (a retry after a lost reply or a failover)
+   * is answered with the player's current position instead of being played again
+   *
+   * @param player the player, whose lastSeq is the number up to which it has every reply: those commands are done,
+   * even if this server never heard of some (refused moves are not replicated)
+   * @param seq sequence number of the command among the player's commands
+   * @return mover's new position and score, and the game state version
+   */
+  public MoveResult executeMove(Player player, Game.Command move, long seq) throws RemoteException, NotBoundException;
+
   /**
    * [Primary <-> Backup] Ping each other every 2sec to check alive
    *
@@ -40,6 +70,14 @@ public interface GameInterface extends Remote {
    */
   public boolean syncGameState(GameState gameState) throws RemoteException;
 
+  /**
+   * [Primary -> Backup] Replay the changes made on primary since the last sync
+   *
+   * @param deltas changes in version order
+   * @return false if backup found a gap (or was never synced) and needs a full game state
+   */
+  public boolean syncGameDeltas(List<GameDelta> deltas) throws RemoteException;
+
   /**
    * [Primary -> player] Promote new backup server when old one exit
    *
@@ -56,4 +94,42 @@ public interface GameInterface extends Remote {
 
 
   public GameState getGameState() throws RemoteException;
+
+  /**
+   * [Primary] What the player sees in area of interest mode: the cells within radius of its position and the scores
+   *
+   * @param radius half the side of the square window around the player
+   * @return the view, null if the player is not in the game
+   */
+  public GameView getGameView(Player player, int radius) throws RemoteException;
+
+  /**
+   * [Primary] Changes since the version a player already has
+   *
+   * @param version version of the player's game state
+   * @return unchanged, the deltas since version, or the full game state if the player is too far behind
+   */
+  public GameStateDiff getGameStateSince(long version) throws RemoteException;
+
+  /**
+   * [Primary] Push the player the changes of the game state from now on, instead of it asking for them
+   * Replaces the player's earlier subscription; the player subscribes again to each new primary
+   *
+   * @param version version of the player's game state, changes after it are pushed first
+   * @return false if this server is not the primary and pushes nothing
+   */
+  public boolean subscribe(Player player, long version) throws RemoteException;
+
+  /**
+   * [Primary] Stop pushing changes to the player
+   */
+  public void unsubscribe(Player player) throws RemoteException;
+
+  /**
+   * [Primary -> player] Changes since the previous push: the deltas in version order, or the whole game state
+   * when the player fell too far behind. One push at a time per player
+   *
+   * @return false if the player no longer wants pushes
+   */
+  public boolean pushChanges(GameStateDiff diff) throws RemoteException;
 }
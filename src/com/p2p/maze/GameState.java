@@ -1,9 +1,22 @@
 package com.p2p.maze;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 /**
@@ -16,129 +29,784 @@ public class GameState extends TrackerState {
 
   private static final String TREASURE_VALUE = "*";
 
-  private String[][] maze;
+  // maze cells in row-major order (y * n + x): empty, treasure or the slot of the player in slotPlayerIds
+  private static final short EMPTY_CELL = 0;
+  private static final short TREASURE_CELL = -1;
+  private static final int MAX_PLAYERS = Short.MAX_VALUE;
+
+  private transient short[] cells;
+
+  // the empty cells, kept in step with cells
+  private transient FreeCellIndex freeCells;
+
+  // one bit per cell changed since the last drainChangedCells, all set for a new maze
+  private transient AtomicLongArray changedCells;
+
+  // slot -> player id for cells holding a player, slot 0 is never used
+  private transient String[] slotPlayerIds;
+  private transient Deque<Short> freeSlots;
+  private transient int nextSlot;
 
   private Map<String, Player> playerMap;
 
+  // version of this state, bumped by every change and carried by the GameDelta describing it
+  private volatile long version;
+
+  // where spawns and treasure respawns are drawn from, see randomSource
+  private transient Supplier<Random> random = randomSource(Long.getLong("maze.seed"));
+
+  // cells this game state plays when the maze is cut into regions, null for the whole maze; set with the cells
+  private transient Region ownRegion;
+
+  // changes not yet shipped to the backup server, never serialized with the state itself
+  private final transient List<GameDelta> pendingDeltas = new ArrayList<>();
+
+  /*
+   * Locking, in acquisition order:
+   * membershipLock  serializes joins and exits
+   * stateLock       held shared by every change and by the maze copy, exclusively by snapshot and replay
+   * Player monitor  serializes the moves of one player
+   * cell stripes    guard the cells a change touches, two stripes are taken in stripe order
+   * slotLock, deltaLock, freeCells  innermost, guard the slot table, the version / pending deltas and the free cells
+   * A delta is recorded while the stripes of its cells are held, so versions follow the order of changes per cell
+   */
+  private static final int STRIPES = 64;
+
+  private enum Claim { OCCUPIED, EMPTY, TREASURE }
+
+  private final transient Object membershipLock = new Object();
+  private final transient ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+  private final transient Object[] stripes = new Object[STRIPES];
+  private final transient Object slotLock = new Object();
+  private final transient Object deltaLock = new Object();
+
+  {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Object();
+    }
+  }
+
+  public GameState() {}
+
   public GameState(TrackerState trackerState){
     this.n = trackerState.getN();
     this.k = trackerState.getK();
     this.primary = trackerState.getPrimary();
     this.backup = trackerState.getBackup();
+    this.regions = trackerState.getRegions();
+    this.region = trackerState.getRegion();
+  }
+
+  /**
+   * @param random source of every spawn and treasure respawn, e.g. a seeded Random to replay a session
+   */
+  public GameState(TrackerState trackerState, Random random) {
+    this(trackerState);
+    this.random = () -> random;
+  }
+
+  /**
+   * Without a seed each thread uses its own ThreadLocalRandom, so concurrent moves never contend on it
+   * With a seed (-Dmaze.seed) one Random serves the whole game, so the spawns and respawns of a session repeat
+   */
+  static Supplier<Random> randomSource(Long seed) {
+    if (seed == null) {
+      return ThreadLocalRandom::current;
+    }
+    LOGGER.fine("random seed: " + seed);
+    Random seeded = new Random(seed);
+    return () -> seeded;
   }
 
   public void initGameState() {
-    this.maze = new String[n][n];
-    this.playerMap = new HashMap<>();
-    Random random = new Random();
+    initCells();
+    this.playerMap = new ConcurrentHashMap<>();
+    Random random = this.random.get();
     for(int i = 0; i < k; i++){
-      if(!this.addTreasureInMaze(random.nextInt(n), random.nextInt(n))){
-        i--;
-      }
+      addTreasureInMaze(random);
     }
   }
 
-  public synchronized void addPlayer(Player newPlayer) {
-    Random random = new Random();
+  public void addPlayer(Player newPlayer) {
+    Random random = this.random.get();
+    Claim claim;
 
-    if (this.playerMap.keySet().size() >= this.n * this.n) {
-      LOGGER.warning("Too many players!");
-      return;
-    }
+    synchronized (membershipLock) {
+      stateLock.readLock().lock();
+      try {
+        if (this.playerMap.keySet().size() >= Math.min(this.n * this.n, MAX_PLAYERS) || freeCells.size() == 0) {
+          LOGGER.warning("Too many players!");
+          return;
+        }
 
-    // handle scenario: new player has same ID as an old dead player
-    Player oldPlayer = playerMap.get(newPlayer.getPlayerId());
-    if (oldPlayer != null){
-      removeInMaze(oldPlayer.getPosition().posX, oldPlayer.getPosition().posY);
-    }
-    this.playerMap.put(newPlayer.getPlayerId(), newPlayer);
+        // handle scenario: new player has same ID as an old dead player
+        Player oldPlayer = playerMap.get(newPlayer.getPlayerId());
+        if (oldPlayer != null){
+          synchronized (oldPlayer) {
+            synchronized (stripe(positionIndex(oldPlayer))) {
+              removePlayerInMaze(oldPlayer);
+            }
+          }
+        }
+        this.playerMap.put(newPlayer.getPlayerId(), newPlayer);
 
-    while(!this.add(random.nextInt(n), random.nextInt(n), newPlayer)){
-      LOGGER.fine("trying to add new player: " + newPlayer.getPlayerId());
+        short slot = allocateSlot(newPlayer.getPlayerId());
+        synchronized (newPlayer) {
+          // a free cell can only be lost to a concurrent move or treasure between picking and claiming it
+          int cell;
+          claim = Claim.OCCUPIED;
+          while (claim == Claim.OCCUPIED && (cell = freeCells.random(random)) >= 0) {
+            claim = this.add(cell % n, cell / n, newPlayer, slot, -1);
+          }
+        }
+        if (claim == Claim.OCCUPIED) {
+          this.playerMap.remove(newPlayer.getPlayerId());
+          synchronized (slotLock) {
+            slotPlayerIds[slot] = null;
+            freeSlots.push(slot);
+          }
+          LOGGER.warning("Too many players!");
+          return;
+        }
+        if (claim == Claim.TREASURE) {
+          respawnTreasure(random);
+        }
+      } finally {
+        stateLock.readLock().unlock();
+      }
     }
 
     LOGGER.info("added new player " + newPlayer.getPlayerId());
   }
 
-  public synchronized boolean move(Player player, int x, int y) {
-    String playerID = player.getPlayerId();
-    player = this.playerMap.get(playerID);
-    int oldPositionX = player.getPosition().posX;
-    int oldPositionY = player.getPosition().posY;
-    int newPositionX = player.getPosition().posX + x;
-    int newPositionY = player.getPosition().posY + y;
-
-    if(newPositionX < 0 || newPositionX > n-1 || newPositionY < 0 || newPositionY > n-1) {
+  /**
+   * [Primary] Take over a player handed off by a neighbour region, on the cell the player stepped to
+   *
+   * @return false if the cell is outside this region or taken, or the player is already here
+   */
+  public boolean admitPlayer(Player newPlayer) {
+    int positionX = newPlayer.getPosition().posX;
+    int positionY = newPlayer.getPosition().posY;
+    if (positionX < 0 || positionX > n - 1 || positionY < 0 || positionY > n - 1 || !isInRegion(positionX, positionY)) {
       return false;
     }
+    Claim claim;
+    synchronized (membershipLock) {
+      stateLock.readLock().lock();
+      try {
+        if (this.playerMap.size() >= MAX_PLAYERS || this.playerMap.putIfAbsent(newPlayer.getPlayerId(), newPlayer) != null) {
+          return false;
+        }
+        short slot = allocateSlot(newPlayer.getPlayerId());
+        synchronized (newPlayer) {
+          claim = this.add(positionX, positionY, newPlayer, slot, -1);
+        }
+        if (claim == Claim.OCCUPIED) {
+          this.playerMap.remove(newPlayer.getPlayerId());
+          synchronized (slotLock) {
+            slotPlayerIds[slot] = null;
+            freeSlots.push(slot);
+          }
+          return false;
+        }
+      } finally {
+        stateLock.readLock().unlock();
+      }
+    }
+    if (claim == Claim.TREASURE) {
+      respawnTreasure(random.get());
+    }
+    LOGGER.fine(() -> "admitted player " + newPlayer.getPlayerId());
+    return true;
+  }
+
+  public boolean move(Player player, int x, int y) {
+    return move(player, x, y, 0);
+  }
+
+  /**
+   * [Primary] Move a player by one of its numbered commands
+   * The command counts as applied even when the move is refused, a retry of it is not played again: a refusal
+   * records a SEQ delta, so the backup and the command log learn the number as well
+   *
+   * @param seq the command's sequence number, 0 for a command that is not numbered
+   * @return false if the move was refused, or seq was already applied
+   */
+  public boolean move(Player player, int x, int y, long seq) {
+    Claim claim;
 
-    if (this.add(newPositionX, newPositionY, player)) {
-      removeInMaze(oldPositionX, oldPositionY);
+    stateLock.readLock().lock();
+    try {
+      String playerID = player.getPlayerId();
+      player = this.playerMap.get(playerID);
+      if (player == null) {
+        return false;
+      }
+
+      synchronized (player) {
+        if (this.playerMap.get(playerID) != player) {
+          return false; // exited while waiting for the monitor
+        }
+        if (seq != 0) {
+          if (seq <= player.getLastSeq()) {
+            return false; // a retry racing the original
+          }
+          player.setLastSeq(seq);
+          player.notifyAll(); // commands queued behind this one, see awaitTurn
+        }
+        int oldPositionX = player.getPosition().posX;
+        int oldPositionY = player.getPosition().posY;
+        int newPositionX = player.getPosition().posX + x;
+        int newPositionY = player.getPosition().posY + y;
+
+        if(newPositionX < 0 || newPositionX > n-1 || newPositionY < 0 || newPositionY > n-1) {
+          return refused(player, seq);
+        }
+        if (!isInRegion(newPositionX, newPositionY)) {
+          return refused(player, seq); // the region owning the cell takes the player over, see Game.handoffPlayer
+        }
+
+        int oldIndex = cellIndex(oldPositionX, oldPositionY);
+        int newIndex = cellIndex(newPositionX, newPositionY);
+        int oldStripe = stripeOf(oldIndex);
+        int newStripe = stripeOf(newIndex);
+        synchronized (stripes[Math.min(oldStripe, newStripe)]) {
+          synchronized (stripes[Math.max(oldStripe, newStripe)]) {
+            claim = this.add(newPositionX, newPositionY, player, slotOf(player), oldIndex);
+          }
+        }
+        if (claim == Claim.OCCUPIED) {
+          return refused(player, seq);
+        }
+      }
+
+      if (claim == Claim.TREASURE) {
+        respawnTreasure(random.get());
+      }
       return true;
+    } finally {
+      stateLock.readLock().unlock();
     }
+  }
 
+  /**
+   * [Primary] Hold a numbered command until the player's earlier commands were applied, so commands sent
+   * without waiting for each other are still played in order. Gives up after maxWaitMillis: an earlier command
+   * that got lost is then skipped
+   *
+   * @return false if seq was already applied, the command is a retry and must not be played again
+   */
+  public boolean awaitTurn(String playerId, long seq, long maxWaitMillis) {
+    Player player = playerMap.get(playerId);
+    if (player == null) {
+      return true;
+    }
+    synchronized (player) {
+      long deadline = System.currentTimeMillis() + maxWaitMillis;
+      long wait;
+      while (seq > player.getLastSeq() + 1 && (wait = deadline - System.currentTimeMillis()) > 0) {
+        try {
+          player.wait(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      return seq > player.getLastSeq();
+    }
+  }
+
+  // a refused numbered command still advanced the player's seq, the backup hears of it like of a move;
+  // under the player's monitor
+  private boolean refused(Player player, long seq) {
+    if (seq != 0) {
+      recordDelta(GameDelta.Type.SEQ, player, 0, 0);
+    }
     return false;
   }
 
-  private synchronized void collectTreasureAndUpdateScore(Player player, int positionX, int positionY) {
+  /**
+   * [Primary] Count a numbered command that changed nothing here as applied, releasing the commands behind it
+   *
+   * @return true if seq was new, its SEQ delta is then pending for the backup
+   */
+  public boolean skipCommand(String playerId, long seq) {
+    stateLock.readLock().lock();
+    try {
+      Player player = playerMap.get(playerId);
+      if (player == null || seq == 0) {
+        return false;
+      }
+      synchronized (player) {
+        if (seq <= player.getLastSeq() || playerMap.get(playerId) != player) {
+          return false;
+        }
+        player.setLastSeq(seq);
+        player.notifyAll();
+        recordDelta(GameDelta.Type.SEQ, player, 0, 0);
+        return true;
+      }
+    } finally {
+      stateLock.readLock().unlock();
+    }
+  }
+
+  private void collectTreasureAndUpdateScore(Player player) {
     Integer score = player.getScore();
     score++;
     player.setScore(score);
+  }
 
-    // only if player size and K smaller than size of map
+  // place a new treasure for the one just collected, only if player size and K smaller than size of map
+  private void respawnTreasure(Random random) {
     if((this.playerMap.keySet().size() + this.k) <= this.n * this.n) {
-      Random random = new Random();
+      addTreasureInMaze(random);
+      LOGGER.fine("Added Treasure");
+    }
+  }
 
-      while(!this.addTreasureInMaze(random.nextInt(n), random.nextInt(n))){
-        LOGGER.fine("Trying to add a new Treasure");
+  /**
+   * Claim a cell for the player, collecting the treasure on it; a move already holds the stripes of both cells
+   *
+   * @param oldIndex cell the player leaves, -1 when joining
+   */
+  private Claim add(int newPositionX, int newPositionY, Player player, short slot, int oldIndex) {
+    int index = cellIndex(newPositionX, newPositionY);
+    Claim claim = Claim.EMPTY;
+    synchronized (stripe(index)) {
+      if (cells[index] != EMPTY_CELL) {
+        if (cells[index] == TREASURE_CELL){
+          collectTreasureAndUpdateScore(player);
+          claim = Claim.TREASURE;
+        } else {
+          return Claim.OCCUPIED;
+        }
+      }
+
+      setCell(index, slot);
+      player.getPosition().posX = newPositionX;
+      player.getPosition().posY = newPositionY;
+      if (oldIndex < 0) {
+        recordDelta(GameDelta.Type.JOIN, player, 0, 0);
+      } else {
+        setCell(oldIndex, EMPTY_CELL);
+        recordDelta(GameDelta.Type.MOVE, player, 0, 0);
       }
-      LOGGER.info("Added Treasure");
     }
-    this.removeInMaze(positionX, positionY);
+    return claim;
   }
 
-  private synchronized boolean add(int newPositionX, int newPositionY, Player player) {
-    String playerID =  player.getPlayerId();
-    if (maze[newPositionY][newPositionX] != null) {
-      if (TREASURE_VALUE.equals(maze[newPositionY][newPositionX])){
-        collectTreasureAndUpdateScore(player, newPositionX, newPositionY);
-      } else {
-        return false;
+  private void addTreasureInMaze(Random random) {
+    int index;
+    while ((index = freeCells.random(random)) >= 0) {
+      synchronized (stripe(index)) {
+        if (cells[index] == EMPTY_CELL) {
+          setCell(index, TREASURE_CELL);
+          recordDelta(GameDelta.Type.TREASURE, null, index % n, index / n);
+          return;
+        }
+      }
+      LOGGER.fine("Trying to add a new Treasure");
+    }
+    LOGGER.warning("No empty cell for a new treasure");
+  }
+
+  public boolean exitPlayer(Player player){
+    String playerId = player.getPlayerId();
+    synchronized (membershipLock) {
+      stateLock.readLock().lock();
+      try {
+        player = this.playerMap.get(playerId);
+        if (player == null) {
+          return false;
+        }
+        synchronized (player) {
+          synchronized (stripe(positionIndex(player))) {
+            removePlayerInMaze(player);
+            this.playerMap.remove(playerId);
+            recordDelta(GameDelta.Type.EXIT, player, 0, 0);
+          }
+        }
+      } finally {
+        stateLock.readLock().unlock();
       }
     }
 
-    maze[newPositionY][newPositionX] = playerID;
-    playerMap.get(playerID).getPosition().posX = newPositionX;
-    playerMap.get(playerID).getPosition().posY = newPositionY;
+    Player backupServer = getBackup();
+    if (backupServer != null && backupServer.getPlayerId().equals(playerId)) {
+      setBackup(null);
+    }
     return true;
   }
 
-  private void removeInMaze(int oldPositionX , int oldPositionY) {
-    maze[oldPositionY][oldPositionX] = null;
+  private void recordDelta(GameDelta.Type type, Player player, int positionX, int positionY) {
+    synchronized (deltaLock) {
+      long next = version + 1;
+      switch (type) {
+        case JOIN:
+          pendingDeltas.add(GameDelta.join(next, player));
+          break;
+        case MOVE:
+          pendingDeltas.add(GameDelta.move(next, player));
+          break;
+        case EXIT:
+          pendingDeltas.add(GameDelta.exit(next, player.getPlayerId()));
+          break;
+        case TREASURE:
+          pendingDeltas.add(GameDelta.treasure(next, positionX, positionY));
+          break;
+        case SEQ:
+          pendingDeltas.add(GameDelta.seq(next, player));
+          break;
+      }
+      version = next;
+    }
+  }
+
+  /**
+   * [Primary] Take the changes made since the last call, in version order
+   *
+   * @return pending deltas, empty if nothing changed
+   */
+  public List<GameDelta> drainDeltas() {
+    synchronized (deltaLock) {
+      List<GameDelta> deltas = new ArrayList<>(pendingDeltas);
+      pendingDeltas.clear();
+      return deltas;
+    }
+  }
+
+  /**
+   * [Backup] Replay a change made on the primary server
+   * Deltas already covered by this state are ignored, so a full snapshot followed by older deltas is harmless
+   *
+   * @param delta change to apply
+   * @return false if there is a gap before this delta (or it does not fit this state), a full snapshot is needed
+   */
+  public boolean applyDelta(GameDelta delta) {
+    stateLock.writeLock().lock();
+    try {
+      return replay(delta);
+    } finally {
+      stateLock.writeLock().unlock();
+    }
   }
 
-  private synchronized boolean addTreasureInMaze(int newPositionX, int newPositionY) {
-    if(maze[newPositionX][newPositionY] != null){
+  private boolean replay(GameDelta delta) {
+    if (delta.getVersion() <= version) {
+      return true;
+    }
+    if (delta.getVersion() != version + 1 || cells == null) {
       return false;
-    } else {
-      maze[newPositionX][newPositionY] = TREASURE_VALUE;
     }
+
+    String playerId = delta.getPlayerId();
+    Player player = playerId == null ? null : playerMap.get(playerId);
+    switch (delta.getType()) {
+      case JOIN:
+        if (player != null) {
+          removePlayerInMaze(player);
+        }
+        player = delta.getPlayer();
+        player.setPosition(new Position(delta.getPosX(), delta.getPosY()));
+        playerMap.put(playerId, player);
+        setCell(cellIndex(delta.getPosX(), delta.getPosY()), allocateSlot(playerId));
+        break;
+
+      case MOVE:
+        if (player == null) {
+          return false;
+        }
+        relocate(player, delta.getPosX(), delta.getPosY(), delta.getScore());
+        player.setLastSeq(Math.max(player.getLastSeq(), delta.getSeq()));
+        break;
+
+      case EXIT:
+        if (player != null) {
+          removePlayerInMaze(player);
+          playerMap.remove(playerId);
+        }
+        if (backup != null && backup.getPlayerId().equals(playerId)) {
+          setBackup(null);
+        }
+        break;
+
+      case TREASURE:
+        if (cells[cellIndex(delta.getPosX(), delta.getPosY())] == EMPTY_CELL) {
+          setCell(cellIndex(delta.getPosX(), delta.getPosY()), TREASURE_CELL);
+        }
+        break;
+
+      case SEQ:
+        if (player != null) {
+          player.setLastSeq(Math.max(player.getLastSeq(), delta.getSeq()));
+        }
+        break;
+    }
+    version = delta.getVersion();
     return true;
   }
 
-  public synchronized boolean exitPlayer(Player player){
-    String playerId = player.getPlayerId();
-    player = this.playerMap.get(playerId);
-    removeInMaze(player.getPosition().posX, player.getPosition().posY);
+  /**
+   * [Player] Apply the player's own move reported by the primary to this local copy
+   * The version is left untouched, other changes are only seen on the next game state refresh
+   *
+   * @return false if the player is not in this game state
+   */
+  public boolean relocatePlayer(String playerId, Position position, int score) {
+    stateLock.writeLock().lock();
+    try {
+      Player player = playerMap == null ? null : playerMap.get(playerId);
+      if (player == null || cells == null || position == null) {
+        return false;
+      }
+      relocate(player, position.posX, position.posY, score);
+      return true;
+    } finally {
+      stateLock.writeLock().unlock();
+    }
+  }
 
-    this.playerMap.remove(playerId);
-    Player backupServer = getBackup();
-    if (backupServer != null && backupServer.getPlayerId().equals(playerId)) {
-      setBackup(null);
+  private void relocate(Player player, int positionX, int positionY, int score) {
+    short slot = slotOf(player);
+    int index = cellIndex(player.getPosition().posX, player.getPosition().posY);
+    if (cells[index] == slot) {
+      setCell(index, EMPTY_CELL);
+    }
+    player.getPosition().posX = positionX;
+    player.getPosition().posY = positionY;
+    player.setScore(score);
+    setCell(cellIndex(positionX, positionY), slot);
+  }
+
+  // clear the player's cell only if it still holds this player, and release the player's slot
+  private void removePlayerInMaze(Player player) {
+    short slot = slotOf(player);
+    int index = cellIndex(player.getPosition().posX, player.getPosition().posY);
+    if (cells[index] == slot) {
+      setCell(index, EMPTY_CELL);
+    }
+    synchronized (slotLock) {
+      slotPlayerIds[slot] = null;
+      freeSlots.push(slot);
+    }
+  }
+
+  private void initCells() {
+    this.cells = new short[n * n];
+    this.freeCells = new FreeCellIndex(n * n);
+    this.changedCells = new AtomicLongArray((n * n + 63) / 64);
+    for (int word = 0; word < changedCells.length(); word++) {
+      changedCells.set(word, -1L);
+    }
+    this.ownRegion = regions > 0 ? RegionDirectory.split(n, regions).get(region) : null;
+    if (ownRegion != null) {
+      // cells of other regions are never free here: players and treasures are only placed in this region
+      for (int index = 0; index < n * n; index++) {
+        if (!ownRegion.contains(index % n, index / n)) {
+          freeCells.take(index);
+        }
+      }
+    }
+    this.slotPlayerIds = new String[16];
+    this.freeSlots = new ArrayDeque<>();
+    this.nextSlot = 1;
+  }
+
+  // every cell change goes through here, so the free cell index and the changed cells follow the maze
+  private void setCell(int index, short value) {
+    cells[index] = value;
+    if (value == EMPTY_CELL) {
+      freeCells.release(index);
+    } else {
+      freeCells.take(index);
+    }
+    long bit = 1L << (index & 63);
+    if ((changedCells.get(index >> 6) & bit) == 0) {
+      changedCells.getAndAccumulate(index >> 6, bit, (bits, mark) -> bits | mark);
+    }
+  }
+
+  private int cellIndex(int positionX, int positionY) {
+    return positionY * n + positionX;
+  }
+
+  private int positionIndex(Player player) {
+    return cellIndex(player.getPosition().posX, player.getPosition().posY);
+  }
+
+  private int stripeOf(int index) {
+    return index & (STRIPES - 1);
+  }
+
+  private Object stripe(int index) {
+    return stripes[stripeOf(index)];
+  }
+
+  private short allocateSlot(String playerId) {
+    synchronized (slotLock) {
+      short slot;
+      if (!freeSlots.isEmpty()) {
+        slot = freeSlots.pop();
+      } else {
+        slot = (short) nextSlot++;
+        if (slot >= slotPlayerIds.length) {
+          slotPlayerIds = Arrays.copyOf(slotPlayerIds, Math.min(slotPlayerIds.length * 2, MAX_PLAYERS + 1));
+        }
+      }
+      slotPlayerIds[slot] = playerId;
+      return slot;
+    }
+  }
+
+  // slot held by the player, normally found at the player's own cell
+  private short slotOf(Player player) {
+    short slot = cells[positionIndex(player)];
+    synchronized (slotLock) {
+      if (slot > EMPTY_CELL && player.getPlayerId().equals(slotPlayerIds[slot])) {
+        return slot;
+      }
+      for (int i = 1; i < nextSlot; i++) {
+        if (player.getPlayerId().equals(slotPlayerIds[i])) {
+          return (short) i;
+        }
+      }
+    }
+    return allocateSlot(player.getPlayerId());
+  }
+
+  /**
+   * @return player id at the cell, TREASURE_VALUE for a treasure or null if empty
+   */
+  public String getCell(int positionX, int positionY) {
+    int index = cellIndex(positionX, positionY);
+    short value;
+    synchronized (stripe(index)) {
+      value = cells[index];
+    }
+    synchronized (slotLock) {
+      return cellValue(value);
+    }
+  }
+
+  // caller holds the slot table still, through slotLock or stateLock exclusively
+  private String cellValue(short value) {
+    if (value == EMPTY_CELL) {
+      return null;
+    }
+    return value == TREASURE_CELL ? TREASURE_VALUE : slotPlayerIds[value];
+  }
+
+  /**
+   * [Primary] The cells within radius of a position (a square window, cut at the maze edges) and every score
+   *
+   * @return the view, null before initGameState
+   */
+  public GameView view(int centerX, int centerY, int radius) {
+    stateLock.readLock().lock();
+    try {
+      if (cells == null) {
+        return null;
+      }
+      int fromX = Math.max(0, centerX - radius);
+      int fromY = Math.max(0, centerY - radius);
+      int width = Math.min(n - 1, centerX + radius) - fromX + 1;
+      int height = Math.min(n - 1, centerY + radius) - fromY + 1;
+      short[] window = new short[Math.max(0, width) * Math.max(0, height)];
+      for (int row = 0; row < height; row++) {
+        for (int col = 0; col < width; col++) {
+          int index = cellIndex(fromX + col, fromY + row);
+          synchronized (stripe(index)) {
+            window[row * width + col] = cells[index];
+          }
+        }
+      }
+      String[] labels = new String[window.length];
+      synchronized (slotLock) {
+        for (int i = 0; i < window.length; i++) {
+          labels[i] = cellValue(window[i]);
+        }
+      }
+      Map<String, Integer> scores = new LinkedHashMap<>();
+      for (Player player : playerMap.values()) {
+        scores.put(player.getPlayerId(), player.getScore());
+      }
+      return new GameView(n, version, fromX, fromY, Math.max(0, width), Math.max(0, height), labels, scores,
+          primary == null ? null : primary.getPlayerId(), backup == null ? null : backup.getPlayerId());
+    } finally {
+      stateLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Hand every cell changed since the previous call to the visitor, every cell on the first call; without stopping
+   * moves, like view. Meant for a single reader, the GUI: a second one would take changes from the first
+   *
+   * @return false before initGameState
+   */
+  public boolean drainChangedCells(CellVisitor visitor) {
+    int[] changed;
+    String[] values;
+    stateLock.readLock().lock();
+    try {
+      if (cells == null) {
+        return false;
+      }
+      int count = 0;
+      changed = new int[64];
+      for (int word = 0; word < changedCells.length(); word++) {
+        // cleared before the cells are read: a change racing the read marks its cell again
+        long bits = changedCells.get(word) == 0 ? 0 : changedCells.getAndSet(word, 0);
+        while (bits != 0) {
+          int index = word * 64 + Long.numberOfTrailingZeros(bits);
+          bits &= bits - 1;
+          if (index < cells.length) {
+            if (count == changed.length) {
+              changed = Arrays.copyOf(changed, count * 2);
+            }
+            changed[count++] = index;
+          }
+        }
+      }
+      short[] copy = new short[count];
+      for (int i = 0; i < count; i++) {
+        synchronized (stripe(changed[i])) {
+          copy[i] = cells[changed[i]];
+        }
+      }
+      values = new String[count];
+      synchronized (slotLock) {
+        for (int i = 0; i < count; i++) {
+          values[i] = cellValue(copy[i]);
+        }
+      }
+    } finally {
+      stateLock.readLock().unlock();
+    }
+    for (int i = 0; i < values.length; i++) {
+      visitor.cell(changed[i] % n, changed[i] / n, values[i]);
     }
     return true;
   }
 
+  public interface CellVisitor {
+    /**
+     * @param value player id, TREASURE_VALUE or null
+     */
+    void cell(int positionX, int positionY, String value);
+  }
+
+  /**
+   * @return true if this game state plays the cell: always, unless the maze is cut into regions
+   */
+  public boolean isInRegion(int positionX, int positionY) {
+    return ownRegion == null || ownRegion.contains(positionX, positionY);
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
   public Player getPlayer(String playerId) {
     return this.playerMap.get(playerId);
   }
@@ -147,7 +815,46 @@ public class GameState extends TrackerState {
     return this.playerMap;
   }
 
-  public String [][] getMaze() { return this.maze; }
+  /**
+   * Copied cell by cell without stopping moves: a move in progress may show in one of its two cells only
+   *
+   * @return copy of the maze indexed [y][x], holding player ids, TREASURE_VALUE or null; null before initGameState
+   */
+  public String [][] getMaze() {
+    stateLock.readLock().lock();
+    try {
+      if (cells == null) {
+        return null;
+      }
+      String[] values = cellValues();
+      String[][] maze = new String[n][n];
+      for (int row = 0; row < n; row++) {
+        for (int col = 0; col < n; col++) {
+          maze[row][col] = values[cellIndex(col, row)];
+        }
+      }
+      return maze;
+    } finally {
+      stateLock.readLock().unlock();
+    }
+  }
+
+  // every cell, each read under its stripe; caller holds stateLock
+  private String[] cellValues() {
+    short[] copy = new short[cells.length];
+    for (int index = 0; index < copy.length; index++) {
+      synchronized (stripe(index)) {
+        copy[index] = cells[index];
+      }
+    }
+    String[] values = new String[copy.length];
+    synchronized (slotLock) {
+      for (int index = 0; index < copy.length; index++) {
+        values[index] = cellValue(copy[index]);
+      }
+    }
+    return values;
+  }
 
   public String getPlayerInfo(){
      return "GameState{" +
@@ -161,16 +868,26 @@ public class GameState extends TrackerState {
 
   @Override
   public String toString() {
+    stateLock.readLock().lock();
+    try {
+      return render();
+    } finally {
+      stateLock.readLock().unlock();
+    }
+  }
+
+  private String render() {
     StringBuilder stringBuffer = new StringBuilder();
-    stringBuffer.append(String.format("GameState { n = %d, k = %d\nprimary: %s\nbackup: %s\nplayer positions: %s }",
-            n, k, primary, backup, Arrays.asList(playerMap)));
+    stringBuffer.append(String.format("GameState { n = %d, k = %d, version = %d\nprimary: %s\nbackup: %s\nplayer positions: %s }",
+            n, k, version, primary, backup, Arrays.asList(playerMap)));
 
     String newLineStr = System.getProperty("line.separator");
     stringBuffer.append(newLineStr);
     stringBuffer.append("maze:");
-    if (maze == null) {
+    if (cells == null) {
       stringBuffer.append("null");
     } else {
+      String[] values = cellValues();
       stringBuffer.append(newLineStr);
       for (int row = 0; row < n + 1; row++) {
         for (int col = 0; col < n + 1; col++) {
@@ -186,7 +903,7 @@ public class GameState extends TrackerState {
             continue;
           }
 
-          String value = maze[row - 1][col - 1];
+          String value = values[cellIndex(col - 1, row - 1)];
           if (TREASURE_VALUE.equals(value)) {
             stringBuffer.append(TREASURE_VALUE + "   ");
 
@@ -206,6 +923,153 @@ public class GameState extends TrackerState {
     return stringBuffer.toString();
   }
 
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    // exclusive, so the snapshot is not torn by changes in progress
+    stateLock.writeLock().lock();
+    try {
+      writeState(out);
+    } finally {
+      stateLock.writeLock().unlock();
+    }
+  }
+
+  private void writeState(ObjectOutput out) throws IOException {
+    WireFormat.writeHeader(out);
+    WireFormat.writeVarInt(out, n);
+    WireFormat.writeVarInt(out, k);
+    WireFormat.writeVarInt(out, regions);
+    WireFormat.writeVarInt(out, region);
+    WireFormat.writeVarLong(out, version);
+
+    // players are written once, the servers and maze cells refer to them by index
+    Map<String, Integer> playerIndex = new HashMap<>();
+    List<Player> players = new ArrayList<>();
+    if (playerMap == null) {
+      WireFormat.writeVarInt(out, 0);
+    } else {
+      WireFormat.writeVarInt(out, playerMap.size() + 1);
+      for (Player player : playerMap.values()) {
+        playerIndex.put(player.getPlayerId(), players.size());
+        players.add(player);
+        player.writeFields(out);
+      }
+    }
+    writePlayerReference(out, primary, playerIndex, players);
+    writePlayerReference(out, backup, playerIndex, players);
+
+    out.writeBoolean(cells != null);
+    if (cells == null) {
+      return;
+    }
+    int occupied = 0;
+    for (short cell : cells) {
+      if (cell != EMPTY_CELL) {
+        occupied++;
+      }
+    }
+    WireFormat.writeVarInt(out, occupied);
+    int previousIndex = 0;
+    for (int index = 0; index < cells.length; index++) {
+      if (cells[index] == EMPTY_CELL) {
+        continue;
+      }
+      WireFormat.writeVarInt(out, index - previousIndex);
+      previousIndex = index;
+      if (cells[index] == TREASURE_CELL) {
+        WireFormat.writeVarInt(out, 0);
+      } else {
+        String playerId = slotPlayerIds[cells[index]];
+        Integer reference = playerIndex.get(playerId);
+        if (reference == null) {
+          WireFormat.writeVarInt(out, 1);
+          WireFormat.writeString(out, playerId);
+        } else {
+          WireFormat.writeVarInt(out, reference + 2);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    stateLock.writeLock().lock();
+    try {
+      readState(in);
+    } finally {
+      stateLock.writeLock().unlock();
+    }
+  }
+
+  private void readState(ObjectInput in) throws IOException {
+    WireFormat.readHeader(in, "GameState");
+    n = WireFormat.readVarInt(in);
+    k = WireFormat.readVarInt(in);
+    regions = WireFormat.readVarInt(in);
+    region = WireFormat.readVarInt(in);
+    version = WireFormat.readVarLong(in);
+
+    List<Player> players = new ArrayList<>();
+    int playerCount = WireFormat.readVarInt(in) - 1;
+    if (playerCount >= 0) {
+      playerMap = new ConcurrentHashMap<>();
+      for (int i = 0; i < playerCount; i++) {
+        Player player = new Player();
+        player.readFields(in);
+        players.add(player);
+        playerMap.put(player.getPlayerId(), player);
+      }
+    }
+    primary = readPlayerReference(in, players);
+    backup = readPlayerReference(in, players);
+
+    if (!in.readBoolean()) {
+      return;
+    }
+    initCells();
+    int occupied = WireFormat.readVarInt(in);
+    int index = 0;
+    for (int i = 0; i < occupied; i++) {
+      index += WireFormat.readVarInt(in);
+      int value = WireFormat.readVarInt(in);
+      if (value == 0) {
+        setCell(index, TREASURE_CELL);
+      } else if (value == 1) {
+        setCell(index, allocateSlot(WireFormat.readString(in)));
+      } else {
+        setCell(index, allocateSlot(players.get(value - 2).getPlayerId()));
+      }
+    }
+  }
+
+  // 0: null, 1: player written inline, otherwise index + 2 of the very same object in the player list
+  private static void writePlayerReference(ObjectOutput out, Player player, Map<String, Integer> playerIndex,
+                                           List<Player> players) throws IOException {
+    if (player == null) {
+      WireFormat.writeVarInt(out, 0);
+      return;
+    }
+    Integer reference = playerIndex.get(player.getPlayerId());
+    if (reference != null && players.get(reference) == player) {
+      WireFormat.writeVarInt(out, reference + 2);
+    } else {
+      WireFormat.writeVarInt(out, 1);
+      player.writeFields(out);
+    }
+  }
+
+  private static Player readPlayerReference(ObjectInput in, List<Player> players) throws IOException {
+    int reference = WireFormat.readVarInt(in);
+    if (reference == 0) {
+      return null;
+    } else if (reference == 1) {
+      Player player = new Player();
+      player.readFields(in);
+      return player;
+    }
+    return players.get(reference - 2);
+  }
+
   private String getIndex(int index) {
     if (index < 10) {
       return "0" + index + "  ";
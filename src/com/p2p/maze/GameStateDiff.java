@@ -0,0 +1,129 @@
+package com.p2p.maze;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Answer to "what changed since version X": nothing, the deltas after X, or a full GameState
+ * when the primary no longer remembers that far back
+ */
+public class GameStateDiff implements Externalizable {
+
+  public enum Type {
+    UNCHANGED,
+    DELTAS,
+    SNAPSHOT
+  }
+
+  private Type type;
+  private long version;
+  private List<GameDelta> deltas = Collections.emptyList();
+  private GameState snapshot;
+
+  public GameStateDiff() {}
+
+  private GameStateDiff(Type type, long version, List<GameDelta> deltas, GameState snapshot) {
+    this.type = type;
+    this.version = version;
+    this.deltas = deltas;
+    this.snapshot = snapshot;
+  }
+
+  static GameStateDiff unchanged(long version) {
+    return new GameStateDiff(Type.UNCHANGED, version, Collections.<GameDelta>emptyList(), null);
+  }
+
+  static GameStateDiff deltas(List<GameDelta> deltas) {
+    return new GameStateDiff(Type.DELTAS, deltas.get(deltas.size() - 1).getVersion(), deltas, null);
+  }
+
+  static GameStateDiff snapshot(GameState gameState) {
+    return new GameStateDiff(Type.SNAPSHOT, gameState.getVersion(), Collections.<GameDelta>emptyList(), gameState);
+  }
+
+  /**
+   * [Primary] What a player at version is missing: the changes after it the history holds, up to the latest one
+   * drained into it. Changes not drained yet are left for the next call; the whole state is sent only when
+   * version + 1 has dropped out of the history, or the player is ahead of this state (e.g. of a new primary)
+   */
+  static GameStateDiff since(GameState current, DeltaHistory history, long version) {
+    long currentVersion = current.getVersion();
+    if (version == currentVersion) {
+      return unchanged(currentVersion);
+    }
+    List<GameDelta> deltas = version < currentVersion ? history.since(version, version) : null;
+    if (deltas == null) {
+      return snapshot(current);
+    }
+    return deltas.isEmpty() ? unchanged(version) : deltas(deltas);
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return game state version this diff brings the caller to
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public List<GameDelta> getDeltas() {
+    return deltas;
+  }
+
+  public GameState getSnapshot() {
+    return snapshot;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    WireFormat.writeHeader(out);
+    out.writeByte(type.ordinal());
+    WireFormat.writeVarLong(out, version);
+    if (type == Type.DELTAS) {
+      WireFormat.writeVarInt(out, deltas.size());
+      for (GameDelta delta : deltas) {
+        delta.writeExternal(out);
+      }
+    } else if (type == Type.SNAPSHOT) {
+      snapshot.writeExternal(out);
+    }
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    WireFormat.readHeader(in, "GameStateDiff");
+    type = Type.values()[in.readUnsignedByte()];
+    version = WireFormat.readVarLong(in);
+    deltas = Collections.emptyList();
+    snapshot = null;
+    if (type == Type.DELTAS) {
+      int count = WireFormat.readVarInt(in);
+      deltas = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        GameDelta delta = new GameDelta();
+        delta.readExternal(in);
+        deltas.add(delta);
+      }
+    } else if (type == Type.SNAPSHOT) {
+      snapshot = new GameState();
+      snapshot.readExternal(in);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "GameStateDiff { " +
+        "type=" + type +
+        ", version=" + version +
+        ", deltas=" + deltas.size() +
+        '}';
+  }
+}
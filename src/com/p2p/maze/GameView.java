@@ -0,0 +1,201 @@
+package com.p2p.maze;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What one player sees of the game: the cells of a window around its position, and the scores of every player
+ * <p>
+ * A window of radius r covers at most (2r + 1)^2 cells whatever the size of the maze, so refreshing a player in
+ * area of interest mode costs the same on a 15 x 15 maze as on a 1000 x 1000 one (plus the scoreboard)
+ */
+public class GameView implements Externalizable {
+
+  private static final String TREASURE_VALUE = "*";
+
+  private int n;
+  private long version;
+  private int fromX;
+  private int fromY;
+  private int width;
+  private int height;
+  // window cells in row-major order: player id, TREASURE_VALUE or null
+  private String[] cells;
+  private Map<String, Integer> scores;
+  private String primaryId;
+  private String backupId;
+
+  public GameView() {}
+
+  GameView(int n, long version, int fromX, int fromY, int width, int height, String[] cells,
+           Map<String, Integer> scores, String primaryId, String backupId) {
+    this.n = n;
+    this.version = version;
+    this.fromX = fromX;
+    this.fromY = fromY;
+    this.width = width;
+    this.height = height;
+    this.cells = cells;
+    this.scores = scores;
+    this.primaryId = primaryId;
+    this.backupId = backupId;
+  }
+
+  public int getN() {
+    return n;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return column of the window's left edge
+   */
+  public int getFromX() {
+    return fromX;
+  }
+
+  /**
+   * @return row of the window's top edge
+   */
+  public int getFromY() {
+    return fromY;
+  }
+
+  /**
+   * @return columns in the window
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * @return rows in the window
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  public boolean contains(int positionX, int positionY) {
+    return positionX >= fromX && positionX < fromX + width && positionY >= fromY && positionY < fromY + height;
+  }
+
+  /**
+   * @return player id at the cell, "*" for a treasure, null if empty or outside the window
+   */
+  public String getCell(int positionX, int positionY) {
+    return contains(positionX, positionY) ? cells[(positionY - fromY) * width + positionX - fromX] : null;
+  }
+
+  /**
+   * @return score of every player in the game, by player id
+   */
+  public Map<String, Integer> getScores() {
+    return Collections.unmodifiableMap(scores);
+  }
+
+  public String getPrimaryId() {
+    return primaryId;
+  }
+
+  public String getBackupId() {
+    return backupId;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    WireFormat.writeHeader(out);
+    WireFormat.writeVarInt(out, n);
+    WireFormat.writeVarLong(out, version);
+    WireFormat.writeVarInt(out, fromX);
+    WireFormat.writeVarInt(out, fromY);
+    WireFormat.writeVarInt(out, width);
+    WireFormat.writeVarInt(out, height);
+
+    // the scoreboard is written first, window cells refer to its players by index
+    Map<String, Integer> playerIndex = new HashMap<>();
+    WireFormat.writeVarInt(out, scores.size());
+    for (Map.Entry<String, Integer> score : scores.entrySet()) {
+      playerIndex.put(score.getKey(), playerIndex.size());
+      WireFormat.writeString(out, score.getKey());
+      WireFormat.writeVarInt(out, score.getValue());
+    }
+    WireFormat.writeString(out, primaryId);
+    WireFormat.writeString(out, backupId);
+
+    int occupied = 0;
+    for (String cell : cells) {
+      if (cell != null) {
+        occupied++;
+      }
+    }
+    WireFormat.writeVarInt(out, occupied);
+    int previousIndex = 0;
+    for (int index = 0; index < cells.length; index++) {
+      if (cells[index] == null) {
+        continue;
+      }
+      WireFormat.writeVarInt(out, index - previousIndex);
+      previousIndex = index;
+      // 0: treasure, 1: player id written inline, otherwise index + 2 in the scoreboard
+      Integer reference = playerIndex.get(cells[index]);
+      if (TREASURE_VALUE.equals(cells[index])) {
+        WireFormat.writeVarInt(out, 0);
+      } else if (reference == null) {
+        WireFormat.writeVarInt(out, 1);
+        WireFormat.writeString(out, cells[index]);
+      } else {
+        WireFormat.writeVarInt(out, reference + 2);
+      }
+    }
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    WireFormat.readHeader(in, "GameView");
+    n = WireFormat.readVarInt(in);
+    version = WireFormat.readVarLong(in);
+    fromX = WireFormat.readVarInt(in);
+    fromY = WireFormat.readVarInt(in);
+    width = WireFormat.readVarInt(in);
+    height = WireFormat.readVarInt(in);
+
+    int playerCount = WireFormat.readVarInt(in);
+    List<String> players = new ArrayList<>(playerCount);
+    scores = new LinkedHashMap<>();
+    for (int i = 0; i < playerCount; i++) {
+      String playerId = WireFormat.readString(in);
+      players.add(playerId);
+      scores.put(playerId, WireFormat.readVarInt(in));
+    }
+    primaryId = WireFormat.readString(in);
+    backupId = WireFormat.readString(in);
+
+    cells = new String[width * height];
+    int occupied = WireFormat.readVarInt(in);
+    int index = 0;
+    for (int i = 0; i < occupied; i++) {
+      index += WireFormat.readVarInt(in);
+      int value = WireFormat.readVarInt(in);
+      cells[index] = value == 0 ? TREASURE_VALUE : value == 1 ? WireFormat.readString(in) : players.get(value - 2);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "GameView { " +
+        "version=" + version +
+        ", window=[" + fromX + ", " + fromY + "] " + width + "x" + height +
+        ", players=" + scores.size() +
+        '}';
+  }
+}
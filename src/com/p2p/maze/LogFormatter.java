@@ -1,19 +1,23 @@
 package com.p2p.maze;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 
+/**
+ * One line per record; safe to share between handlers and threads
+ */
 public class LogFormatter extends Formatter {
 
-    private static final DateFormat df = new SimpleDateFormat("yyyyMMdd hh:mm:ss.SSS");
+    private static final DateTimeFormatter df =
+            DateTimeFormatter.ofPattern("yyyyMMdd hh:mm:ss.SSS").withZone(ZoneId.systemDefault());
 
     public String format(LogRecord record) {
         StringBuilder builder = new StringBuilder(1000);
-        builder.append(df.format(new Date(record.getMillis()))).append(" - ");
+        builder.append(df.format(Instant.ofEpochMilli(record.getMillis()))).append(" - ");
         builder.append("[").append(record.getSourceClassName()).append(".");
         builder.append(record.getSourceMethodName()).append("] - ");
         builder.append("[").append(record.getLevel()).append("] - ");
@@ -0,0 +1,68 @@
+package com.p2p.maze;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lets a repeated message through at most once per interval (maze.log.interval ms, default 1000) per key, e.g. the
+ * same failure reported by every move while a peer is down. The next message that gets through says how many were
+ * held back meanwhile
+ */
+public class LogRateLimiter {
+
+  private static final long DEFAULT_INTERVAL = Long.getLong("maze.log.interval", 1000);
+
+  private static class Window {
+    final AtomicLong next = new AtomicLong(System.nanoTime());
+    final AtomicLong suppressed = new AtomicLong();
+  }
+
+  private final Logger logger;
+  private final long intervalNanos;
+  private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+
+  public LogRateLimiter(Logger logger) {
+    this(logger, DEFAULT_INTERVAL);
+  }
+
+  public LogRateLimiter(Logger logger, long intervalMillis) {
+    this.logger = logger;
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+  }
+
+  /**
+   * Log the message under its key unless one with the same key was logged less than an interval ago;
+   * the message is only built when it is logged
+   */
+  public void log(Level level, String key, Supplier<String> message) {
+    if (!logger.isLoggable(level)) {
+      return;
+    }
+    Window window = windows.computeIfAbsent(key, ignored -> new Window());
+    long now = System.nanoTime();
+    long next = window.next.get();
+    if (now - next < 0 || !window.next.compareAndSet(next, now + intervalNanos)) {
+      window.suppressed.incrementAndGet();
+      return;
+    }
+    long suppressed = window.suppressed.getAndSet(0);
+    // report the caller as the source, not this class
+    StackWalker.StackFrame caller = StackWalker.getInstance().walk(frames -> frames
+        .filter(frame -> !frame.getClassName().equals(LogRateLimiter.class.getName())).findFirst()).orElse(null);
+    logger.logp(level, caller == null ? null : caller.getClassName(), caller == null ? null : caller.getMethodName(),
+        suppressed == 0 ? message.get() : message.get() + " (" + suppressed + " similar suppressed)");
+  }
+
+  public void warning(String key, Supplier<String> message) {
+    log(Level.WARNING, key, message);
+  }
+
+  public void severe(String key, Supplier<String> message) {
+    log(Level.SEVERE, key, message);
+  }
+}
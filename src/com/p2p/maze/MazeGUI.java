@@ -2,27 +2,61 @@ package com.p2p.maze;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Maze Game User Interface
+ * <p>
+ * Game updates may come from any thread, RMI calls included: updateGameState only records the latest game state.
+ * A Swing timer picks it up on the EDT at most maze.gui.fps times a second (default 30), diffs it against what is
+ * on screen and repaints just the cells and scores that changed
  */
 public class MazeGUI extends JFrame{
 
+    private static final int FRAMES_PER_SECOND = Math.max(1, Integer.getInteger("maze.gui.fps", 30));
+
     private Player player;
     private JPanel mainPanel;
     private JPanel playerListPanel;
-    private JPanel mazePanel;
+    private MazeView mazeView;
     private JList<String> playerList;
-    private JTextField [][] mazeGrid;
+    // player ids in the order of the rows of playerList, with the score each row shows
+    private final List<String> listedPlayers = new ArrayList<>();
+    private final Map<String, Integer> listedScores = new HashMap<>();
+    // latest GameState or GameView not rendered yet, null when the screen is up to date
+    private final AtomicReference<Object> pending = new AtomicReference<>();
+    private final Timer frameTimer;
+    // cells drawn from the last GameView, null when the whole maze was drawn from a GameState
+    private Rectangle shownWindow;
+    // the game state on screen, its cells as last read and the servers they are labelled with
+    private GameState shownState;
+    private String[] shownCells;
+    private String shownPrimaryId;
+    private String shownBackupId;
 
     public MazeGUI(Player player, GameState gameState) {
         this.player = player;
         this.initWindow();
         this.preparePanel(gameState);
-        this.updateGameState(gameState);
+        this.render(gameState);
         setVisible(true);
         this.pack();
+        this.frameTimer = new Timer(1000 / FRAMES_PER_SECOND, e -> {
+            Object latest = this.pending.getAndSet(null);
+            if (latest instanceof GameState) {
+                this.render((GameState) latest);
+            } else if (latest instanceof GameView) {
+                this.render((GameView) latest);
+            }
+        });
+        this.frameTimer.start();
     }
 
     private void initWindow() {
@@ -40,58 +74,217 @@ public class MazeGUI extends JFrame{
     private void preparePanel(GameState gameState){
         this.mainPanel.setLayout(new BorderLayout());
         this.playerListPanel = new JPanel();
-        this.mazePanel = new JPanel();
+        this.mazeView = new MazeView(gameState.getN());
         this.mainPanel.add(this.playerListPanel, BorderLayout.LINE_START);
-        this.mainPanel.add(this.mazePanel, BorderLayout.CENTER);
+        this.mainPanel.add(this.mazeView, BorderLayout.CENTER);
 
         DefaultListModel<String> listModel = new DefaultListModel<>();
         //Create the list and put it in a scroll pane.
         this.playerList = new JList<>(listModel);
         this.playerList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        this.playerList.setPrototypeCellValue("WW 00000");
         JScrollPane listScrollPane = new JScrollPane(this.playerList);
         this.playerListPanel.setLayout(new BorderLayout());
         this.playerListPanel.add(listScrollPane, BorderLayout.CENTER);
+    }
+
+    /**
+     * Schedule the game state for the next frame, callable from any thread; states arriving faster than the frame
+     * rate replace each other and only the latest is drawn
+     */
+    public void updateGameState(GameState gameState){
+        this.pending.set(gameState);
+    }
+
+    /**
+     * Schedule the window around the player for the next frame, in area of interest mode; cells outside it are
+     * drawn empty
+     */
+    public void updateGameView(GameView gameView){
+        this.pending.set(gameView);
+    }
+
+    @Override
+    public void dispose() {
+        if (this.frameTimer != null) {
+            this.frameTimer.stop();
+        }
+        super.dispose();
+    }
 
-        this.mazePanel.setLayout(new GridLayout(gameState.getN(), gameState.getN()));
-        this.mazeGrid = new JTextField[gameState.getN()][gameState.getN()];
-        for(int i=0; i<this.mazeGrid.length; i++) {
-            for (int j = 0; j < this.mazeGrid[i].length; j++) {
-                JTextField textField = new JTextField(j + "," + i);
-                textField.setEditable(false);
-                this.mazeGrid[i][j] = textField;
-                this.mazePanel.add(this.mazeGrid[i][j]);
+    // on the EDT, reading only the cells changed since the previous frame, every cell of a new game state
+    private void render(GameState gameState) {
+        int n = gameState.getN();
+        if (gameState != this.shownState) {
+            this.shownState = gameState;
+            this.shownCells = new String[n * n];
+        }
+        String primaryId = gameState.getPrimary() == null ? null : gameState.getPrimary().getPlayerId();
+        String backupId = gameState.getBackup() == null ? null : gameState.getBackup().getPlayerId();
+        // a window was shown or the servers changed: relabel every cell, from the cells already read
+        boolean relabel = this.shownWindow != null || !Objects.equals(primaryId, this.shownPrimaryId)
+                || !Objects.equals(backupId, this.shownBackupId);
+        String[] cells = this.shownCells;
+        boolean initialized = gameState.drainChangedCells((x, y, value) -> {
+            cells[y * n + x] = value;
+            if (!relabel) {
+                this.mazeView.setLabel(x, y, label(value, primaryId, backupId));
+            }
+        });
+        if (!initialized) {
+            return;
+        }
+        if (relabel) {
+            for (int index = 0; index < cells.length; index++) {
+                this.mazeView.setLabel(index % n, index / n, label(cells[index], primaryId, backupId));
             }
+            this.shownWindow = null;
+            this.shownPrimaryId = primaryId;
+            this.shownBackupId = backupId;
         }
+        Map<String, Integer> scores = new HashMap<>();
+        for (Player player : gameState.getPlayers().values()) {
+            scores.put(player.getPlayerId(), player.getScore());
+        }
+        this.updateScores(scores);
     }
 
-    public void updateGameState(GameState gameState){
+    // on the EDT, touching only the cells of the previous and the new window
+    private void render(GameView gameView) {
+        Rectangle window = new Rectangle(gameView.getFromX(), gameView.getFromY(), gameView.getWidth(),
+                gameView.getHeight());
+        Rectangle touched = this.shownWindow == null ? new Rectangle(0, 0, gameView.getN(), gameView.getN())
+                : window.union(this.shownWindow);
+        for (int i = touched.y; i < touched.y + touched.height; i++) {
+            for (int j = touched.x; j < touched.x + touched.width; j++) {
+                this.mazeView.setLabel(j, i, label(gameView.getCell(j, i), gameView.getPrimaryId(),
+                        gameView.getBackupId()));
+            }
+        }
+        this.shownWindow = window;
+        this.updateScores(gameView.getScores());
+    }
+
+    private static String label(String cell, String primaryId, String backupId) {
+        if (cell != null && cell.equals(primaryId)) {
+            return cell + " P";
+        } else if (cell != null && cell.equals(backupId)) {
+            return cell + " B";
+        }
+        return cell;
+    }
+
+    /**
+     * Touch only the rows of players who left, joined or scored since the last frame
+     */
+    private void updateScores(Map<String, Integer> scores) {
         DefaultListModel<String> listModel = (DefaultListModel<String>) this.playerList.getModel();
-        listModel.removeAllElements(); // remove list of players and update latest list of player
-        for(String playerID: gameState.getPlayers().keySet()){
-            listModel.addElement(playerID + " " + gameState.getPlayers().get(playerID).getScore());
+        for (int row = this.listedPlayers.size() - 1; row >= 0; row--) {
+            String playerId = this.listedPlayers.get(row);
+            if (!scores.containsKey(playerId)) {
+                this.listedPlayers.remove(row);
+                this.listedScores.remove(playerId);
+                listModel.remove(row);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+            String playerId = entry.getKey();
+            int score = entry.getValue();
+            Integer listed = this.listedScores.put(playerId, score);
+            if (listed == null) {
+                this.listedPlayers.add(playerId);
+                listModel.addElement(playerId + " " + score);
+            } else if (listed != score) {
+                listModel.set(this.listedPlayers.indexOf(playerId), playerId + " " + score);
+            }
         }
-        String [][] maze = gameState.getMaze();
-        for(int i=0; i<maze.length; i++) {
-            for (int j = 0; j < maze[i].length; j++) {
-                if (maze[i][j] == null) { // empty
-                    this.mazeGrid[i][j].setText("");
-                } else if (gameState.getPrimary() != null &&
-                        maze[i][j].equals(gameState.getPrimary().getPlayerId())) {
-                    this.mazeGrid[i][j].setText(String.format("%s (%d, %d) P", maze[i][j], j, i));
-
-                } else if (gameState.getBackup() != null &&
-                        maze[i][j].equals(gameState.getBackup().getPlayerId())) {
-                    this.mazeGrid[i][j].setText(String.format("%s (%d, %d) B",  maze[i][j], j, i));
-
-                } else {
-                    this.mazeGrid[i][j].setText(String.format("%s (%d, %d)  ", maze[i][j], j, i));
+    }
+
+    /**
+     * The maze grid as one painted component; a changed cell repaints its own rectangle only
+     */
+    private static class MazeView extends JComponent {
+
+        private static final Color GRID = new Color(0xCCCCCC);
+        private static final Color TREASURE = new Color(0xFFF2B3);
+        private static final Color PLAYER = new Color(0xD6E8FF);
+
+        private final int n;
+        private final String[] labels;
+
+        MazeView(int n) {
+            this.n = n;
+            this.labels = new String[n * n];
+            int cellSize = Math.max(8, Math.min(60, 760 / Math.max(1, n)));
+            setPreferredSize(new Dimension(n * cellSize, n * cellSize));
+            setOpaque(true);
+            setToolTipText("");
+        }
+
+        void setLabel(int x, int y, String label) {
+            int index = y * this.n + x;
+            String shown = this.labels[index];
+            if (shown == null ? label == null : shown.equals(label)) {
+                return;
+            }
+            this.labels[index] = label;
+            repaint(cellBounds(x, y));
+        }
+
+        private Rectangle cellBounds(int x, int y) {
+            int left = x * getWidth() / this.n;
+            int top = y * getHeight() / this.n;
+            return new Rectangle(left, top, (x + 1) * getWidth() / this.n - left, (y + 1) * getHeight() / this.n - top);
+        }
+
+        @Override
+        public String getToolTipText(MouseEvent event) {
+            int x = event.getX() * this.n / Math.max(1, getWidth());
+            int y = event.getY() * this.n / Math.max(1, getHeight());
+            if (x >= this.n || y >= this.n) {
+                return null;
+            }
+            String label = this.labels[y * this.n + x];
+            return label == null ? String.format("(%d, %d)", x, y) : String.format("%s (%d, %d)", label, x, y);
+        }
+
+        @Override
+        protected void paintComponent(Graphics graphics) {
+            Rectangle clip = graphics.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(clip.x, clip.y, clip.width, clip.height);
+            if (getWidth() == 0 || getHeight() == 0) {
+                return;
+            }
+            // only the cells the clip reaches
+            int fromX = Math.max(0, clip.x * this.n / getWidth());
+            int toX = Math.min(this.n - 1, (clip.x + clip.width) * this.n / getWidth());
+            int fromY = Math.max(0, clip.y * this.n / getHeight());
+            int toY = Math.min(this.n - 1, (clip.y + clip.height) * this.n / getHeight());
+            int cellHeight = Math.max(1, getHeight() / this.n);
+            graphics.setFont(graphics.getFont().deriveFont(Math.max(6f, Math.min(14f, cellHeight * 0.45f))));
+            FontMetrics metrics = graphics.getFontMetrics();
+            for (int y = fromY; y <= toY; y++) {
+                for (int x = fromX; x <= toX; x++) {
+                    Rectangle cell = cellBounds(x, y);
+                    String label = this.labels[y * this.n + x];
+                    if (label != null) {
+                        graphics.setColor("*".equals(label) ? TREASURE : PLAYER);
+                        graphics.fillRect(cell.x, cell.y, cell.width, cell.height);
+                        if (metrics.stringWidth(label) < cell.width && metrics.getAscent() < cell.height) {
+                            graphics.setColor(Color.BLACK);
+                            graphics.drawString(label, cell.x + (cell.width - metrics.stringWidth(label)) / 2,
+                                    cell.y + (cell.height + metrics.getAscent() - metrics.getDescent()) / 2);
+                        }
+                    }
+                    graphics.setColor(GRID);
+                    graphics.drawRect(cell.x, cell.y, cell.width - 1, cell.height - 1);
                 }
             }
         }
-        this.mazePanel.repaint();
-        this.playerListPanel.repaint();
-        this.mainPanel.repaint();
-        this.repaint();
     }
 
     public static void main(String [] args) {
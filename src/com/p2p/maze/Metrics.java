@@ -0,0 +1,240 @@
+package com.p2p.maze;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Counters, gauges and latency histograms of one Game or Tracker
+ * <p>
+ * Recording is lock-free (LongAdder), so it can sit on the move path. export publishes the registry as an MXBean and,
+ * when maze.metrics.port is set, as Prometheus text at http://localhost:port/metrics (0 picks a free port, which is
+ * logged). Metric names may carry labels, e.g. name("maze_commands", "command", "MOVE_EAST")
+ */
+public class Metrics implements MetricsMXBean {
+
+  private static final Logger LOGGER = Logger.getLogger(Metrics.class.getSimpleName());
+
+  // histogram bucket upper bounds, in microseconds
+  private static final long[] BUCKETS_MICROS =
+      {50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000};
+
+  /**
+   * Latency histogram with fixed buckets from 50us to 2.5s
+   */
+  public static class Histogram {
+    private final LongAdder[] buckets = new LongAdder[BUCKETS_MICROS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    public void record(long nanos) {
+      long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+      int bucket = 0;
+      while (bucket < BUCKETS_MICROS.length && micros > BUCKETS_MICROS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      count.increment();
+      sumNanos.add(nanos);
+    }
+
+    /**
+     * Record the time since start, a System.nanoTime() value
+     */
+    public void recordSince(long start) {
+      record(System.nanoTime() - start);
+    }
+
+    long count() {
+      return count.sum();
+    }
+
+    double meanMillis() {
+      long calls = count.sum();
+      return calls == 0 ? 0 : sumNanos.sum() / 1e6 / calls;
+    }
+
+    double percentileMillis(double percentile) {
+      long calls = count.sum();
+      long rank = (long) Math.ceil(calls * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS_MICROS.length; i++) {
+        seen += buckets[i].sum();
+        if (calls > 0 && seen >= rank) {
+          return BUCKETS_MICROS[i] / 1e3;
+        }
+      }
+      return calls == 0 ? 0 : Double.POSITIVE_INFINITY;
+    }
+  }
+
+  private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private ObjectName objectName;
+  private HttpServer httpServer;
+
+  /**
+   * @return metric name with one label, in Prometheus syntax
+   */
+  public static String name(String metric, String label, String value) {
+    return metric + "{" + label + "=\"" + value + "\"}";
+  }
+
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, ignored -> new LongAdder());
+  }
+
+  public void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  public Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, ignored -> new Histogram());
+  }
+
+  /**
+   * Publish as the MXBean com.p2p.maze:type=&lt;type&gt;,name=&lt;name&gt; and on maze.metrics.port if set
+   */
+  public synchronized void export(String type, String name) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      objectName = new ObjectName("com.p2p.maze", new Hashtable<>(Map.of("type", type, "name", name)));
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName); // a restarted peer in the same JVM
+      }
+      server.registerMBean(this, objectName);
+    } catch (JMException e) {
+      LOGGER.warning("metrics MXBean not registered: " + e);
+    }
+
+    Integer port = Integer.getInteger("maze.metrics.port");
+    if (port == null) {
+      return;
+    }
+    try {
+      httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      httpServer.createContext("/metrics", exchange -> {
+        byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      });
+      httpServer.start();
+      LOGGER.info(String.format("%s %s metrics at http://localhost:%d/metrics", type, name,
+          httpServer.getAddress().getPort()));
+    } catch (IOException e) {
+      LOGGER.warning("metrics endpoint not started: " + e);
+    }
+  }
+
+  /**
+   * Withdraw the MXBean and stop the HTTP endpoint
+   */
+  public synchronized void close() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+      httpServer = null;
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        // already gone
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * @return every metric in the Prometheus text exposition format
+   */
+  public String prometheusText() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+      text.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+    }
+    for (Map.Entry<String, Long> gauge : getGauges().entrySet()) {
+      text.append(gauge.getKey()).append(' ').append(gauge.getValue()).append('\n');
+    }
+    for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+      String metric = entry.getKey();
+      int brace = metric.indexOf('{');
+      String base = brace < 0 ? metric : metric.substring(0, brace);
+      String labels = brace < 0 ? "" : metric.substring(brace + 1, metric.length() - 1) + ",";
+      Histogram histogram = entry.getValue();
+      long cumulative = 0;
+      for (int i = 0; i <= BUCKETS_MICROS.length; i++) {
+        cumulative += histogram.buckets[i].sum();
+        String le = i < BUCKETS_MICROS.length ? Double.toString(BUCKETS_MICROS[i] / 1e6) : "+Inf";
+        text.append(base).append("_seconds_bucket{").append(labels).append("le=\"").append(le).append("\"} ")
+            .append(cumulative).append('\n');
+      }
+      String suffix = brace < 0 ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+      text.append(base).append("_seconds_sum").append(suffix).append(' ')
+          .append(histogram.sumNanos.sum() / 1e9).append('\n');
+      text.append(base).append("_seconds_count").append(suffix).append(' ').append(histogram.count()).append('\n');
+    }
+    return text.toString();
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    Map<String, Long> values = new TreeMap<>();
+    counters.forEach((name, counter) -> values.put(name, counter.sum()));
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getGauges() {
+    Map<String, Long> values = new TreeMap<>();
+    gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getLatencyCounts() {
+    Map<String, Long> values = new TreeMap<>();
+    histograms.forEach((name, histogram) -> values.put(name, histogram.count()));
+    return values;
+  }
+
+  @Override
+  public Map<String, Double> getLatencyMeanMillis() {
+    Map<String, Double> values = new TreeMap<>();
+    histograms.forEach((name, histogram) -> values.put(name, histogram.meanMillis()));
+    return values;
+  }
+
+  @Override
+  public Map<String, Double> getLatencyP99Millis() {
+    Map<String, Double> values = new TreeMap<>();
+    histograms.forEach((name, histogram) -> values.put(name, histogram.percentileMillis(99)));
+    return values;
+  }
+}
@@ -0,0 +1,27 @@
+package com.p2p.maze;
+
+import java.util.Map;
+
+/**
+ * JMX view of a Metrics registry, one per Game or Tracker under the domain com.p2p.maze
+ * <p>
+ * Keys are metric names with their labels, as in the Prometheus text at /metrics
+ */
+public interface MetricsMXBean {
+
+  Map<String, Long> getCounters();
+
+  Map<String, Long> getGauges();
+
+  /**
+   * @return calls observed per latency metric
+   */
+  Map<String, Long> getLatencyCounts();
+
+  Map<String, Double> getLatencyMeanMillis();
+
+  /**
+   * @return upper bound of the bucket holding the 99th percentile
+   */
+  Map<String, Double> getLatencyP99Millis();
+}
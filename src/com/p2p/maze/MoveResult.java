@@ -0,0 +1,138 @@
+package com.p2p.maze;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Outcome of a player command on the primary server
+ * <p>
+ * Carries only the mover's position and score and the game state version after the command,
+ * so a player does not download the whole GameState on every keystroke
+ */
+public class MoveResult implements Externalizable {
+
+  private boolean updated;
+  private Position position;
+  private int score;
+  private long version;
+  // room of the region that took the player over, null if the player stayed
+  private String roomId;
+  // sequence number of the command this answers, 0 if it was not numbered
+  private long seq;
+  // the command had already been applied, this is the player's current position and score
+  private boolean duplicate;
+
+  public MoveResult() {}
+
+  MoveResult(boolean updated, Player player, long version) {
+    this.updated = updated;
+    this.version = version;
+    if (player != null) {
+      this.position = new Position(player.getPosition().posX, player.getPosition().posY);
+      this.score = player.getScore();
+    }
+  }
+
+  /**
+   * @return this result, telling the player its move took it into the region played as roomId
+   */
+  MoveResult handedOffTo(String roomId) {
+    this.roomId = roomId;
+    return this;
+  }
+
+  /**
+   * @return this result, answering the command numbered seq
+   */
+  MoveResult forCommand(long seq, boolean duplicate) {
+    this.seq = seq;
+    this.duplicate = duplicate;
+    return this;
+  }
+
+  public long getSeq() {
+    return seq;
+  }
+
+  /**
+   * @return true if the command was a retry of one already applied, and was not played again
+   */
+  public boolean isDuplicate() {
+    return duplicate;
+  }
+
+  /**
+   * @return room the player moved to, whose primary serves the player from now on; null if it did not change room
+   */
+  public String getRoomId() {
+    return roomId;
+  }
+
+  /**
+   * @return true if the command changed the game state
+   */
+  public boolean isUpdated() {
+    return updated;
+  }
+
+  /**
+   * @return mover's position after the command, null if the player is no longer in the game
+   */
+  public Position getPosition() {
+    return position;
+  }
+
+  public int getScore() {
+    return score;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    WireFormat.writeHeader(out);
+    out.writeBoolean(updated);
+    WireFormat.writeVarLong(out, version);
+    WireFormat.writeVarInt(out, score);
+    out.writeBoolean(position != null);
+    if (position != null) {
+      position.writeFields(out);
+    }
+    WireFormat.writeString(out, roomId);
+    WireFormat.writeVarLong(out, seq);
+    out.writeBoolean(duplicate);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    WireFormat.readHeader(in, "MoveResult");
+    updated = in.readBoolean();
+    version = WireFormat.readVarLong(in);
+    score = WireFormat.readVarInt(in);
+    position = null;
+    if (in.readBoolean()) {
+      position = new Position();
+      position.readFields(in);
+    }
+    roomId = WireFormat.readString(in);
+    seq = WireFormat.readVarLong(in);
+    duplicate = in.readBoolean();
+  }
+
+  @Override
+  public String toString() {
+    return "MoveResult { " +
+        "updated=" + updated +
+        ", position=" + position +
+        ", score=" + score +
+        ", version=" + version +
+        (roomId != null ? ", roomId=" + roomId : "") +
+        (seq != 0 ? ", seq=" + seq : "") +
+        (duplicate ? ", duplicate" : "") +
+        '}';
+  }
+}
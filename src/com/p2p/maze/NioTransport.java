@@ -0,0 +1,609 @@
+package com.p2p.maze;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking transport on java.nio selectors
+ * <p>
+ * One selector thread accepts, reads and writes every connection of this transport, both the ones peers opened
+ * to us and the ones our stubs opened to peers. Messages are length-prefixed frames:
+ * <pre>
+ *   request:  int length | long requestId | UTF target | UTF method signature | Object[] arguments
+ *   response: int length | long requestId | boolean ok | Object result or Throwable
+ * </pre>
+ * The game types write themselves compactly (WireFormat), so the frames stay small
+ * <p>
+ * Requests are dispatched to a worker pool so a slow call (initPlayer electing a backup) never stalls the selector,
+ * and a stub may pipeline calls from several threads over its single connection
+ * <p>
+ * Failures surface like RMI's: java.rmi.ConnectException when the peer cannot be reached (the call never ran),
+ * NoSuchObjectException when nothing is exported under the name, RemoteException otherwise
+ * <p>
+ * Games listen on -Dmaze.nio.port (default: any free port, published to the tracker through the player's port number),
+ * the tracker on its well-known port. No rmiregistry is needed
+ */
+public class NioTransport implements Transport {
+
+  private static final Logger LOGGER = Logger.getLogger(NioTransport.class.getSimpleName());
+
+  private static final String TRACKER_NAME = "Tracker";
+
+  private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+  private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+  private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+
+  private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+  private final Selector selector;
+  private final Thread selectorThread;
+  private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+  private final ExecutorService workers;
+  private final long callTimeoutMillis;
+
+  private final ConcurrentMap<String, Object> exported = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Class<?>, Map<String, Method>> remoteMethods = new ConcurrentHashMap<>();
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+  private final AtomicLong requestIds = new AtomicLong();
+
+  private ServerSocketChannel serverChannel;
+  private volatile boolean open = true;
+
+  public NioTransport() {
+    this(Integer.getInteger("maze.nio.workers", 16), Long.getLong("maze.nio.timeout", 10000));
+  }
+
+  public NioTransport(int workerThreads, long callTimeoutMillis) {
+    this.callTimeoutMillis = callTimeoutMillis;
+    try {
+      this.selector = Selector.open();
+    } catch (IOException e) {
+      throw new IllegalStateException("cannot open selector", e);
+    }
+    int instance = INSTANCES.incrementAndGet();
+    AtomicInteger workerCount = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+      Thread thread = new Thread(runnable, "nio-worker-" + instance + "-" + workerCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    // not a daemon: like an exported RMI object, a listening transport keeps the process alive
+    this.selectorThread = new Thread(this::selectLoop, "nio-selector-" + instance);
+    this.selectorThread.start();
+  }
+
+  @Override
+  public void exportGame(GameInterface game, Player player) throws RemoteException {
+    int port = listen(Integer.getInteger("maze.nio.port", 0));
+    player.setPortNumber(port);
+    exported.put(player.getPlayerId(), game);
+    LOGGER.info(String.format("exported %s on port %d", player.getPlayerId(), port));
+  }
+
+  @Override
+  public void exportTracker(TrackerInterface tracker, int portNumber) throws RemoteException {
+    listen(portNumber);
+    exported.put(TRACKER_NAME, tracker);
+  }
+
+  @Override
+  public GameInterface lookupGame(Player player) {
+    return stub(GameInterface.class, player.getIp(), player.getPortNumber(), player.getPlayerId());
+  }
+
+  @Override
+  public TrackerInterface lookupTracker(String ip, int portNumber) {
+    return stub(TrackerInterface.class, ip, portNumber, TRACKER_NAME);
+  }
+
+  @Override
+  public void shutdown() {
+    open = false;
+    exported.clear();
+    selector.wakeup();
+    workers.shutdownNow();
+  }
+
+  /**
+   * @return port the server channel listens on, bound on first export
+   */
+  private synchronized int listen(int portNumber) throws RemoteException {
+    try {
+      if (serverChannel == null) {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(portNumber));
+        channel.configureBlocking(false);
+        serverChannel = channel;
+        runOnSelector(() -> {
+          try {
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+          } catch (ClosedChannelException e) {
+            LOGGER.warning("server channel closed before registration");
+          }
+        });
+      }
+      return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    } catch (IOException e) {
+      throw new RemoteException("cannot listen on port " + portNumber, e);
+    }
+  }
+
+  private <T> T stub(Class<T> type, String ip, int portNumber, String target) {
+    Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        new StubHandler(ip, portNumber, target));
+    return type.cast(proxy);
+  }
+
+  private void runOnSelector(Runnable task) {
+    selectorTasks.add(task);
+    selector.wakeup();
+  }
+
+  private void selectLoop() {
+    while (open) {
+      try {
+        selector.select();
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          handle(key);
+        }
+      } catch (IOException e) {
+        LOGGER.warning("selector failed: " + e.getMessage());
+      }
+    }
+    close();
+  }
+
+  private void handle(SelectionKey key) {
+    if (!key.isValid()) {
+      return;
+    }
+    if (key.isAcceptable()) {
+      accept();
+      return;
+    }
+    Connection connection = (Connection) key.attachment();
+    try {
+      if (key.isReadable()) {
+        connection.read();
+      }
+      if (key.isValid() && key.isWritable()) {
+        connection.flush();
+      }
+    } catch (IOException e) {
+      connection.close();
+    }
+  }
+
+  private void accept() {
+    try {
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null) {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel, true);
+        connection.register();
+      }
+    } catch (IOException e) {
+      LOGGER.warning("accept failed: " + e.getMessage());
+    }
+  }
+
+  private void close() {
+    for (Connection connection : connections) {
+      connection.close();
+    }
+    try {
+      synchronized (this) {
+        if (serverChannel != null) {
+          serverChannel.close();
+        }
+      }
+      selector.close();
+    } catch (IOException e) {
+      LOGGER.warning("close failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Serve one request frame, on a worker thread
+   */
+  private void serve(Connection connection, byte[] frame) {
+    long requestId;
+    String target;
+    String signature;
+    Object[] args;
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(frame))) {
+      requestId = in.readLong();
+      target = in.readUTF();
+      signature = in.readUTF();
+      args = (Object[]) in.readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      LOGGER.warning("unreadable request: " + e);
+      connection.close();
+      return;
+    }
+
+    boolean ok = false;
+    Object result;
+    try {
+      Object impl = exported.get(target);
+      if (impl == null) {
+        throw new NoSuchObjectException("no object exported as " + target);
+      }
+      Method method = remoteMethodsOf(impl.getClass()).get(signature);
+      if (method == null) {
+        throw new RemoteException("no remote method " + signature + " on " + target);
+      }
+      result = method.invoke(impl, args);
+      ok = true;
+    } catch (InvocationTargetException e) {
+      result = e.getCause();
+    } catch (Exception e) {
+      result = e;
+    }
+
+    try {
+      connection.send(encode(requestId, ok, result));
+    } catch (NotSerializableException e) {
+      connection.trySend(requestId, new RemoteException("result not serializable: " + e.getMessage()));
+    } catch (IOException e) {
+      connection.close();
+    }
+  }
+
+  private Map<String, Method> remoteMethodsOf(Class<?> implClass) {
+    return remoteMethods.computeIfAbsent(implClass, c -> {
+      Map<String, Method> methods = new HashMap<>();
+      collectRemoteMethods(c, methods);
+      return methods;
+    });
+  }
+
+  private static void collectRemoteMethods(Class<?> type, Map<String, Method> methods) {
+    for (Class<?> iface : type.getInterfaces()) {
+      if (Remote.class.isAssignableFrom(iface)) {
+        for (Method method : iface.getMethods()) {
+          method.setAccessible(true);
+          methods.putIfAbsent(signature(method), method);
+        }
+      }
+      collectRemoteMethods(iface, methods);
+    }
+    if (type.getSuperclass() != null) {
+      collectRemoteMethods(type.getSuperclass(), methods);
+    }
+  }
+
+  private static String signature(Method method) {
+    StringBuilder builder = new StringBuilder(method.getName()).append('(');
+    Class<?>[] types = method.getParameterTypes();
+    for (int i = 0; i < types.length; i++) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder.append(types[i].getName());
+    }
+    return builder.append(')').toString();
+  }
+
+  private static byte[] encode(long requestId, boolean ok, Object result) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeLong(requestId);
+      out.writeBoolean(ok);
+      out.writeObject(result);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] encode(long requestId, String target, String signature, Object[] args) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeLong(requestId);
+      out.writeUTF(target);
+      out.writeUTF(signature);
+      out.writeObject(args == null ? new Object[0] : args);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * One socket, either accepted from a peer (serves requests) or opened by a stub (receives responses)
+   */
+  private final class Connection {
+    private final SocketChannel channel;
+    private final boolean serverSide;
+    private final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private final ConcurrentMap<Long, CompletableFuture<Object[]>> pending = new ConcurrentHashMap<>();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private SelectionKey key;
+    private volatile boolean closed;
+
+    Connection(SocketChannel channel, boolean serverSide) {
+      this.channel = channel;
+      this.serverSide = serverSide;
+      connections.add(this);
+    }
+
+    /**
+     * Register for reads, on the selector thread
+     */
+    void register() throws ClosedChannelException {
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+      updateInterest();
+    }
+
+    void send(byte[] payload) throws IOException {
+      ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+      frame.putInt(payload.length).put(payload).flip();
+      synchronized (this) {
+        if (closed) {
+          throw new ClosedChannelException();
+        }
+        if (writeQueue.isEmpty()) {
+          channel.write(frame);
+          if (!frame.hasRemaining()) {
+            return;
+          }
+        }
+        // the socket buffer is full, the selector finishes the write when the channel becomes writable
+        writeQueue.add(frame);
+      }
+      runOnSelector(this::updateInterest);
+    }
+
+    void trySend(long requestId, Throwable failure) {
+      try {
+        send(encode(requestId, false, failure));
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /**
+     * Write queued frames, on the selector thread
+     */
+    void flush() throws IOException {
+      synchronized (this) {
+        while (!writeQueue.isEmpty()) {
+          ByteBuffer frame = writeQueue.peek();
+          channel.write(frame);
+          if (frame.hasRemaining()) {
+            return;
+          }
+          writeQueue.poll();
+        }
+      }
+      updateInterest();
+    }
+
+    private void updateInterest() {
+      if (key == null || !key.isValid()) {
+        return;
+      }
+      synchronized (this) {
+        key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    /**
+     * Read whatever arrived and hand over every complete frame, on the selector thread
+     */
+    void read() throws IOException {
+      if (channel.read(readBuffer) < 0) {
+        close();
+        return;
+      }
+      readBuffer.flip();
+      while (readBuffer.remaining() >= 4) {
+        int length = readBuffer.getInt(readBuffer.position());
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+          throw new IOException("invalid frame length " + length);
+        }
+        if (readBuffer.remaining() < 4 + length) {
+          if (readBuffer.capacity() < 4 + length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(4 + length, readBuffer.capacity() * 2));
+            larger.put(readBuffer);
+            readBuffer = larger;
+            return;
+          }
+          break;
+        }
+        readBuffer.getInt();
+        byte[] frame = new byte[length];
+        readBuffer.get(frame);
+        received(frame);
+      }
+      readBuffer.compact();
+    }
+
+    private void received(byte[] frame) {
+      if (serverSide) {
+        try {
+          workers.execute(() -> serve(this, frame));
+        } catch (RejectedExecutionException e) {
+          close();
+        }
+        return;
+      }
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(frame))) {
+        long requestId = in.readLong();
+        boolean ok = in.readBoolean();
+        Object result = in.readObject();
+        CompletableFuture<Object[]> future = pending.remove(requestId);
+        if (future != null) {
+          future.complete(new Object[] {ok, result});
+        }
+      } catch (IOException | ClassNotFoundException e) {
+        LOGGER.warning("unreadable response: " + e);
+      }
+    }
+
+    void close() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        writeQueue.clear();
+      }
+      connections.remove(this);
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing left to release
+      }
+      // the requests may have run on the peer, so this is not a ConnectException
+      RemoteException failure = new RemoteException("connection closed");
+      for (CompletableFuture<Object[]> future : pending.values()) {
+        future.completeExceptionally(failure);
+      }
+      pending.clear();
+    }
+
+    boolean isClosed() {
+      return closed;
+    }
+  }
+
+  /**
+   * Client side of a stub: one connection to the target's transport, opened on the first call and
+   * reopened after it broke
+   */
+  private final class StubHandler implements InvocationHandler {
+    private final String ip;
+    private final int portNumber;
+    private final String target;
+    private Connection connection;
+
+    StubHandler(String ip, int portNumber, String target) {
+      this.ip = ip;
+      this.portNumber = portNumber;
+      this.target = target;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        switch (method.getName()) {
+          case "equals":
+            return proxy == args[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          default:
+            return "NioStub[" + target + "@" + ip + ":" + portNumber + "]";
+        }
+      }
+
+      Connection connection = connection();
+      long requestId = requestIds.incrementAndGet();
+      CompletableFuture<Object[]> future = new CompletableFuture<>();
+      connection.pending.put(requestId, future);
+      try {
+        connection.send(encode(requestId, target, signature(method), args));
+      } catch (IOException e) {
+        connection.pending.remove(requestId);
+        connection.close();
+        throw new ConnectException("cannot send to " + ip + ":" + portNumber, e);
+      }
+
+      Object[] response;
+      try {
+        response = future.get(callTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        throw e.getCause();
+      } catch (TimeoutException e) {
+        connection.pending.remove(requestId);
+        throw new RemoteException("no response from " + target + " within " + callTimeoutMillis + " ms");
+      }
+      if ((Boolean) response[0]) {
+        return response[1];
+      }
+      throw (Throwable) response[1];
+    }
+
+    private synchronized Connection connection() throws RemoteException {
+      if (connection != null && !connection.isClosed()) {
+        return connection;
+      }
+      if (!open) {
+        throw new ConnectException("transport is shut down");
+      }
+      SocketChannel channel = null;
+      try {
+        channel = SocketChannel.open();
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().connect(new InetSocketAddress(ip, portNumber), CONNECT_TIMEOUT_MILLIS);
+        channel.configureBlocking(false);
+      } catch (IOException e) {
+        if (channel != null) {
+          try {
+            channel.close();
+          } catch (IOException ignored) {
+            // connect already failed
+          }
+        }
+        throw new ConnectException("cannot connect to " + ip + ":" + portNumber, e);
+      }
+      Connection opened = new Connection(channel, false);
+      runOnSelector(() -> {
+        try {
+          opened.register();
+        } catch (ClosedChannelException e) {
+          opened.close();
+        }
+      });
+      connection = opened;
+      return opened;
+    }
+  }
+}
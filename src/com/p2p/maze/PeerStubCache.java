@@ -0,0 +1,95 @@
+package com.p2p.maze;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Cache of remote GameInterface stubs keyed by player id
+ * <p>
+ * Saves the lookup (a registry round trip with RMI) before every call to a peer. A stub is looked up again when the peer's address
+ * changed, and evicted when a call through it fails
+ */
+public class PeerStubCache {
+
+  private static final Logger LOGGER = Logger.getLogger(PeerStubCache.class.getSimpleName());
+
+  /**
+   * A call to a peer
+   */
+  public interface RemoteCall<T> {
+    T call(GameInterface stub) throws RemoteException;
+  }
+
+  private static class Entry {
+    final String ip;
+    final int portNumber;
+    final GameInterface stub;
+
+    Entry(String ip, int portNumber, GameInterface stub) {
+      this.ip = ip;
+      this.portNumber = portNumber;
+      this.stub = stub;
+    }
+
+    boolean isFor(Player player) {
+      return portNumber == player.getPortNumber() && ip.equals(player.getIp());
+    }
+  }
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Transport transport;
+
+  public PeerStubCache(Transport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * @return cached stub of the player, looked up through the transport if missing or stale
+   */
+  public GameInterface get(Player player) throws RemoteException, NotBoundException {
+    Entry entry = entries.get(player.getPlayerId());
+    if (entry != null && entry.isFor(player)) {
+      return entry.stub;
+    }
+    return lookup(player);
+  }
+
+  /**
+   * Call the player through the cached stub
+   * If the cached stub cannot reach the peer (the call never ran), it is looked up again and the call retried once
+   */
+  public <T> T invoke(Player player, RemoteCall<T> call) throws RemoteException, NotBoundException {
+    Entry entry = entries.get(player.getPlayerId());
+    boolean cached = entry != null && entry.isFor(player);
+    GameInterface stub = cached ? entry.stub : lookup(player);
+    try {
+      return call.call(stub);
+    } catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+      invalidate(player.getPlayerId());
+      if (!cached) {
+        throw e;
+      }
+      LOGGER.fine("stale stub, look up again: " + player.getPlayerId());
+      return call.call(lookup(player));
+    } catch (RemoteException e) {
+      invalidate(player.getPlayerId());
+      throw e;
+    }
+  }
+
+  public void invalidate(String playerId) {
+    entries.remove(playerId);
+  }
+
+  private GameInterface lookup(Player player) throws RemoteException, NotBoundException {
+    GameInterface stub = transport.lookupGame(player);
+    entries.put(player.getPlayerId(), new Entry(player.getIp(), player.getPortNumber(), stub));
+    return stub;
+  }
+}
@@ -0,0 +1,95 @@
+package com.p2p.maze;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.)
+ * <p>
+ * Keeps a sliding window of heartbeat inter-arrival times. phi is -log10 of the probability that a heartbeat
+ * still arrives after the current silence, assuming normally distributed intervals: phi 1 means a 10% chance
+ * the server is only late, phi 8 a 1e-8 chance. A steady, fast heartbeat makes a crash stand out quickly,
+ * a jittery one raises the bar, and the threshold trades detection time against false suspicions.
+ * <p>
+ * The window starts with the expected interval. minStdDev keeps a very regular stream from turning every small
+ * delay into a suspicion, and acceptablePause is silence tolerated on top of the mean (a GC pause, a busy peer)
+ */
+public class PhiAccrualFailureDetector implements FailureDetector {
+
+  private final double threshold;
+  private final long minStdDev;
+  private final long acceptablePause;
+
+  private final long[] intervals;
+  private int next;
+  private int count;
+  private double sum;
+  private double sumOfSquares;
+  private long last = -1;
+
+  public PhiAccrualFailureDetector(double threshold, long expectedInterval, long minStdDev, long acceptablePause,
+      int window) {
+    this.threshold = threshold;
+    this.minStdDev = Math.max(1, minStdDev);
+    this.acceptablePause = acceptablePause;
+    this.intervals = new long[Math.max(2, window)];
+    // seed the window around the expected interval, so the first silences are judged sensibly
+    add(expectedInterval - expectedInterval / 4);
+    add(expectedInterval + expectedInterval / 4);
+  }
+
+  @Override
+  public synchronized void heartbeat(long nowMillis) {
+    if (last >= 0 && nowMillis > last) {
+      add(nowMillis - last);
+    }
+    last = Math.max(last, nowMillis);
+  }
+
+  private void add(long interval) {
+    if (count == intervals.length) {
+      long oldest = intervals[next];
+      sum -= oldest;
+      sumOfSquares -= (double) oldest * oldest;
+    } else {
+      count++;
+    }
+    intervals[next] = interval;
+    next = (next + 1) % intervals.length;
+    sum += interval;
+    sumOfSquares += (double) interval * interval;
+  }
+
+  /**
+   * @return phi for the silence since the latest heartbeat
+   */
+  @Override
+  public synchronized double suspicion(long nowMillis) {
+    if (last < 0) {
+      return 0;
+    }
+    double mean = sum / count;
+    double variance = Math.max(0, sumOfSquares / count - mean * mean);
+    double stdDev = Math.max(Math.sqrt(variance), minStdDev);
+    return phi(nowMillis - last, mean + acceptablePause, stdDev);
+  }
+
+  /**
+   * -log10 of the normal tail beyond the silence, with the logistic approximation of the normal CDF
+   */
+  static double phi(long silence, double mean, double stdDev) {
+    double y = (silence - mean) / stdDev;
+    double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+    if (silence > mean) {
+      return -Math.log10(e / (1.0 + e));
+    }
+    return -Math.log10(1.0 - 1.0 / (1.0 + e));
+  }
+
+  @Override
+  public boolean isAvailable(long nowMillis) {
+    return suspicion(nowMillis) < threshold;
+  }
+
+  @Override
+  public synchronized long lastHeartbeat() {
+    return last;
+  }
+}
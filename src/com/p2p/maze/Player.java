@@ -1,16 +1,25 @@
 package com.p2p.maze;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 /**
  * Player object
  */
-public class Player implements Serializable {
+public class Player implements Externalizable {
   private String playerId = null;
   private String ip;
   private int portNumber;
   private Position position = new Position();
   private int score;
+  // sequence number of the latest command of this player the primary applied, 0 if none was numbered
+  private long lastSeq;
+
+  public Player() {}
 
   public Player(String playerId, String ip, int portNumber) {
     this.playerId = playerId;
@@ -58,6 +67,70 @@ public class Player implements Serializable {
     this.score = score;
   }
 
+  public long getLastSeq() {
+    return lastSeq;
+  }
+
+  public void setLastSeq(long lastSeq) {
+    this.lastSeq = lastSeq;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    WireFormat.writeHeader(out);
+    writeFields(out);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    WireFormat.readHeader(in, "Player");
+    readFields(in);
+  }
+
+  void writeFields(DataOutput out) throws IOException {
+    WireFormat.writeString(out, playerId);
+    WireFormat.writeString(out, ip);
+    WireFormat.writeVarInt(out, portNumber);
+    WireFormat.writeVarInt(out, score);
+    WireFormat.writeVarLong(out, lastSeq);
+    out.writeBoolean(position != null);
+    if (position != null) {
+      position.writeFields(out);
+    }
+  }
+
+  void readFields(DataInput in) throws IOException {
+    playerId = WireFormat.readString(in);
+    ip = WireFormat.readString(in);
+    portNumber = WireFormat.readVarInt(in);
+    score = WireFormat.readVarInt(in);
+    lastSeq = WireFormat.readVarLong(in);
+    position = null;
+    if (in.readBoolean()) {
+      position = new Position();
+      position.readFields(in);
+    }
+  }
+
+  /**
+   * Write a player that may be null
+   */
+  static void write(DataOutput out, Player player) throws IOException {
+    out.writeBoolean(player != null);
+    if (player != null) {
+      player.writeFields(out);
+    }
+  }
+
+  static Player read(DataInput in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    Player player = new Player();
+    player.readFields(in);
+    return player;
+  }
+
   @Override
   public String toString() {
     return "Player { " +
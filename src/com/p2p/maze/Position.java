@@ -1,12 +1,17 @@
 package com.p2p.maze;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 /**
  * Player position in the Maze
  *
  */
-public class Position implements Serializable {
+public class Position implements Externalizable {
   public int posX;
   public int posY;
 
@@ -17,6 +22,28 @@ public class Position implements Serializable {
     this.posY = newPosY;
   }
 
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    WireFormat.writeHeader(out);
+    writeFields(out);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    WireFormat.readHeader(in, "Position");
+    readFields(in);
+  }
+
+  void writeFields(DataOutput out) throws IOException {
+    WireFormat.writeSignedVarInt(out, posX);
+    WireFormat.writeSignedVarInt(out, posY);
+  }
+
+  void readFields(DataInput in) throws IOException {
+    posX = WireFormat.readSignedVarInt(in);
+    posY = WireFormat.readSignedVarInt(in);
+  }
+
   @Override
   public String toString() {
     return String.format("[%d, %d]", posX, posY);
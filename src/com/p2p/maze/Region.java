@@ -0,0 +1,41 @@
+package com.p2p.maze;
+
+/**
+ * A block of maze columns [fromX, toX) owned by one primary/backup pair, played as the tracker room roomId()
+ */
+public class Region {
+
+  private final int index;
+  private final int fromX;
+  private final int toX;
+
+  Region(int index, int fromX, int toX) {
+    this.index = index;
+    this.fromX = fromX;
+    this.toX = toX;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public boolean contains(int positionX, int positionY) {
+    return positionX >= fromX && positionX < toX;
+  }
+
+  /**
+   * @return number of cells in an n x n maze
+   */
+  int cellCount(int n) {
+    return (toX - fromX) * n;
+  }
+
+  public String roomId() {
+    return RegionDirectory.roomId(index);
+  }
+
+  @Override
+  public String toString() {
+    return "Region { index=" + index + ", x=[" + fromX + ", " + toX + ") }";
+  }
+}
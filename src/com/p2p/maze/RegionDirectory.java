@@ -0,0 +1,89 @@
+package com.p2p.maze;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Which region, and so which primary server, owns a maze cell
+ * <p>
+ * An n x n maze is cut into count strips of whole columns, region i being the tracker room "region-i". Every peer
+ * derives the same cut from n and count; the primary of each region is asked from the tracker on first use and
+ * cached until a call to it fails or is refused
+ */
+public class RegionDirectory {
+
+  private static final String ROOM_PREFIX = "region-";
+
+  /**
+   * Where the current servers of a room are found, normally the tracker
+   */
+  public interface ServerLookup {
+    TrackerState servers(String roomId) throws RemoteException;
+  }
+
+  private final List<Region> regions = new ArrayList<>();
+  private final ServerLookup lookup;
+  private final ConcurrentMap<Integer, Player> owners = new ConcurrentHashMap<>();
+
+  public RegionDirectory(int n, int count, ServerLookup lookup) {
+    for (int i = 0; i < count; i++) {
+      regions.add(new Region(i, i * n / count, (i + 1) * n / count));
+    }
+    this.lookup = lookup;
+  }
+
+  /**
+   * @return the regions of an n x n maze cut in count
+   */
+  static List<Region> split(int n, int count) {
+    return new RegionDirectory(n, count, null).regions;
+  }
+
+  static String roomId(int index) {
+    return ROOM_PREFIX + index;
+  }
+
+  public Region get(int index) {
+    return regions.get(index);
+  }
+
+  public int size() {
+    return regions.size();
+  }
+
+  public Region regionAt(int positionX, int positionY) {
+    for (Region region : regions) {
+      if (region.contains(positionX, positionY)) {
+        return region;
+      }
+    }
+    throw new IllegalArgumentException(String.format("(%d, %d) is outside the maze", positionX, positionY));
+  }
+
+  /**
+   * @return primary server of the region, null if it has none at the moment
+   */
+  public Player owner(Region region) throws RemoteException {
+    Player owner = owners.get(region.getIndex());
+    if (owner != null) {
+      return owner;
+    }
+    TrackerState servers = lookup.servers(region.roomId());
+    owner = servers == null ? null : servers.getPrimary();
+    if (owner != null) {
+      owners.put(region.getIndex(), owner);
+    }
+    return owner;
+  }
+
+  /**
+   * Forget the owner of the region after a call to it failed or was refused, the next owner call asks the tracker
+   * again
+   */
+  public void invalidate(Region region) {
+    owners.remove(region.getIndex());
+  }
+}
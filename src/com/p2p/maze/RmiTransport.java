@@ -0,0 +1,64 @@
+package com.p2p.maze;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Java RMI transport: objects are exported on an anonymous port and bound in the rmiregistry
+ * running at the player's (or tracker's) port number
+ */
+public class RmiTransport implements Transport {
+
+  private static final String TRACKER_NAME = "Tracker";
+
+  private final List<Remote> exported = new CopyOnWriteArrayList<>();
+
+  @Override
+  public void exportGame(GameInterface game, Player player) throws RemoteException {
+    GameInterface stub = (GameInterface) UnicastRemoteObject.exportObject(game, 0);
+    exported.add(game);
+    Registry playerRegistry = LocateRegistry.getRegistry(player.getIp(), player.getPortNumber());
+    playerRegistry.rebind(player.getPlayerId(), stub);
+  }
+
+  @Override
+  public void exportTracker(TrackerInterface tracker, int portNumber) throws RemoteException {
+    TrackerInterface stub = (TrackerInterface) UnicastRemoteObject.exportObject(tracker, 0);
+    exported.add(tracker);
+
+    // Bind the remote object's stub in the registry
+    Registry registry = LocateRegistry.getRegistry("localhost", portNumber);
+    registry.rebind(TRACKER_NAME, stub);
+  }
+
+  @Override
+  public GameInterface lookupGame(Player player) throws RemoteException, NotBoundException {
+    Registry registry = LocateRegistry.getRegistry(player.getIp(), player.getPortNumber());
+    return (GameInterface) registry.lookup(player.getPlayerId());
+  }
+
+  @Override
+  public TrackerInterface lookupTracker(String ip, int portNumber) throws RemoteException, NotBoundException {
+    Registry registry = LocateRegistry.getRegistry(ip, portNumber);
+    return (TrackerInterface) registry.lookup(TRACKER_NAME);
+  }
+
+  @Override
+  public void shutdown() {
+    for (Remote remote : exported) {
+      try {
+        UnicastRemoteObject.unexportObject(remote, true);
+      } catch (NoSuchObjectException e) {
+        // already unexported
+      }
+    }
+    exported.clear();
+  }
+}
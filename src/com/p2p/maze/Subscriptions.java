@@ -0,0 +1,233 @@
+package com.p2p.maze;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.logging.Logger;
+
+/**
+ * [Primary] Players subscribed to the changes of the game state, pushed to them as they happen instead of polled
+ * <p>
+ * Each subscriber has its own queue of changes and at most one push in flight. A push takes everything queued
+ * by the time it starts, maze.push.window ms (default 0) after the first change or after the previous push, so a
+ * busy game or a slow player gets fewer, bigger pushes instead of one per change. A queue longer than
+ * maze.push.queue changes (default 256) is dropped and the player catches up from the version it has instead:
+ * the recent changes if the history still holds them, the whole game state otherwise. Pushes run on
+ * maze.push.threads threads (default 8), never on the thread that changed the state
+ */
+public class Subscriptions {
+
+  private static final Logger LOGGER = Logger.getLogger(Subscriptions.class.getSimpleName());
+  private static final LogRateLimiter LIMITED = new LogRateLimiter(LOGGER);
+  private static final AtomicInteger POOLS = new AtomicInteger();
+
+  private final PeerStubCache peerStubs;
+  private final Metrics metrics;
+  private final LongFunction<GameStateDiff> catchUp;
+  private final int capacity;
+  private final long windowMillis;
+  private final ScheduledExecutorService executor;
+  private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+  /**
+   * @param catchUp what changed since a version, for a subscriber whose queue was dropped
+   * @param capacity changes a subscriber may have queued before its queue is dropped
+   * @param windowMillis time changes are gathered for one push
+   */
+  public Subscriptions(PeerStubCache peerStubs, Metrics metrics, LongFunction<GameStateDiff> catchUp, int threads,
+      int capacity, long windowMillis) {
+    this.peerStubs = peerStubs;
+    this.metrics = metrics;
+    this.catchUp = catchUp;
+    this.capacity = capacity;
+    this.windowMillis = windowMillis;
+    String name = "push-" + POOLS.incrementAndGet() + "-";
+    AtomicInteger count = new AtomicInteger();
+    this.executor = Executors.newScheduledThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, name + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public static Subscriptions fromSystemProperties(PeerStubCache peerStubs, Metrics metrics,
+      LongFunction<GameStateDiff> catchUp) {
+    int threads = Math.max(1, Integer.getInteger("maze.push.threads", 8));
+    int capacity = Math.max(1, Integer.getInteger("maze.push.queue", 256));
+    long window = Math.max(0, Long.getLong("maze.push.window", 0));
+    return new Subscriptions(peerStubs, metrics, catchUp, threads, capacity, window);
+  }
+
+  /**
+   * Push the player every change after version, replacing its earlier subscription
+   */
+  public void subscribe(Player player, long version) {
+    Subscriber subscriber = new Subscriber(player, version);
+    // changes after version made before the subscription are only in the history
+    subscriber.behind = true;
+    subscribers.put(player.getPlayerId(), subscriber);
+    schedule(subscriber);
+    LOGGER.fine(() -> String.format("%s subscribed from version %d", player.getPlayerId(), version));
+  }
+
+  public void unsubscribe(String playerId) {
+    subscribers.remove(playerId);
+  }
+
+  public int size() {
+    return subscribers.size();
+  }
+
+  /**
+   * Queue applied changes, in version order, for every subscriber; returns without waiting for any push
+   */
+  public void publish(List<GameDelta> deltas) {
+    if (deltas.isEmpty()) {
+      return;
+    }
+    for (GameDelta delta : deltas) {
+      if (delta.getType() == GameDelta.Type.EXIT) {
+        unsubscribe(delta.getPlayerId());
+      }
+    }
+    for (Subscriber subscriber : subscribers.values()) {
+      synchronized (subscriber) {
+        if (!subscriber.behind) {
+          if (subscriber.queue.size() + deltas.size() > capacity) {
+            subscriber.queue.clear();
+            subscriber.behind = true;
+            metrics.counter("maze_push_conflated_total").increment();
+          } else {
+            subscriber.queue.addAll(deltas);
+          }
+        }
+      }
+      schedule(subscriber);
+    }
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+    subscribers.clear();
+  }
+
+  private void schedule(Subscriber subscriber) {
+    synchronized (subscriber) {
+      if (subscriber.sending) {
+        return; // the push in flight goes on with what was queued meanwhile
+      }
+      subscriber.sending = true;
+    }
+    later(subscriber);
+  }
+
+  /**
+   * Drain the subscriber's queue once the window has passed
+   */
+  private void later(Subscriber subscriber) {
+    try {
+      executor.schedule(() -> drain(subscriber), windowMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      synchronized (subscriber) {
+        subscriber.sending = false;
+      }
+    }
+  }
+
+  /**
+   * Push what the subscriber has queued, then come back after the window if more was queued meanwhile
+   */
+  private void drain(Subscriber subscriber) {
+    if (subscribers.get(subscriber.player.getPlayerId()) != subscriber) {
+      synchronized (subscriber) {
+        subscriber.sending = false;
+      }
+      return;
+    }
+    List<GameDelta> batch;
+    boolean behind;
+    synchronized (subscriber) {
+      batch = subscriber.queue;
+      behind = subscriber.behind;
+      subscriber.queue = new ArrayList<>();
+      subscriber.behind = false;
+    }
+
+    if (behind) {
+      GameStateDiff diff = catchUp.apply(subscriber.version);
+      if (diff.getType() != GameStateDiff.Type.UNCHANGED && !push(subscriber, diff)) {
+        return;
+      }
+      subscriber.version = Math.max(subscriber.version, diff.getVersion());
+    }
+    List<GameDelta> deltas = new ArrayList<>(batch.size());
+    for (GameDelta delta : batch) {
+      if (delta.getVersion() > subscriber.version) {
+        deltas.add(delta);
+      }
+    }
+    if (!deltas.isEmpty()) {
+      if (!push(subscriber, GameStateDiff.deltas(deltas))) {
+        return;
+      }
+      subscriber.version = deltas.get(deltas.size() - 1).getVersion();
+    }
+
+    synchronized (subscriber) {
+      if (subscriber.queue.isEmpty() && !subscriber.behind) {
+        subscriber.sending = false;
+        return;
+      }
+    }
+    later(subscriber);
+  }
+
+  /**
+   * @return false if the subscriber was dropped: unreachable, or it asked to stop
+   */
+  private boolean push(Subscriber subscriber, GameStateDiff diff) {
+    String playerId = subscriber.player.getPlayerId();
+    long start = System.nanoTime();
+    try {
+      if (peerStubs.invoke(subscriber.player, stub -> stub.pushChanges(diff))) {
+        metrics.counter(Metrics.name("maze_pushes_total", "type", diff.getType().name())).increment();
+        return true;
+      }
+      LOGGER.fine(() -> playerId + " no longer takes pushes");
+    } catch (RemoteException | NotBoundException e) {
+      metrics.counter("maze_push_failures_total").increment();
+      LIMITED.warning("push", () -> String.format("push to %s failed, dropped: %s", playerId, e.toString()));
+    } finally {
+      metrics.histogram("maze_push").recordSince(start);
+    }
+    subscribers.remove(playerId, subscriber);
+    synchronized (subscriber) {
+      subscriber.sending = false;
+    }
+    return false;
+  }
+
+  private static class Subscriber {
+    final Player player;
+    // latest version pushed, only touched by the push in flight
+    long version;
+    List<GameDelta> queue = new ArrayList<>();
+    // queue dropped, catch up from version first
+    boolean behind;
+    boolean sending;
+
+    Subscriber(Player player, long version) {
+      this.player = player;
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package com.p2p.maze;
+
+/**
+ * Declares a server dead after a fixed silence, whatever its heartbeats usually look like
+ */
+public class TimeoutFailureDetector implements FailureDetector {
+
+  private final long timeoutMillis;
+  private long last = -1;
+
+  public TimeoutFailureDetector(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public synchronized void heartbeat(long nowMillis) {
+    last = Math.max(last, nowMillis);
+  }
+
+  /**
+   * @return silence as a fraction of the timeout, 1 and above is dead
+   */
+  @Override
+  public synchronized double suspicion(long nowMillis) {
+    return last < 0 ? 0 : (double) (nowMillis - last) / timeoutMillis;
+  }
+
+  @Override
+  public boolean isAvailable(long nowMillis) {
+    return suspicion(nowMillis) < 1;
+  }
+
+  @Override
+  public synchronized long lastHeartbeat() {
+    return last;
+  }
+}
@@ -1,9 +1,11 @@
 package com.p2p.maze;
 
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Logger;
 
@@ -11,51 +13,237 @@ import java.util.logging.Logger;
  * Tracker
  * <p>
  * Tracker will have a well-known IP address and port number
- * Tracker knows the values of N and K.
- * In addition, tracker will inform new players of current Primary and Secondary servers
+ * Tracker hosts many independent games, one per room, each with its own N, K, primary and secondary server.
+ * In addition, tracker will inform new players of current Primary and Secondary servers of their room
+ * <p>
+ * Rooms are guarded one by one: registrations in different rooms never wait for each other. A player without a room
+ * joins the least loaded room with space left; when every room is full a new one is opened with the tracker's N and K.
+ * A room holds maze.room.capacity players (default: one per free cell, N * N - K)
+ * <p>
+ * With maze.regions=R (R > 1) the tracker starts with one room per region of a single maze, region-0 to region-R-1,
+ * each a strip of columns with K / R treasures and its own primary and backup; see RegionDirectory
  */
 public class Tracker implements TrackerInterface {
 
   private static final Logger LOGGER = Logger.getLogger(Tracker.class.getSimpleName());
 
-  private TrackerState trackerState = new TrackerState();
+  private static class Room {
+    final TrackerState trackerState = new TrackerState();
+    final Set<String> players = new HashSet<>();
+    final int capacity;
+
+    Room(String roomId, int n, int k, int capacity) {
+      this(roomId, n, k, capacity, 0, 0);
+    }
+
+    Room(String roomId, int n, int k, int capacity, int regions, int region) {
+      trackerState.setRoomId(roomId);
+      trackerState.setRegion(regions, region);
+      trackerState.setN(n);
+      trackerState.setK(k);
+      this.capacity = capacity;
+    }
+
+    // under the room's monitor
+    TrackerState snapshot() {
+      TrackerState copy = new TrackerState();
+      copy.setRoomId(trackerState.getRoomId());
+      copy.setN(trackerState.getN());
+      copy.setK(trackerState.getK());
+      copy.setPrimary(trackerState.getPrimary());
+      copy.setBackup(trackerState.getBackup());
+      copy.setRegion(trackerState.getRegions(), trackerState.getRegion());
+      return copy;
+    }
+  }
+
+  private final int n;
+  private final int k;
+  private final int capacity;
+  private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+  // only opening a room for players without one is serialized, so two of them never open a room each
+  private final Object roomCreation = new Object();
+  private final AtomicInteger nextRoom = new AtomicInteger();
+  private final Metrics metrics = new Metrics();
 
   public Tracker(int n, int k) {
-    this.trackerState.setN(n);
-    this.trackerState.setK(k);
+    this(n, k, Integer.getInteger("maze.regions", 1));
+  }
+
+  /**
+   * @param regions regions the first maze is cut into, 1 for a single primary per maze
+   */
+  public Tracker(int n, int k, int regions) {
+    this.n = n;
+    this.k = k;
+    this.capacity = Math.max(1, Integer.getInteger("maze.room.capacity", n * n - k));
+    if (regions > 1) {
+      for (Region region : RegionDirectory.split(n, regions)) {
+        int regionK = Math.max(1, k / regions);
+        int regionCapacity = Math.max(1, Integer.getInteger("maze.room.capacity", region.cellCount(n) - regionK));
+        rooms.put(region.roomId(), new Room(region.roomId(), n, regionK, regionCapacity, regions, region.getIndex()));
+      }
+      LOGGER.info(String.format("maze cut into %d regions", regions));
+    }
+    metrics.gauge("maze_tracker_rooms", rooms::size);
+    metrics.gauge("maze_tracker_players", () -> {
+      long players = 0;
+      for (Room room : rooms.values()) {
+        synchronized (room) {
+          players += room.players.size();
+        }
+      }
+      return players;
+    });
   }
 
   @Override
-  public synchronized TrackerState register(Player player) throws RemoteException {
+  public TrackerState register(Player player, String roomId) throws RemoteException {
+    metrics.counter("maze_tracker_registrations_total").increment();
+    while (true) {
+      Room room = roomId != null ? rooms.computeIfAbsent(roomId, this::newRoom) : leastLoadedRoom();
+      synchronized (room) {
+        if (roomId == null && room.players.size() >= room.capacity && !room.players.contains(player.getPlayerId())) {
+          continue; // filled up meanwhile, look again
+        }
+        room.players.add(player.getPlayerId());
+        TrackerState trackerState = room.trackerState;
+
+        LOGGER.fine(() -> String.format("register player %s start: %s", player.getPlayerId(), trackerState));
 
-    LOGGER.info(String.format("register player %s start: %s", player.getPlayerId(), trackerState));
+        Player primary = trackerState.getPrimary();
+        if (primary == null) {
+          trackerState.setPrimary(player);
 
-    Player primary = trackerState.getPrimary();
-    if (primary == null) {
-      trackerState.setPrimary(player);
+          LOGGER.info(String.format("register player %s as primary server of room %s", player.getPlayerId(),
+              trackerState.getRoomId()));
+          return room.snapshot();
+        }
 
-      LOGGER.info(String.format("register player %s as primary server", player.getPlayerId()));
-      return trackerState;
+        LOGGER.fine(() -> String.format("register player %s end: %s", player.getPlayerId(), trackerState));
+
+        return room.snapshot();
+      }
     }
+  }
 
-    LOGGER.info(String.format("register player %s end: %s", player.getPlayerId(), trackerState));
+  private Room leastLoadedRoom() {
+    Room room = findLeastLoadedRoom();
+    if (room != null) {
+      return room;
+    }
+    synchronized (roomCreation) {
+      room = findLeastLoadedRoom();
+      if (room == null) {
+        room = rooms.computeIfAbsent("room-" + nextRoom.incrementAndGet(), this::newRoom);
+      }
+      return room;
+    }
+  }
 
-    return trackerState;
+  /**
+   * @return room with the fewest players among those with space left, null if all are full
+   */
+  private Room findLeastLoadedRoom() {
+    Room best = null;
+    int fewest = Integer.MAX_VALUE;
+    for (Room room : rooms.values()) {
+      int players;
+      synchronized (room) {
+        players = room.players.size();
+      }
+      if (players < room.capacity && players < fewest) {
+        best = room;
+        fewest = players;
+      }
+    }
+    return best;
+  }
+
+  private Room newRoom(String roomId) {
+    LOGGER.info(String.format("open room %s, N: %d, K: %d, capacity: %d", roomId, n, k, capacity));
+    return new Room(roomId, n, k, capacity);
+  }
+
+  @Override
+  public void updateServers(String roomId, Player primaryServer, Player backupServer) throws RemoteException {
+    Room room = rooms.get(roomId);
+    if (room == null) {
+      LOGGER.warning("updateServers for unknown room: " + roomId);
+      return;
+    }
+    metrics.counter("maze_tracker_update_servers_total").increment();
+    synchronized (room) {
+      TrackerState trackerState = room.trackerState;
+      if (changed(trackerState.getPrimary(), primaryServer)) {
+        metrics.counter(Metrics.name("maze_tracker_server_changes_total", "server", "primary")).increment();
+      }
+      if (changed(trackerState.getBackup(), backupServer)) {
+        metrics.counter(Metrics.name("maze_tracker_server_changes_total", "server", "backup")).increment();
+      }
+      trackerState.setPrimary(primaryServer);
+      trackerState.setBackup(backupServer);
+
+      LOGGER.info(String.format("updated trackerState: %s", trackerState));
+    }
+  }
+
+  @Override
+  public TrackerState takeOver(String roomId, Player player, Player lost) throws RemoteException {
+    Room room = rooms.get(roomId);
+    if (room == null) {
+      return null;
+    }
+    synchronized (room) {
+      TrackerState trackerState = room.trackerState;
+      Player primary = trackerState.getPrimary();
+      if (primary == null || primary.getPlayerId().equals(lost.getPlayerId())) {
+        trackerState.setPrimary(player);
+        trackerState.setBackup(null);
+        metrics.counter("maze_tracker_takeovers_total").increment();
+        LOGGER.warning(String.format("player %s took room %s over from %s", player.getPlayerId(), roomId,
+            lost.getPlayerId()));
+      }
+      return room.snapshot();
+    }
   }
 
   @Override
-  public synchronized void updateServers(Player primaryServer, Player backupServer) throws RemoteException {
-    trackerState.setPrimary(primaryServer);
-    trackerState.setBackup(backupServer);
+  public void leave(String roomId, Player player) throws RemoteException {
+    Room room = rooms.get(roomId);
+    if (room == null) {
+      return;
+    }
+    synchronized (room) {
+      room.players.remove(player.getPlayerId());
+    }
+    LOGGER.fine(() -> String.format("player %s left room %s", player.getPlayerId(), roomId));
+  }
+
+  private static boolean changed(Player before, Player after) {
+    String beforeId = before == null ? null : before.getPlayerId();
+    String afterId = after == null ? null : after.getPlayerId();
+    return beforeId == null ? afterId != null : !beforeId.equals(afterId);
+  }
 
-    LOGGER.info(String.format("updated trackerState: %s", trackerState));
+  /**
+   * Publish the tracker metrics over JMX and, with maze.metrics.port, HTTP
+   */
+  void exportMetrics() {
+    metrics.export("Tracker", "tracker");
   }
 
   @Override
-  public synchronized TrackerState getTrackerState() throws RemoteException {
-    LOGGER.info(String.format("retried trackerState: %s", trackerState));
+  public TrackerState getTrackerState(String roomId) throws RemoteException {
+    Room room = rooms.get(roomId);
+    if (room == null) {
+      return null;
+    }
+    synchronized (room) {
+      LOGGER.fine(() -> String.format("retried trackerState: %s", room.trackerState));
 
-    return trackerState;
+      return room.snapshot();
+    }
   }
 
   public static void main(String args[]) {
@@ -72,11 +260,8 @@ public class Tracker implements TrackerInterface {
       int k = Integer.parseInt(args[2]);
 
       Tracker tracker = new Tracker(n, k);
-      TrackerInterface stub = (TrackerInterface) UnicastRemoteObject.exportObject(tracker, 0);
-
-      // Bind the remote object's stub in the registry
-      Registry registry = LocateRegistry.getRegistry("localhost", portNumber);
-      registry.rebind("Tracker", stub);
+      Transport.fromSystemProperties().exportTracker(tracker, portNumber);
+      tracker.exportMetrics();
 
       LOGGER.info(String.format("Tracker ready. port: %d, N: %d, K: %d", portNumber, n, k));
 
@@ -94,6 +279,6 @@ public class Tracker implements TrackerInterface {
     LogFormatter formatter = new LogFormatter();
     ConsoleHandler handler = new ConsoleHandler();
     handler.setFormatter(formatter);
-    LOGGER.addHandler(handler);
+    LOGGER.addHandler(AsyncHandler.wrap(handler));
   }
 }
@@ -5,24 +5,49 @@ import java.rmi.RemoteException;
 
 /**
  * Remote Interface for Tracker class
- *
+ * <p>
+ * A tracker hosts many independent games, one per room; every call names the room it is about
  */
 public interface TrackerInterface extends Remote {
   /**
    * Inform tracker a new player joins the game
    * @param player new player
-   * @return current TrackerState (n, k, primary, backup)
+   * @param roomId room to join, created if missing; null to join the least loaded room with space left
+   * @return current TrackerState of the room (room id, n, k, primary, backup)
    * @throws RemoteException
      */
-  public TrackerState register(Player player) throws RemoteException;
+  public TrackerState register(Player player, String roomId) throws RemoteException;
 
   /**
    * Inform tracker new servers in case a primary/backup server crashes
+   * @param roomId room of the servers
    * @param primaryServer new primary server
    * @param backupServer new backup server
    * @throws RemoteException
    */
-  public void updateServers(Player primaryServer, Player backupServer) throws RemoteException;
+  public void updateServers(String roomId, Player primaryServer, Player backupServer) throws RemoteException;
 
-  public TrackerState getTrackerState() throws RemoteException;
+  /**
+   * Make the player primary server of the room in place of one its players lost, with no backup, unless the room
+   * has a primary other than lost already: of players racing to replace the same primary only the first wins
+   * @param roomId room of the servers
+   * @param player player taking the room over
+   * @param lost primary server the player could not reach, nor its backup
+   * @return current TrackerState of the room, naming player as primary if it won; null if there is no such room
+   * @throws RemoteException
+   */
+  public TrackerState takeOver(String roomId, Player player, Player lost) throws RemoteException;
+
+  /**
+   * Inform tracker a player left the room, by exiting or crashing, so its place can be given to a new player
+   * @param roomId room the player was in
+   * @param player player gone
+   * @throws RemoteException
+   */
+  public void leave(String roomId, Player player) throws RemoteException;
+
+  /**
+   * @return current TrackerState of the room, null if there is no such room
+   */
+  public TrackerState getTrackerState(String roomId) throws RemoteException;
 }
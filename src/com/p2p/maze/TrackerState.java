@@ -1,16 +1,30 @@
 package com.p2p.maze;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 /**
- *
- *
+ * What the tracker knows of one room: its id, maze size n, treasures k, primary and backup server
  */
-public class TrackerState implements Serializable {
+public class TrackerState implements Externalizable {
+  String roomId;
   int n;
   int k;
   Player primary;
   Player backup;
+  // number of regions the maze is cut into, 0 when the room plays the whole maze, and the region of this room
+  int regions;
+  int region;
+
+  String getRoomId() {
+    return roomId;
+  }
+
+  void setRoomId(String roomId) {
+    this.roomId = roomId;
+  }
 
   int getN() {
     return n;
@@ -44,11 +58,50 @@ public class TrackerState implements Serializable {
     this.backup = backup;
   }
 
+  int getRegions() {
+    return regions;
+  }
+
+  int getRegion() {
+    return region;
+  }
+
+  void setRegion(int regions, int region) {
+    this.regions = regions;
+    this.region = region;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    WireFormat.writeHeader(out);
+    WireFormat.writeString(out, roomId);
+    WireFormat.writeVarInt(out, n);
+    WireFormat.writeVarInt(out, k);
+    Player.write(out, primary);
+    Player.write(out, backup);
+    WireFormat.writeVarInt(out, regions);
+    WireFormat.writeVarInt(out, region);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    WireFormat.readHeader(in, "TrackerState");
+    roomId = WireFormat.readString(in);
+    n = WireFormat.readVarInt(in);
+    k = WireFormat.readVarInt(in);
+    primary = Player.read(in);
+    backup = Player.read(in);
+    regions = WireFormat.readVarInt(in);
+    region = WireFormat.readVarInt(in);
+  }
+
   @Override
   public String toString() {
     return "TrackerState { " +
-            "n=" + n +
+            "roomId=" + roomId +
+            ", n=" + n +
             ", k=" + k +
+            (regions > 0 ? ", region=" + region + "/" + regions : "") +
             ", \nprimary=" + primary +
             ", \nbackup=" + backup +
             "}";
@@ -0,0 +1,43 @@
+package com.p2p.maze;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.logging.Logger;
+
+/**
+ * How peers reach each other's GameInterface and the TrackerInterface
+ * <p>
+ * Game and Tracker only export and look up through this interface, so the same logic runs on
+ * Java RMI (default) or on the NIO transport. Select with -Dmaze.transport=rmi|nio
+ */
+public interface Transport {
+
+  /**
+   * Make the game reachable by the other peers under the player's id
+   * The transport may assign the port peers must use, and then updates player's port number
+   */
+  void exportGame(GameInterface game, Player player) throws RemoteException;
+
+  /**
+   * Make the tracker reachable at the well-known port
+   */
+  void exportTracker(TrackerInterface tracker, int portNumber) throws RemoteException;
+
+  GameInterface lookupGame(Player player) throws RemoteException, NotBoundException;
+
+  TrackerInterface lookupTracker(String ip, int portNumber) throws RemoteException, NotBoundException;
+
+  /**
+   * Stop serving every object exported through this transport, as if the process died
+   */
+  void shutdown();
+
+  static Transport fromSystemProperties() {
+    String name = System.getProperty("maze.transport", "rmi");
+    Logger.getLogger(Transport.class.getSimpleName()).info("transport: " + name);
+    if ("nio".equalsIgnoreCase(name)) {
+      return new NioTransport();
+    }
+    return new RmiTransport();
+  }
+}
@@ -0,0 +1,125 @@
+package com.p2p.maze;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+
+/**
+ * Compact binary encoding shared by the Externalizable game objects
+ * <p>
+ * Every top level object starts with a format version byte. Numbers are written as varints (7 bits per byte),
+ * strings as a varint length (0 for null) followed by modified UTF-8
+ */
+final class WireFormat {
+
+  static final int VERSION = 3;
+
+  private WireFormat() {}
+
+  static void writeHeader(DataOutput out) throws IOException {
+    out.writeByte(VERSION);
+  }
+
+  static void readHeader(DataInput in, String type) throws IOException {
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new InvalidObjectException(String.format("unsupported %s wire format version: %d", type, version));
+    }
+  }
+
+  /**
+   * Write a non-negative int in 1 to 5 bytes
+   */
+  static void writeVarInt(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new InvalidObjectException("malformed varint");
+  }
+
+  static void writeVarLong(DataOutput out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  static long readVarLong(DataInput in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 70; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new InvalidObjectException("malformed varlong");
+  }
+
+  /**
+   * Write an int that may be negative (zig-zag encoded varint)
+   */
+  static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+    writeVarInt(out, (value << 1) ^ (value >> 31));
+  }
+
+  static int readSignedVarInt(DataInput in) throws IOException {
+    int value = readVarInt(in);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  static void writeString(DataOutput out, String value) throws IOException {
+    if (value == null) {
+      writeVarInt(out, 0);
+      return;
+    }
+    writeVarInt(out, value.length() + 1);
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c >= 0x01 && c <= 0x7F) {
+        out.writeByte(c);
+      } else if (c <= 0x7FF) {
+        out.writeByte(0xC0 | (c >> 6));
+        out.writeByte(0x80 | (c & 0x3F));
+      } else {
+        out.writeByte(0xE0 | (c >> 12));
+        out.writeByte(0x80 | ((c >> 6) & 0x3F));
+        out.writeByte(0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  static String readString(DataInput in) throws IOException {
+    int length = readVarInt(in) - 1;
+    if (length < 0) {
+      return null;
+    }
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      int b = in.readUnsignedByte();
+      if (b < 0x80) {
+        chars[i] = (char) b;
+      } else if ((b & 0xE0) == 0xC0) {
+        chars[i] = (char) (((b & 0x1F) << 6) | (in.readUnsignedByte() & 0x3F));
+      } else {
+        chars[i] = (char) (((b & 0x0F) << 12) | ((in.readUnsignedByte() & 0x3F) << 6) | (in.readUnsignedByte() & 0x3F));
+      }
+    }
+    return new String(chars);
+  }
+}